@@ -66,7 +66,7 @@ public class AngleAnalyzer < T extends IntegerType<T>> implements Command {
 
     private final LogService logService; // Passed through by instantiated class
 
-    private final FloatMatrix data; // All localisations
+    private final LocalisationTable data; // All localisations
 
     // Results of angles and distances
     private double angle_low;
@@ -85,7 +85,7 @@ public class AngleAnalyzer < T extends IntegerType<T>> implements Command {
     // When there are no regular features (like distances) this will be false
     private boolean success = false;
 
-    public AngleAnalyzer(FloatMatrix data, boolean flipAngles, boolean mirrorAngles, LogService logService, boolean debug){
+    public AngleAnalyzer(LocalisationTable data, boolean flipAngles, boolean mirrorAngles, LogService logService, boolean debug){
         this.data = data;
         this.flipAngles = flipAngles;
         this.mirrorAngles = mirrorAngles;
@@ -107,10 +107,10 @@ public class AngleAnalyzer < T extends IntegerType<T>> implements Command {
         int[] dimensions = new int[] {target_size, target_size};
 
         // these are the factors why which to reduce each axis to fit inside the image
-        final float[] reduce = new float[] {(float) Math.ceil((data.getColumn(1).max() + 1)/target_size), (float) Math.ceil((data.getColumn(2).max() + 1)/target_size)};
+        final float[] reduce = new float[] {(float) Math.ceil((data.max(1) + 1)/target_size), (float) Math.ceil((data.max(2) + 1)/target_size)};
 
         // We can only use FFT on an image, so we create a 1024x1024 image from the points
-        ImagePlus temp = getImageFromPoints(data.getColumns(new int[]{1, 2, 4}), reduce, dimensions[0], dimensions[1]);
+        ImagePlus temp = getImageFromPoints(data, new int[]{1, 2, 4}, reduce, dimensions[0], dimensions[1]);
 
         if(debug) temp.show();
 
@@ -274,8 +274,8 @@ public class AngleAnalyzer < T extends IntegerType<T>> implements Command {
 
         // This is the scale of units/px
         // both the original and FFT are target size
-        float sizeX = data.getColumn(1).max() / 512; // deltaW
-        float sizeY = data.getColumn(2).max() / 512;
+        float sizeX = data.max(1) / 512; // deltaW
+        float sizeY = data.max(2) / 512;
 
 
         // Analyze the results, discarding any that are too far away or too close
@@ -288,7 +288,7 @@ public class AngleAnalyzer < T extends IntegerType<T>> implements Command {
         // These cutoff values are chosen empirically
         // With the FFT these distances can never vary a huge amount
         // If it turns out someone finds an application where a larger size can occur, one can change these
-        float averageSize = (data.getColumn(1).max() + data.getColumn(2).max())/2;
+        float averageSize = (data.max(1) + data.max(2))/2;
         double lowerCutoff = 0.01 * averageSize; // Distances between features is at min 1% of whole size
         double upperCutoff = 0.4 * averageSize; // Distances between features is at most 10% of whole size
 
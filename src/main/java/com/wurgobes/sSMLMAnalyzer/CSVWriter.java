@@ -0,0 +1,363 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the writer for the csv result files.
+The rows are split in blocks, and each thread turns a block into text in its own byte buffer.
+The blocks are written to the file in order as soon as they are ready, and only a few blocks are kept in memory at once.
+
+The numbers are written either exactly like Float.toString would (the result files),
+or with six decimals like String.format("%f") (thunderSTORM.csv), but always with a '.' whatever the locale.
+A selection of columns can be written without copying them out of the table first.
+The table can be anything with a ResultTable view, and its rows are counted with a long.
+Files ending in .gz are compressed with gzip while writing.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.jblas.FloatMatrix;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+public class CSVWriter {
+
+    public enum Notation {
+        FLOAT, // Same as Float.toString
+        FIXED  // Six decimals, same as String.format(Locale.ROOT, "%f")
+    }
+
+    // Roughly how many bytes of text one block should become
+    private static final int blockBytes = 1 << 20;
+
+    public static void write(final FloatMatrix data, List<String> headers, Path path, int coreCount) throws IOException {
+        write(ResultTable.of(data), null, headers, ",", Notation.FLOAT, path, coreCount);
+    }
+
+    public static void write(final ResultTable data, int[] selectedColumns, List<String> headers, String separator, final Notation notation,
+                             Path path, int coreCount) throws IOException {
+        // selectedColumns are the columns of data to write in that order, or null for all of them
+        final long rows = data.rows();
+        final int[] sourceColumns = new int[selectedColumns == null ? data.columns() : selectedColumns.length];
+        for (int c = 0; c < sourceColumns.length; c++) sourceColumns[c] = selectedColumns == null ? c : selectedColumns[c];
+        final int columns = sourceColumns.length;
+        final boolean[] integer = integerColumns(data, sourceColumns);
+        final byte[] separatorBytes = separator.getBytes(StandardCharsets.UTF_8);
+
+        // Assume ~12 characters per number to size the blocks
+        final int blockRows = Math.max(256, blockBytes / Math.max(1, columns * 12));
+        final int blocks = (int) ((rows + blockRows - 1) / blockRows);
+
+        final int formatters = Math.max(1, Math.min(coreCount, blocks));
+        final int window = 2 * formatters; // The formatters may run this many blocks ahead of the writer
+
+        final ByteBuilder[] finished = new ByteBuilder[blocks];
+        final Object lock = new Object();
+        final AtomicInteger ai = new AtomicInteger(0);
+        final int[] written = new int[]{0};
+        final Throwable[] failure = new Throwable[1];
+
+        // The formatters run on the shared worker threads while this thread writes
+        final WorkerPool.Tasks tasks = WorkerPool.start(formatters, ithread -> {
+            Block buffers = null;
+            try {
+                for (int block = ai.getAndIncrement(); block < blocks; block = ai.getAndIncrement()) {
+                    // Wait until the writer has caught up, so memory use stays bounded
+                    synchronized (lock) {
+                        while (block >= written[0] + window && failure[0] == null) lock.wait();
+                        if (failure[0] != null) return;
+                    }
+
+                    if (buffers == null) buffers = new Block(integer, blockRows);
+                    final long first = (long) block * blockRows;
+                    ByteBuilder out = new ByteBuilder(blockBytes + blockBytes / 4);
+                    buffers.format(data, sourceColumns, first, (int) Math.min(blockRows, rows - first), separatorBytes, notation, out);
+
+                    synchronized (lock) {
+                        finished[block] = out;
+                        lock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException | RuntimeException | Error e) {
+                synchronized (lock) {
+                    failure[0] = e;
+                    lock.notifyAll();
+                }
+            }
+        });
+
+        try (WritableByteChannel channel = open(path)) {
+            writeFully(channel, ByteBuffer.wrap((String.join(",", headers) + "\n").getBytes(StandardCharsets.UTF_8)));
+
+            Block buffers = null;
+            for (int block = 0; block < blocks; block++) {
+                ByteBuilder out;
+                if (ai.compareAndSet(block, block + 1)) {
+                    // No formatter took this block (when every thread of the pool is busy none may have started), so it is formatted here
+                    if (buffers == null) buffers = new Block(integer, blockRows);
+                    final long first = (long) block * blockRows;
+                    out = new ByteBuilder(blockBytes + blockBytes / 4);
+                    buffers.format(data, sourceColumns, first, (int) Math.min(blockRows, rows - first), separatorBytes, notation, out);
+                } else {
+                    synchronized (lock) {
+                        while (finished[block] == null && failure[0] == null) lock.wait();
+                        if (failure[0] != null) throw new IOException("Could not format " + path.getFileName(), failure[0]);
+                        out = finished[block];
+                        finished[block] = null;
+                    }
+                }
+
+                writeFully(channel, ByteBuffer.wrap(out.bytes, 0, out.length));
+
+                synchronized (lock) {
+                    written[0] = block + 1;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + path.getFileName());
+        } finally {
+            // Make sure no thread keeps waiting on a writer that stopped
+            synchronized (lock) {
+                if (failure[0] == null && written[0] < blocks) failure[0] = new IOException("Writing stopped");
+                lock.notifyAll();
+            }
+            tasks.join();
+        }
+    }
+
+    private static boolean[] integerColumns(final ResultTable data, int[] sourceColumns) {
+        boolean[] integer = new boolean[sourceColumns.length];
+        for (int c = 0; c < integer.length; c++) integer[c] = data.isInteger(sourceColumns[c]);
+        return integer;
+    }
+
+    private static class Block {
+        // Room for one block of every column, the columns of whole numbers as longs
+        final float[][] values;
+        final long[][] whole;
+
+        Block(boolean[] integer, int blockRows) {
+            values = new float[integer.length][];
+            whole = new long[integer.length][];
+            for (int c = 0; c < integer.length; c++) {
+                if (integer[c]) whole[c] = new long[blockRows];
+                else values[c] = new float[blockRows];
+            }
+        }
+
+        boolean fits(boolean[] integer, int blockRows) {
+            if (integer.length != values.length) return false;
+            for (int c = 0; c < integer.length; c++) {
+                if (integer[c] != (whole[c] != null)) return false;
+                if ((integer[c] ? whole[c].length : values[c].length) < blockRows) return false;
+            }
+            return true;
+        }
+
+        void format(final ResultTable data, int[] sourceColumns, long first, int count, byte[] separatorBytes, Notation notation, ByteBuilder out) {
+            // Copies the part of each column, and then turns it into text row by row
+            for (int c = 0; c < sourceColumns.length; c++) {
+                if (whole[c] != null) data.readColumn(sourceColumns[c], first, whole[c], count);
+                else data.readColumn(sourceColumns[c], first, values[c], count);
+            }
+            CSVWriter.format(values, whole, count, separatorBytes, notation, out);
+        }
+    }
+
+    private static void format(final float[][] values, final long[][] whole, int count, byte[] separatorBytes, Notation notation, ByteBuilder out) {
+        // Turns the first count rows of the columns into text, row by row
+        for (int r = 0; r < count; r++) {
+            for (int c = 0; c < values.length; c++) {
+                if (c > 0) out.append(separatorBytes);
+                if (whole[c] != null)
+                    out.appendWhole(whole[c][r], notation);
+                else if (notation == Notation.FIXED)
+                    out.appendFixed(values[c][r]);
+                else
+                    out.appendFloat(values[c][r]);
+            }
+            out.append((byte) '\n');
+        }
+    }
+
+    public static class Appender implements Closeable {
+        // Writes a csv file one part at a time, for results that are made while the input is still being read
+        // The formatting is the same as write(), so the file is identical to writing all parts at once
+        private final WritableByteChannel channel;
+        private final int[] sourceColumns; // null for all columns
+        private final byte[] separatorBytes;
+        private final Notation notation;
+        private final ByteBuilder out = new ByteBuilder(blockBytes + blockBytes / 4);
+        private Block buffers = null;
+
+        public Appender(Path path, int[] selectedColumns, List<String> headers, String separator, Notation notation) throws IOException {
+            this.channel = open(path);
+            this.sourceColumns = selectedColumns;
+            this.separatorBytes = separator.getBytes(StandardCharsets.UTF_8);
+            this.notation = notation;
+            writeFully(channel, ByteBuffer.wrap((String.join(",", headers) + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        public void append(final ResultTable data) throws IOException {
+            final int columns = sourceColumns == null ? data.columns() : sourceColumns.length;
+            final int[] source = new int[columns];
+            for (int c = 0; c < columns; c++) source[c] = sourceColumns == null ? c : sourceColumns[c];
+            final boolean[] integer = integerColumns(data, source);
+            final int blockRows = Math.max(256, blockBytes / Math.max(1, columns * 12));
+            if (buffers == null || !buffers.fits(integer, blockRows)) buffers = new Block(integer, blockRows);
+
+            for (long first = 0; first < data.rows(); first += blockRows) {
+                final int count = (int) Math.min(blockRows, data.rows() - first);
+                out.length = 0;
+                buffers.format(data, source, first, count, separatorBytes, notation, out);
+                writeFully(channel, ByteBuffer.wrap(out.bytes, 0, out.length));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static WritableByteChannel open(Path path) throws IOException {
+        if (path.getFileName().toString().toLowerCase().endsWith(".gz"))
+            return Channels.newChannel(new GZIPOutputStream(Files.newOutputStream(path), 1 << 16));
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    static class ByteBuilder {
+        // A growable byte array for ASCII text, like StringBuilder without the chars
+        byte[] bytes;
+        int length = 0;
+
+        ByteBuilder(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+
+        void append(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        void append(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        void append(String s) {
+            // Only used for ASCII (numbers), so each char is one byte
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) bytes[length++] = (byte) s.charAt(i);
+        }
+
+        void appendLong(long value) {
+            if (value < 0) {
+                append((byte) '-');
+                value = -value;
+            }
+            ensure(20);
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            // The digits were written backwards
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte temp = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = temp;
+            }
+        }
+
+        void appendWhole(long value, Notation notation) {
+            // A whole number as appendFloat or appendFixed write it, but with all of its digits (a float is only exact up to 2^24)
+            appendLong(value);
+            append(notation == Notation.FIXED ? ".000000" : ".0");
+        }
+
+        void appendFloat(float value) {
+            // Identical to Float.toString (and so StringBuilder.append(float))
+            // Whole numbers are very common (frames, ids, indices), and for these the text is simply the digits with .0
+            // Float.toString uses plain notation from 1e-3 up to 1e7
+            if (value == (int) value && Math.abs(value) < 1e7f) {
+                if (value == 0 && Float.floatToRawIntBits(value) != 0) {
+                    append("-0.0");
+                } else {
+                    appendLong((int) value);
+                    append((byte) '.');
+                    append((byte) '0');
+                }
+            } else {
+                // A custom shortest-representation formatter would not always match Float.toString on Java 8 to 18
+                append(Float.toString(value));
+            }
+        }
+
+        void appendFixed(float value) {
+            // Identical to String.format(Locale.ROOT, "%f", value)
+            // That rounds half up, starting from the shortest digits of the value as a double
+            // The fast path rounds the scaled value, and leaves anything close to a tie (or too large to scale exactly) to String.format
+            double magnitude = Math.abs((double) value);
+            if (value == (long) value && magnitude < 1e15) {
+                if (value == 0 && Float.floatToRawIntBits(value) != 0) append((byte) '-');
+                appendLong((long) value);
+                append(".000000");
+                return;
+            }
+            if (magnitude < 1e7) {
+                double scaled = magnitude * 1e6;
+                double whole = Math.floor(scaled);
+                double fraction = scaled - whole;
+                if (Math.abs(fraction - 0.5) > 0.01) {
+                    long rounded = (long) whole + (fraction > 0.5 ? 1 : 0);
+                    if (value < 0) append((byte) '-');
+                    appendLong(rounded / 1000000);
+                    append((byte) '.');
+                    long decimals = rounded % 1000000;
+                    for (long digit = 100000; digit > 0; digit /= 10) append((byte) ('0' + (decimals / digit) % 10));
+                    return;
+                }
+            }
+            append(String.format(Locale.ROOT, "%f", value));
+        }
+    }
+}
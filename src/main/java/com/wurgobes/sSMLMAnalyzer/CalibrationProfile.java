@@ -0,0 +1,197 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains a calibration profile: the angle and distance windows, the flip/mirror choice and the LUT range
+of an instrument. As long as the grating and camera do not change these stay the same between acquisitions,
+so a profile allows skipping the angle/distance detection completely.
+
+A profile can be read from the info.xml written by a previous run, or from the profile store.
+Profiles in the store are written in the same layout as info.xml (only the relevant elements),
+so both are read by the same code.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.Prefs;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class CalibrationProfile {
+
+    private final String name;
+
+    private final float[] angles;    // rad
+    private final float[] distances;
+    private final boolean flipAngles;
+    private final boolean mirrorAngles;
+    private final float[] lutRange;
+
+    public CalibrationProfile(String name, float[] angles, float[] distances, boolean flipAngles, boolean mirrorAngles, float[] lutRange) {
+        this.name = name;
+        this.angles = angles.clone();
+        this.distances = distances.clone();
+        this.flipAngles = flipAngles;
+        this.mirrorAngles = mirrorAngles;
+        this.lutRange = lutRange.clone();
+    }
+
+    public static Path getStore() {
+        // All named profiles are kept next to the ImageJ preferences
+        return Paths.get(Prefs.getPrefsDir(), "sSMLMA_profiles");
+    }
+
+    private static Path getStorePath(String name) {
+        return getStore().resolve(name.replaceAll("[^\\w.-]", "_") + ".xml");
+    }
+
+    public static CalibrationProfile load(String nameOrPath) throws IOException {
+        // Either a path to an info.xml (or profile) file, or the name of a profile in the store
+        Path path = Paths.get(nameOrPath);
+        if (Files.isDirectory(path)) path = path.resolve("info.xml");
+        if (!Files.isRegularFile(path)) path = getStorePath(nameOrPath);
+        if (!Files.isRegularFile(path)) throw new IOException("No calibration profile or info.xml found for: " + nameOrPath);
+
+        try {
+            DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            // info.xml refers to settings.dtd, which is never written, so do not try to load it
+            db.setEntityResolver((publicId, systemId) -> new InputSource(new StringReader("")));
+            Document dom = db.parse(path.toFile());
+
+            float[] angles = readRange(dom, "angles_calculated");
+            float[] distances = readRange(dom, "distance_calculated");
+            float[] lut = readRange(dom, "LUT_calculated");
+
+            if (angles[0] * angles[1] * distances[0] * distances[1] == 0)
+                throw new IOException("Calibration " + path + " does not contain a complete angle and distance range");
+
+            return new CalibrationProfile(nameOrPath, angles, distances,
+                    Boolean.parseBoolean(readText(dom, "angle_flip")), Boolean.parseBoolean(readText(dom, "angle_mirror")), lut);
+        } catch (ParserConfigurationException | SAXException | NumberFormatException e) {
+            throw new IOException("Could not read calibration " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static String readText(Document dom, String tag) {
+        NodeList nodes = dom.getElementsByTagName(tag);
+        return nodes.getLength() > 0 ? nodes.item(0).getTextContent().trim() : "";
+    }
+
+    private static float[] readRange(Document dom, String tag) {
+        float[] range = new float[] {0, 0};
+        NodeList nodes = dom.getElementsByTagName(tag);
+        if (nodes.getLength() == 0) return range;
+
+        NodeList children = nodes.item(0).getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child.getNodeName().equals("start")) range[0] = Float.parseFloat(child.getTextContent().trim());
+            if (child.getNodeName().equals("end")) range[1] = Float.parseFloat(child.getTextContent().trim());
+        }
+        return range;
+    }
+
+    public Path save(String name) throws IOException {
+        // Stores this profile under a name, overwriting any older profile with that name
+        Path path = getStorePath(name);
+        Files.createDirectories(path.getParent());
+
+        try {
+            Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            Element rootEle = dom.createElement("Spectral_SMLM_Analzyer");
+
+            Element e1 = dom.createElement("settings");
+            appendText(dom, e1, "profile", name);
+            appendText(dom, e1, "angle_flip", String.valueOf(flipAngles));
+            appendText(dom, e1, "angle_mirror", String.valueOf(mirrorAngles));
+            rootEle.appendChild(e1);
+
+            e1 = dom.createElement("calculated");
+            appendRange(dom, e1, "angles_calculated", angles);
+            appendRange(dom, e1, "distance_calculated", distances);
+            appendRange(dom, e1, "LUT_calculated", lutRange);
+            rootEle.appendChild(e1);
+
+            dom.appendChild(rootEle);
+
+            Transformer tr = TransformerFactory.newInstance().newTransformer();
+            tr.setOutputProperty(OutputKeys.INDENT, "yes");
+            tr.setOutputProperty(OutputKeys.METHOD, "xml");
+            tr.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            tr.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+            try (OutputStream os = Files.newOutputStream(path)) {
+                tr.transform(new DOMSource(dom), new StreamResult(os));
+            }
+        } catch (ParserConfigurationException | TransformerException e) {
+            throw new IOException("Could not write calibration profile " + path + ": " + e.getMessage());
+        }
+        return path;
+    }
+
+    private static void appendText(Document dom, Element parent, String tag, String value) {
+        Element e = dom.createElement(tag);
+        e.appendChild(dom.createTextNode(value));
+        parent.appendChild(e);
+    }
+
+    private static void appendRange(Document dom, Element parent, String tag, float[] range) {
+        Element e = dom.createElement(tag);
+        appendText(dom, e, "start", String.valueOf(range[0]));
+        appendText(dom, e, "end", String.valueOf(range[1]));
+        parent.appendChild(e);
+    }
+
+    public String getName() {return name;}
+
+    public float[] getAngles() {return angles.clone();}
+
+    public float[] getDistances() {return distances.clone();}
+
+    public boolean getFlipAngles() {return flipAngles;}
+
+    public boolean getMirrorAngles() {return mirrorAngles;}
+
+    public float[] getLutRange() {return lutRange.clone();}
+
+    @Override
+    public String toString() {
+        return "Angle(rad): " + angles[0] + " to " + angles[1] + ", Distance: " + distances[0] + " to " + distances[1] +
+                ", Flip Angle: " + flipAngles + ", Mirror Angle: " + mirrorAngles + ", LUT: " + lutRange[0] + " to " + lutRange[1];
+    }
+}
@@ -0,0 +1,74 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the token that stops a run part way through.
+A run is stopped when Esc is pressed, when the thread that started it is interrupted, when its time limit has passed,
+or when cancel() is called. Every stage checks the token between frames, batches or blocks:
+worker threads simply stop taking new work, after which the thread of the run calls check(),
+which throws a CancelledException that ends the run. Once stopped, a token stays stopped.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.IJ;
+
+public class CancellationToken {
+
+    public static class CancelledException extends RuntimeException {
+        CancelledException(String reason) {
+            super(reason);
+        }
+    }
+
+    // For code that is used outside of a run, never stops
+    public static final CancellationToken NONE = new CancellationToken(0) {
+        @Override
+        public boolean isCancelled() { return false; }
+    };
+
+    private final Thread owner;
+    private final long deadline; // System.nanoTime(), or Long.MAX_VALUE without a time limit
+    private final int timeLimit;
+    private volatile String reason = null;
+
+    public CancellationToken(int timeLimit) {
+        // The time limit is in seconds, 0 = none
+        this.owner = Thread.currentThread();
+        this.timeLimit = timeLimit;
+        this.deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1000000000L : Long.MAX_VALUE;
+    }
+
+    public void cancel(String why) {
+        if (reason == null) reason = why;
+    }
+
+    public boolean isCancelled() {
+        if (reason != null) return true;
+        if (IJ.escapePressed()) cancel("Esc was pressed");
+        else if (owner.isInterrupted()) cancel("interrupted");
+        else if (System.nanoTime() > deadline) cancel("the time limit of " + timeLimit + " s has passed");
+        return reason != null;
+    }
+
+    public void check() {
+        // Called by the thread of the run, ends the run when it was stopped
+        if (isCancelled()) throw new CancelledException(reason);
+    }
+
+    public String getReason() { return reason; }
+}
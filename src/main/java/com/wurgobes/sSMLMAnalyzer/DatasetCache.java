@@ -0,0 +1,152 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the session cache of loaded localisation files, shared by every run for as long as ImageJ runs.
+A macro that runs Analyze Pairs many times on the same file then only loads it the first time.
+Files are kept under their real path, size and modification time, so a file that changed is loaded again.
+Along with the table the frame indexes made for it are kept, one per frame column.
+The least recently used files are removed once the total is over the memory budget, except for pinned files.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public class DatasetCache {
+
+    private static class Dataset {
+        final LocalisationTable table;
+        final Map<Integer, FrameIndex> frameIndexes = new HashMap<>(); // By frame column of the table
+        long bytes;
+        boolean pinned = false;
+
+        Dataset(LocalisationTable table) {
+            this.table = table;
+            this.bytes = table.memoryBytes();
+        }
+    }
+
+    // In access order, so the first entry is the least recently used
+    private static final LinkedHashMap<String, Dataset> datasets = new LinkedHashMap<>(16, 0.75f, true);
+    private static long totalBytes = 0;
+    private static long budget = Runtime.getRuntime().maxMemory() / 4;
+
+    public static String key(String filePath) throws IOException {
+        // The real path (without links or ..), size and modification time of the file
+        Path path = Paths.get(filePath).toRealPath();
+        return path + " " + Files.size(path) + " " + Files.getLastModifiedTime(path).toMillis();
+    }
+
+    public static synchronized LocalisationTable get(String key) {
+        Dataset dataset = datasets.get(key);
+        return dataset == null ? null : dataset.table;
+    }
+
+    public static synchronized boolean put(String key, LocalisationTable table, boolean pinned) {
+        // Returns false if the table is larger than the whole budget, in which case it is only kept when pinned
+        Dataset old = datasets.remove(key);
+        if (old != null) totalBytes -= old.bytes;
+
+        Dataset dataset = new Dataset(table);
+        dataset.pinned = pinned || (old != null && old.pinned);
+        if (dataset.bytes > budget && !dataset.pinned) return false;
+
+        datasets.put(key, dataset);
+        totalBytes += dataset.bytes;
+        evict(key);
+        return true;
+    }
+
+    public static FrameIndex frames(String key, int frameColumn, Supplier<FrameIndex> build) {
+        // The frame index of a cached table, made only once even when several runs ask for it at the same time
+        // It is built under the lock of its dataset, so runs on other files are not held up meanwhile
+        final Dataset dataset;
+        synchronized (DatasetCache.class) {
+            dataset = datasets.get(key);
+        }
+        if (dataset == null) return build.get();
+
+        synchronized (dataset) {
+            FrameIndex frames = dataset.frameIndexes.get(frameColumn);
+            if (frames != null) return frames;
+            frames = build.get();
+            dataset.frameIndexes.put(frameColumn, frames);
+
+            synchronized (DatasetCache.class) {
+                dataset.bytes += frames.memoryBytes();
+                if (datasets.get(key) == dataset) {
+                    totalBytes += frames.memoryBytes();
+                    evict(key);
+                }
+            }
+            return frames;
+        }
+    }
+
+    public static synchronized void pin(String key, boolean pinned) {
+        Dataset dataset = datasets.get(key);
+        if (dataset != null) dataset.pinned = pinned;
+        if (!pinned) evict(null);
+    }
+
+    public static synchronized boolean isPinned(String key) {
+        Dataset dataset = datasets.get(key);
+        return dataset != null && dataset.pinned;
+    }
+
+    public static synchronized void remove(String key) {
+        Dataset dataset = datasets.remove(key);
+        if (dataset != null) totalBytes -= dataset.bytes;
+    }
+
+    public static synchronized void clear() {
+        // Also removes pinned files
+        datasets.clear();
+        totalBytes = 0;
+    }
+
+    public static synchronized void setBudget(long bytes) {
+        budget = bytes;
+        evict(null);
+    }
+
+    public static synchronized long getBudget() { return budget; }
+
+    public static synchronized long getBytes() { return totalBytes; }
+
+    public static synchronized int size() { return datasets.size(); }
+
+    private static void evict(String keep) {
+        // Removes the least recently used files that are not pinned (nor the one just used) until the total fits the budget
+        Iterator<Map.Entry<String, Dataset>> it = datasets.entrySet().iterator();
+        while (totalBytes > budget && it.hasNext()) {
+            Map.Entry<String, Dataset> entry = it.next();
+            if (entry.getValue().pinned || entry.getKey().equals(keep)) continue;
+            totalBytes -= entry.getValue().bytes;
+            it.remove();
+        }
+    }
+}
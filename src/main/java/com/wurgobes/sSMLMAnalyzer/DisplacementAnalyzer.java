@@ -0,0 +1,403 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This program estimates the angle of the grating and the distance between the orders directly from the localisations.
+It is an alternative to the FFT based AngleAnalyzer.
+
+A sample of frames is taken and in each frame every displacement vector between two points closer than a maximum radius is collected.
+The vectors always point from the brighter to the dimmer point, so the 0th->1st order vectors all point in the same direction.
+These are binned into a polar 2D histogram (angle x distance), which is filled in parallel, one histogram per thread.
+
+Random (non-pair) vectors are spread evenly over all angles, so the angle of the grating is the peak of the angle profile.
+The distance of each order is then read from the peaks of the distance profile within that angle,
+after subtracting the background measured at all other angles.
+
+Because it works on the coordinates themselves it does not depend on the size of the field of view
+or on how the points are scaled into an image, and its cost only depends on the number of frames sampled.
+
+In progressive mode random batches of frames are added to the histogram until the 95% confidence intervals
+of the angle and the distance are smaller than the tolerances, or the maximum amount of frames is reached.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.IJ;
+
+import org.scijava.log.LogService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DisplacementAnalyzer {
+
+    private final LogService logService; // Passed through by instantiated class
+
+    private final LocalisationTable data; // All localisations (frame, x, y, z, intensity)
+    private final FrameIndex frameIndex;
+
+    // The settings as set
+    private final boolean flipAngles;
+    private final boolean mirrorAngles;
+    private final int sampleSize; // amount of frames to sample
+    private final int coreCount;
+    private final float maxRadius;
+
+    // Polar histogram, angle major: histogram[a * distanceBins + d]
+    // 0.5 degree angle bins over [-Pi, Pi) and the radius split in 400 bins
+    private static final int angleBins = 720;
+    private static final int distanceBins = 400;
+    private final long[] histogram = new long[angleBins * distanceBins];
+    private long vectors = 0;
+    private int framesUsed = 0;
+
+    // Vectors shorter than this (in bins) are mostly multiple fits of the same emitter and are ignored
+    private static final int minDistanceBin = distanceBins / 20;
+
+    // Results of angles and distances
+    private double angle_low;
+    private double angle_high;
+
+    private double dist_low;
+    private double dist_high;
+
+    private final List<double[]> orderDistances = new ArrayList<>();
+
+    // Standard errors of the angle (rad) and the first distance peak
+    private double angleError = Double.POSITIVE_INFINITY;
+    private double distanceError = Double.POSITIVE_INFINITY;
+
+    // Indicates if features were found
+    private boolean success = false;
+    private CancellationToken cancellation = CancellationToken.NONE;
+
+    public DisplacementAnalyzer(LocalisationTable data, FrameIndex frameIndex, float maxRadius, int sampleSize, boolean flipAngles, boolean mirrorAngles, int coreCount, LogService logService){
+        this.data = data;
+        this.frameIndex = frameIndex;
+        this.sampleSize = sampleSize;
+        this.flipAngles = flipAngles;
+        this.mirrorAngles = mirrorAngles;
+        this.coreCount = coreCount;
+        this.logService = logService;
+
+        // Same reference size as AngleAnalyzer uses for its cutoffs, pairs are never further apart than 10% of it
+        if (maxRadius > 0) {
+            this.maxRadius = maxRadius;
+        } else {
+            float averageSize = (data.max(1) + data.max(2)) / 2;
+            this.maxRadius = 0.1f * averageSize;
+        }
+    }
+
+    public void setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    public void run() {
+        logService.info("Analysing Angles and Distances from displacement vectors");
+
+        double processingTime = System.nanoTime();
+
+        accumulate(sampleFrames(new Random(0), sampleSize));
+        estimate(true);
+
+        processingTime = System.nanoTime() - processingTime;
+        logService.info("Calculating Angles and Distances took " + String.format("%.3f", processingTime / 1000000000) + " s");
+    }
+
+    public void runProgressive(int batchSize, double angleTolerance, double distanceTolerance) {
+        // Adds random batches of frames until the estimates are precise enough
+        logService.info("Progressively analysing Angles and Distances from displacement vectors");
+
+        double processingTime = System.nanoTime();
+
+        final int[] framePositions = sampleFrames(new Random(0), sampleSize);
+        batchSize = Math.max(1, batchSize);
+
+        for (int start = 0; start < framePositions.length; start += batchSize) {
+            accumulate(Arrays.copyOfRange(framePositions, start, Math.min(start + batchSize, framePositions.length)));
+
+            // A single batch can look converged by chance, so always take at least two
+            if (estimate(false) && start > 0
+                    && 1.96 * angleError < angleTolerance && 1.96 * distanceError < distanceTolerance) break;
+        }
+
+        estimate(true);
+        logService.info("Used " + framesUsed + " of " + frameIndex.size() + " frames. 95% confidence interval: angle +/-" +
+                String.format("%.4f", 1.96 * angleError) + " rad, distance +/-" + String.format("%.2f", 1.96 * distanceError));
+
+        processingTime = System.nanoTime() - processingTime;
+        logService.info("Calculating Angles and Distances took " + String.format("%.3f", processingTime / 1000000000) + " s");
+    }
+
+    private int[] sampleFrames(Random random, int count) {
+        // Picks count frames at random (partial Fisher-Yates shuffle), or all of them if there are fewer
+        int[] positions = new int[frameIndex.size()];
+        for (int i = 0; i < positions.length; i++) positions[i] = i;
+        count = Math.min(count, positions.length);
+
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(positions.length - i);
+            int temp = positions[i];
+            positions[i] = positions[j];
+            positions[j] = temp;
+        }
+        return Arrays.copyOf(positions, count);
+    }
+
+    private void accumulate(final int[] framePositions) {
+        // Fill the polar histogram with all displacement vectors of the given frames
+        // Each thread has its own histogram, these are summed at the end
+        final AtomicInteger ai = new AtomicInteger(0);
+        final long[][] threadHistograms = new long[coreCount][];
+        final long[] threadVectors = new long[coreCount];
+
+        final float radius = maxRadius;
+
+        WorkerPool.run(coreCount, ithread -> {
+            final long[] hist = new long[angleBins * distanceBins];
+            threadHistograms[ithread] = hist;
+
+            for (int i = ai.getAndIncrement(); i < framePositions.length && !cancellation.isCancelled(); i = ai.getAndIncrement()) {
+                if (i % 100 == 0) IJ.showProgress(i, framePositions.length);
+
+                final long[] frameRows = frameIndex.getRows(framePositions[i]);
+                final int n = frameRows.length;
+                final float[] x = new float[n];
+                final float[] y = new float[n];
+                final float[] intensity = new float[n];
+                for (int j = 0; j < n; j++) {
+                    x[j] = data.get(frameRows[j], 1);
+                    y[j] = data.get(frameRows[j], 2);
+                    intensity[j] = data.get(frameRows[j], 4);
+                }
+
+                new SpatialGrid(x, y, n, radius).visitPairs(radius, (a, b, dx, dy) -> {
+                    // Point from the brighter to the dimmer point
+                    if (intensity[b] > intensity[a]) {
+                        dx = -dx;
+                        dy = -dy;
+                    }
+                    double angle = Math.atan2(dy, dx);
+                    if (flipAngles) angle = angle >= 0 ? angle - Math.PI : angle + Math.PI;
+                    if (mirrorAngles) angle *= -1;
+
+                    int angleBin = Math.min(angleBins - 1, (int) ((angle + Math.PI) / (2 * Math.PI) * angleBins));
+                    int distanceBin = Math.min(distanceBins - 1, (int) (Math.sqrt(dx * dx + dy * dy) / radius * distanceBins));
+                    hist[angleBin * distanceBins + distanceBin]++;
+                    threadVectors[ithread]++;
+                });
+            }
+        });
+        cancellation.check();
+
+        for (int t = 0; t < coreCount; t++) {
+            for (int k = 0; k < histogram.length; k++) histogram[k] += threadHistograms[t][k];
+            vectors += threadVectors[t];
+        }
+        framesUsed += framePositions.length;
+    }
+
+    private boolean estimate(boolean report) {
+        success = false;
+        orderDistances.clear();
+        angleError = Double.POSITIVE_INFINITY;
+        distanceError = Double.POSITIVE_INFINITY;
+
+        // Angle profile (summed over distance), smoothed over 2.5 degrees
+        double[] angleProfile = new double[angleBins];
+        for (int a = 0; a < angleBins; a++) {
+            for (int d = minDistanceBin; d < distanceBins; d++) angleProfile[a] += histogram[a * distanceBins + d];
+        }
+        double[] smoothAngles = smooth(angleProfile, 2, true);
+
+        int peak = argMax(smoothAngles, 0, angleBins);
+        double background = median(smoothAngles);
+        double height = smoothAngles[peak] - background;
+
+        // The peak has to stand out from the random vectors
+        if (height < 5 * Math.sqrt(Math.max(background, 1))) {
+            if (report) logService.info("No preferred direction found in the displacement vectors (" + vectors + " vectors in " + framesUsed + " frames)");
+            return false;
+        }
+
+        // Weighted mean and standard deviation of the peak above the background
+        double weight = 0, mean = 0, variance = 0;
+        for (int side = -1; side <= 1; side += 2) {
+            for (int k = (side == 1 ? 1 : 0); k < angleBins / 4; k++) {
+                int a = Math.floorMod(peak + side * k, angleBins);
+                double value = angleProfile[a] - background;
+                if (smoothAngles[a] - background < 0.1 * height) break;
+                if (value <= 0) continue;
+                double offset = side * k;
+                weight += value;
+                mean += value * offset;
+                variance += value * offset * offset;
+            }
+        }
+        mean /= weight;
+        variance = variance / weight - mean * mean;
+
+        double binWidth = 2 * Math.PI / angleBins;
+        double angle = -Math.PI + (peak + 0.5 + mean) * binWidth;
+        double std = Math.sqrt(Math.max(variance, 0)) * binWidth;
+        angleError = std / Math.sqrt(weight);
+
+        if (angle >= Math.PI) angle -= 2 * Math.PI;
+        if (angle < -Math.PI) angle += 2 * Math.PI;
+
+        // Same limits as AngleAnalyzer, the spread of a single grating can not realistically be very large or small
+        if (std > 0.2) {
+            if (report) logService.info("Standard Deviation (" + std + ") seems really high." + " Lowering to 0.2 ");
+            std = 0.2;
+        } else if (std < 0.04) std = 0.04;
+
+        angle_low = angle - 2.5 * std;
+        angle_high = angle + 2.5 * std;
+        if (angle_low < -Math.PI) angle_low += 2 * Math.PI;
+        if (angle_high > Math.PI) angle_high -= 2 * Math.PI;
+
+        // Distance profile inside the angle window, minus the background from all other directions
+        // The opposite direction is excluded from the background since it holds the pairs where the intensity order flipped
+        int halfWindow = (int) Math.ceil(2.5 * std / binWidth);
+        int centreBin = Math.min(angleBins - 1, (int) ((angle + Math.PI) / binWidth));
+        int windowBins = 0, backgroundBins = 0;
+        double[] radial = new double[distanceBins];
+        double[] radialBackground = new double[distanceBins];
+
+        for (int a = 0; a < angleBins; a++) {
+            int offset = Math.abs(Math.floorMod(a - centreBin + angleBins / 2, angleBins) - angleBins / 2);
+            if (offset <= halfWindow) {
+                windowBins++;
+                for (int d = 0; d < distanceBins; d++) radial[d] += histogram[a * distanceBins + d];
+            } else if (offset > 2 * halfWindow && offset < angleBins / 2 - 2 * halfWindow) {
+                backgroundBins++;
+                for (int d = 0; d < distanceBins; d++) radialBackground[d] += histogram[a * distanceBins + d];
+            }
+        }
+
+        double[] corrected = new double[distanceBins];
+        for (int d = 0; d < distanceBins; d++) {
+            radialBackground[d] *= backgroundBins > 0 ? (double) windowBins / backgroundBins : 0;
+            corrected[d] = radial[d] - radialBackground[d];
+        }
+        double[] smoothDistances = smooth(corrected, 1, false);
+
+        double maxValue = smoothDistances[argMax(smoothDistances, minDistanceBin, distanceBins)];
+        double distanceBinWidth = maxRadius / distanceBins;
+        int neighbourhood = distanceBins / 40;
+
+        // Each order shows up as a peak, at (roughly) multiples of the first distance
+        for (int d = minDistanceBin; d < distanceBins; d++) {
+            double value = smoothDistances[d];
+            if (value < 0.1 * maxValue || value < 5 * Math.sqrt(radialBackground[d] + 1)) continue;
+            if (argMax(smoothDistances, Math.max(minDistanceBin, d - neighbourhood), Math.min(distanceBins, d + neighbourhood + 1)) != d) continue;
+
+            // Full width at half maximum around the peak
+            int left = d, right = d;
+            while (left > minDistanceBin && smoothDistances[left - 1] > value / 2) left--;
+            while (right < distanceBins - 1 && smoothDistances[right + 1] > value / 2) right++;
+
+            double peakWeight = 0, peakMean = 0;
+            for (int k = left; k <= right; k++) {
+                peakWeight += Math.max(corrected[k], 0);
+                peakMean += Math.max(corrected[k], 0) * (k + 0.5);
+            }
+            double centre = (peakWeight > 0 ? peakMean / peakWeight : d + 0.5) * distanceBinWidth;
+            double sigma = (right - left + 1) * distanceBinWidth / 2.355;
+            double halfWidth = Math.max(2.5 * sigma, 0.05 * centre);
+
+            if (orderDistances.isEmpty()) distanceError = sigma / Math.sqrt(Math.max(peakWeight, 1));
+            orderDistances.add(new double[]{centre - halfWidth, centre + halfWidth});
+        }
+
+        if (orderDistances.size() > 0) {
+            success = true;
+            dist_low = orderDistances.get(0)[0];
+            dist_high = orderDistances.get(0)[1];
+        }
+
+        if (!report) return success;
+
+        if (success) {
+            logService.info("Angle: " + angle_low + "-" + angle_high);
+            logService.info("Distance: " + Math.round(dist_low) + "-" + Math.round(dist_high));
+            for (int i = 1; i < orderDistances.size(); i++) {
+                logService.info("Peak " + (i + 1) + " distance: " + Math.round(orderDistances.get(i)[0]) + "-" + Math.round(orderDistances.get(i)[1]));
+            }
+        } else {
+            logService.info("No distance peaks found in the displacement vectors");
+        }
+        logService.info("Used " + vectors + " displacement vectors from " + framesUsed + " frames");
+
+        return success;
+    }
+
+    private static double[] smooth(double[] values, int halfWidth, boolean circular) {
+        // Moving average
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            double sum = 0;
+            int count = 0;
+            for (int k = i - halfWidth; k <= i + halfWidth; k++) {
+                if (circular) {
+                    sum += values[Math.floorMod(k, values.length)];
+                    count++;
+                } else if (k >= 0 && k < values.length) {
+                    sum += values[k];
+                    count++;
+                }
+            }
+            result[i] = sum / count;
+        }
+        return result;
+    }
+
+    private static int argMax(double[] values, int from, int to) {
+        int index = from;
+        for (int i = from + 1; i < to; i++) if (values[i] > values[index]) index = i;
+        return index;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public float[] getAngles(){
+        return new float[]{(float) angle_low, (float)  angle_high };
+    }
+
+    public float[] getDistances(){
+        return new float[]{Math.round(dist_low), Math.round(dist_high)};
+    }
+
+    public List<double[]> getOrderDistances() {return orderDistances;}
+
+    public int getFramesUsed() {return framesUsed;}
+
+    public double getAngleError() {return angleError;}
+
+    public double getDistanceError() {return distanceError;}
+
+    public boolean getSuccess() {return success;}
+
+}
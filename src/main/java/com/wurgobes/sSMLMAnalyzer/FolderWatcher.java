@@ -0,0 +1,349 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the folder watcher: it keeps running and analyses every localisation file that appears in a folder.
+A file is only started once it has stopped growing, so files that are still being copied or written are left alone.
+The settings are the macro options of Analyze Pairs, plus a calibration profile that is chosen by the file name.
+Every file gets its own result folder, and a file whose result folder already has an info.xml is skipped,
+so the watcher can be stopped and started again without redoing any work.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.IJ;
+import ij.Macro;
+import ij.gui.GenericDialog;
+import net.imagej.lut.LUTService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Plugin(type = Command.class, menuPath = "Plugins>Spectral Analyzer>Watch Folder")
+public class FolderWatcher implements Command {
+
+    @Parameter
+    private LogService logService;
+
+    @Parameter
+    private LUTService lutService;
+
+    private String folder = "";
+    private String outputFolder = ""; // Empty for a results folder inside the watched folder
+    private String pattern = "*.csv"; // Which files to analyse, as a glob on the file name
+    private String profiles = ""; // glob=profile pairs separated by ;, the first glob that matches the file name is used
+    private String options = ""; // Any other Analyze Pairs macro options, used for every file
+    private int threads = 2; // Files analysed at the same time
+    private int settle = 10; // Seconds a file must not have changed before it is analysed
+    private int idleExit = 0; // Stop after this many seconds with nothing to do, 0 = only on escape
+    private int timeout = 0; // Seconds after which a file is given up on, so it does not hold up the rest, 0 = never
+
+    private static class Candidate {
+        long size;
+        long modified;
+        long lastChange; // When size or modified last changed (ms)
+
+        Candidate(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+            this.lastChange = System.currentTimeMillis();
+        }
+    }
+
+    private final Map<Path, Candidate> waiting = new HashMap<>(); // Files seen that are not started yet
+    private final Set<Path> running = Collections.synchronizedSet(new HashSet<>()); // Files started, or ready to be
+    private final Queue<Path> ready = new ConcurrentLinkedQueue<>(); // Settled files no task took yet
+    private final AtomicInteger analysers = new AtomicInteger(0); // Tasks taking files from ready
+    private final List<WorkerPool.Tasks> started = new ArrayList<>();
+    private final AtomicInteger finished = new AtomicInteger(0);
+    private final Map<Path, Long> failed = Collections.synchronizedMap(new HashMap<>()); // Files that failed, with their modified time then
+
+    private boolean setup() {
+        String arg = Macro.getOptions();
+        if (arg != null && !arg.equals("")) {
+            folder = Macro.getValue(arg, "folder", folder);
+            outputFolder = Macro.getValue(arg, "output", outputFolder);
+            pattern = Macro.getValue(arg, "pattern", pattern);
+            profiles = Macro.getValue(arg, "profiles", profiles);
+            options = Macro.getValue(arg, "options", options);
+            try {
+                threads = Integer.parseInt(Macro.getValue(arg, "threads", String.valueOf(threads)));
+                settle = Integer.parseInt(Macro.getValue(arg, "settle", String.valueOf(settle)));
+                idleExit = Integer.parseInt(Macro.getValue(arg, "idle_exit", String.valueOf(idleExit)));
+                timeout = Integer.parseInt(Macro.getValue(arg, "timeout", String.valueOf(timeout)));
+            } catch (NumberFormatException e) {
+                logService.error("Malformed number: " + e.getMessage());
+                return false;
+            }
+        } else {
+            GenericDialog gd = new GenericDialog("Watch Folder");
+            gd.addStringField("Folder to watch", folder, 40);
+            gd.addStringField("Result folder (empty = <folder>/results)", outputFolder, 40);
+            gd.addStringField("Files to analyse", pattern, 15);
+            gd.addStringField("Profiles (glob=profile;...)", profiles, 40);
+            gd.addStringField("Analyze Pairs options", options, 40);
+            gd.addNumericField("Files at the same time", threads);
+            gd.addToSameRow();
+            gd.addNumericField("Unchanged for (s)", settle);
+            gd.addNumericField("Stop when idle for (s, 0 = Esc only)", idleExit);
+            gd.addToSameRow();
+            gd.addNumericField("Time limit per file (s, 0 = none)", timeout);
+            gd.addMessage("Every file gets a result folder with its name. Files whose result folder has an info.xml are skipped.\n" +
+                    "The options are Analyze Pairs macro options, for example: order_number=3 distance_start=1800 distance_end=2200");
+            gd.showDialog();
+            if (gd.wasCanceled()) return false;
+
+            folder = gd.getNextString();
+            outputFolder = gd.getNextString();
+            pattern = gd.getNextString();
+            profiles = gd.getNextString();
+            options = gd.getNextString();
+            threads = (int) gd.getNextNumber();
+            settle = (int) gd.getNextNumber();
+            idleExit = (int) gd.getNextNumber();
+            timeout = (int) gd.getNextNumber();
+        }
+
+        if (folder.equals("") || !Files.isDirectory(Paths.get(folder))) {
+            logService.error("The folder to watch does not exist: " + folder);
+            return false;
+        }
+        if (outputFolder.equals("")) outputFolder = Paths.get(folder, "results").toString();
+        threads = Math.max(1, threads);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        if (!setup()) return;
+
+        final Path directory = Paths.get(folder);
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        logService.info("Watching " + directory + " for " + pattern + ", results in " + outputFolder + ". Press Esc to stop.");
+        IJ.resetEscape();
+
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            // Files that were already there (or were added while the watcher was not running)
+            rescan(directory, matcher);
+            long lastActivity = System.currentTimeMillis();
+
+            while (!IJ.escapePressed()) {
+                WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            rescan(directory, matcher); // Events were lost, so look at everything again
+                        } else {
+                            Path file = directory.resolve((Path) event.context());
+                            if (matcher.matches(file.getFileName())) see(file);
+                        }
+                    }
+                    if (!key.reset()) {
+                        logService.error("The folder " + directory + " can no longer be watched.");
+                        break;
+                    }
+                }
+
+                // Start every file that has not changed for settle seconds
+                for (Path file : settled()) {
+                    running.add(file);
+                    ready.add(file);
+                }
+                startAnalysers();
+
+                if (!waiting.isEmpty() || !running.isEmpty()) lastActivity = System.currentTimeMillis();
+                if (idleExit > 0 && System.currentTimeMillis() - lastActivity > idleExit * 1000L) {
+                    logService.info("Nothing new for " + idleExit + " s.");
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            logService.error("Could not watch " + directory + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Files that did not start yet are left for the next time the watcher runs
+            for (Path file = ready.poll(); file != null; file = ready.poll()) running.remove(file);
+            // Esc also cancels the files that are being analysed, otherwise they are finished first
+            if (!running.isEmpty()) {
+                if (IJ.escapePressed()) logService.info("Esc also stops the " + running.size() + " file(s) being analysed, they are tried again the next time the watcher runs");
+                else logService.info("Waiting for " + running.size() + " file(s) to finish");
+            }
+            try {
+                for (WorkerPool.Tasks tasks : started) tasks.join();
+                started.clear();
+            } catch (RuntimeException e) {
+                for (WorkerPool.Tasks tasks : started) tasks.cancel();
+                if (e.getCause() instanceof InterruptedException) Thread.currentThread().interrupt();
+                else logService.error("Analysing stopped: " + e);
+            }
+        }
+        logService.info("Stopped watching " + directory + ", analysed " + finished.get() + " file(s).");
+    }
+
+    private void startAnalysers() {
+        // At most threads files at a time, each in a task of WorkerPool so a file and its stages never use more than its threads
+        // A task that finds ready empty stops, so a file added just then waits for the next call
+        started.removeIf(WorkerPool.Tasks::isDone);
+        while (!ready.isEmpty() && analysers.get() < threads) {
+            analysers.incrementAndGet();
+            started.add(WorkerPool.start(1, ithread -> {
+                try {
+                    // Esc stops the watcher, so no new file is started after it
+                    for (Path file = nextReady(); file != null; file = nextReady()) {
+                        try {
+                            analyse(file);
+                        } finally {
+                            running.remove(file);
+                            finished.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    analysers.decrementAndGet();
+                }
+            }));
+        }
+    }
+
+    private Path nextReady() {
+        return IJ.escapePressed() ? null : ready.poll();
+    }
+
+    private void rescan(Path directory, PathMatcher matcher) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) see(file);
+            }
+        }
+    }
+
+    private void see(Path file) {
+        // Remembers a new or changed file, unless it is done already or being analysed
+        if (running.contains(file) || Files.exists(resultFolder(file).resolve("info.xml"))) return;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long modified = attributes.lastModifiedTime().toMillis();
+            Long failedAt = failed.get(file);
+            if (failedAt != null && failedAt == modified) return; // Only tried again once the file changes
+            Candidate candidate = waiting.get(file);
+            if (candidate == null) {
+                waiting.put(file, new Candidate(attributes.size(), modified));
+            } else if (candidate.size != attributes.size() || candidate.modified != modified) {
+                candidate.size = attributes.size();
+                candidate.modified = modified;
+                candidate.lastChange = System.currentTimeMillis();
+            }
+        } catch (IOException e) {
+            waiting.remove(file); // Deleted or moved again
+        }
+    }
+
+    private List<Path> settled() {
+        // The waiting files that did not change in the last settle seconds
+        // The size is checked again here, as not every file system reports each write
+        List<Path> ready = new ArrayList<>();
+        Iterator<Map.Entry<Path, Candidate>> it = waiting.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Candidate> entry = it.next();
+            Path file = entry.getKey();
+            Candidate candidate = entry.getValue();
+            try {
+                long size = Files.size(file);
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                if (size != candidate.size || modified != candidate.modified) {
+                    candidate.size = size;
+                    candidate.modified = modified;
+                    candidate.lastChange = System.currentTimeMillis();
+                } else if (size > 0 && System.currentTimeMillis() - candidate.lastChange >= settle * 1000L) {
+                    ready.add(file);
+                    it.remove();
+                }
+            } catch (IOException e) {
+                it.remove();
+            }
+        }
+        return ready;
+    }
+
+    private Path resultFolder(Path file) {
+        String name = file.getFileName().toString();
+        if (name.toLowerCase().endsWith(".gz")) name = name.substring(0, name.length() - 3);
+        int dot = name.lastIndexOf('.');
+        return Paths.get(outputFolder, dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    private String profileFor(Path file) {
+        // The profile of the first glob=profile pair whose glob matches the file name, or "" if none does
+        for (String rule : profiles.split(";")) {
+            int split = rule.lastIndexOf('=');
+            if (split <= 0) continue;
+            String glob = rule.substring(0, split).trim();
+            if (FileSystems.getDefault().getPathMatcher("glob:" + glob).matches(file.getFileName()))
+                return rule.substring(split + 1).trim();
+        }
+        return "";
+    }
+
+    private void analyse(Path file) {
+        Path results = resultFolder(file);
+        try {
+            Files.createDirectories(results);
+        } catch (IOException e) {
+            logService.error("Could not create " + results + ": " + e.getMessage());
+            return;
+        }
+
+        String profile = profileFor(file);
+        // Every file is different, so nothing is kept for a next run (unless the options ask for it)
+        String arguments = "csv_in='" + file + "' csv_out='" + results + "' stage_cache=off session_cache=clear" +
+                (profile.equals("") ? "" : " calibration_profile='" + profile + "'") +
+                (timeout > 0 ? " timeout=" + timeout : "") +
+                (options.equals("") ? "" : " " + options);
+        logService.info("Analysing " + file.getFileName() + (profile.equals("") ? "" : " with profile " + profile));
+
+        long start = System.nanoTime();
+        try {
+            new sSMLMA<>().run(arguments, logService, lutService);
+        } catch (Exception e) {
+            logService.error("Analysing " + file.getFileName() + " failed: " + e);
+        }
+
+        // The run only writes its info.xml once all results are written
+        if (Files.exists(results.resolve("info.xml"))) {
+            failed.remove(file);
+            logService.info("Finished " + file.getFileName() + " in " + String.format("%.1f", (System.nanoTime() - start) / 1e9) + " s");
+        } else if (IJ.escapePressed()) {
+            logService.info("Stopped " + file.getFileName() + ", it is tried again the next time the watcher runs.");
+        } else {
+            try {
+                failed.put(file, Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException ignored) {}
+            logService.error("No results for " + file.getFileName() + ", it is tried again once it changes.");
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains an index of which rows of the localisation table belong to which frame.
+It is built once in a single pass (or a single sort when the input is not sorted by frame)
+so later stages do not need to scan the whole frame column for every frame.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.util.Arrays;
+
+public class FrameIndex {
+
+    private final int[] frames;   // distinct frame numbers, ascending
+    private final long[] offsets; // rows of frame i are order[offsets[i]] up to order[offsets[i + 1]]
+    private final int[] order;    // row indices grouped per frame, null if the table was already sorted by frame
+
+    public FrameIndex(final LocalisationTable data, int frameColumn) {
+        final long rows = data.rows();
+
+        // Most localisation software writes the frames in order, in which case no sorting is needed
+        boolean sorted = true;
+        for (long r = 1; r < rows && sorted; r++) {
+            if ((int) data.get(r, frameColumn) < (int) data.get(r - 1, frameColumn)) sorted = false;
+        }
+
+        if (sorted) {
+            order = null;
+        } else {
+            // Grouping the rows needs an array of all of them, so this is only possible below 2^31 rows
+            if (rows > Integer.MAX_VALUE - 8)
+                throw new IllegalArgumentException("Tables of more than 2^31 localisations have to be sorted by frame");
+            // Pack frame and row together so one primitive sort groups the rows and keeps their original order
+            long[] keys = new long[(int) rows];
+            for (int r = 0; r < rows; r++) keys[r] = ((long) (int) data.get(r, frameColumn) << 32) | r;
+            Arrays.sort(keys);
+            order = new int[(int) rows];
+            for (int r = 0; r < rows; r++) order[r] = (int) keys[r];
+        }
+
+        int distinct = rows > 0 ? 1 : 0;
+        for (long r = 1; r < rows; r++) {
+            if (frameAt(data, frameColumn, r) != frameAt(data, frameColumn, r - 1)) distinct++;
+        }
+
+        frames = new int[distinct];
+        offsets = new long[distinct + 1];
+        int f = -1;
+        for (long r = 0; r < rows; r++) {
+            if (r == 0 || frameAt(data, frameColumn, r) != frameAt(data, frameColumn, r - 1)) {
+                frames[++f] = frameAt(data, frameColumn, r);
+                offsets[f] = r;
+            }
+        }
+        offsets[distinct] = rows;
+    }
+
+    private int frameAt(final LocalisationTable data, int frameColumn, long position) {
+        // Frame number of the row at this position in the grouped order
+        return (int) data.get(row(position), frameColumn);
+    }
+
+    private long row(long position) {
+        return order == null ? position : order[(int) position];
+    }
+
+    public int size() { return frames.length; }
+
+    public long memoryBytes() { return frames.length * 4L + offsets.length * 8L + (order == null ? 0 : order.length * 4L); }
+
+    public int getFrame(int i) { return frames[i]; }
+
+    public int[] getFrames() { return frames.clone(); }
+
+    public int getCount(int i) { return (int) (offsets[i + 1] - offsets[i]); }
+
+    public int getMaxCount() {
+        int max = 0;
+        for (int i = 0; i < frames.length; i++) max = Math.max(max, getCount(i));
+        return max;
+    }
+
+    public int[] batches(long maxRows) {
+        // Splits the frames into consecutive ranges of at most maxRows localisations (but at least one frame each)
+        // Range j is frame positions result[j] up to result[j + 1]
+        int[] starts = new int[frames.length + 1];
+        int count = 0;
+        long inBatch = 0;
+        for (int i = 0; i < frames.length; i++) {
+            if (i == 0 || inBatch + getCount(i) > maxRows) {
+                starts[count++] = i;
+                inBatch = 0;
+            }
+            inBatch += getCount(i);
+        }
+        starts[count++] = frames.length;
+        return Arrays.copyOf(starts, count);
+    }
+
+    public long[] getRows(int i) {
+        // All row indices in the table for the i'th frame (not the frame number)
+        long[] result = new long[getCount(i)];
+        for (int j = 0; j < result.length; j++) result[j] = row(offsets[i] + j);
+        return result;
+    }
+}
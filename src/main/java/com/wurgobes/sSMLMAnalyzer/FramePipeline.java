@@ -0,0 +1,212 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the pipeline used when streaming a file that is sorted by frame.
+One thread reads batches of whole frames into a bounded queue, the worker threads each take a batch and process it,
+and the calling thread hands the results to the sink in the order the batches were read.
+A worker that gets too far ahead of the sink waits, so only a fixed window of batches is ever in memory,
+however large the file is.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class FramePipeline<B, R> {
+
+    public interface Source<B> {
+        B next() throws IOException; // null when there is nothing left
+    }
+
+    public interface Worker<B, R> {
+        R process(B batch);
+    }
+
+    public interface Sink<R> {
+        void accept(R result) throws IOException;
+    }
+
+    private static class Item<B> {
+        final long sequence;
+        final B batch;
+
+        Item(long sequence, B batch) {
+            this.sequence = sequence;
+            this.batch = batch;
+        }
+    }
+
+    private final Source<B> source;
+    private final Worker<B, R> worker;
+    private final Sink<R> sink;
+    private final int workers;
+    private final int window; // Batches read ahead of the sink, and results waiting for it
+
+    public FramePipeline(Source<B> source, Worker<B, R> worker, Sink<R> sink, int workers, int window) {
+        this.source = source;
+        this.worker = worker;
+        this.sink = sink;
+        this.workers = Math.max(1, workers);
+        this.window = Math.max(this.workers, window);
+    }
+
+    public long run() throws IOException {
+        // Returns the amount of batches that went through
+        final BlockingQueue<Item<B>> queue = new ArrayBlockingQueue<>(window);
+        final Item<B> end = new Item<>(-1, null);
+
+        @SuppressWarnings("unchecked")
+        final R[] finished = (R[]) new Object[window]; // Results waiting for the sink, at sequence % window
+        final Object lock = new Object();
+        final long[] state = new long[]{0, -1}; // Results accepted by the sink, and the amount of batches once the reader is done
+        final Throwable[] failure = new Throwable[1];
+
+        // The reader mostly waits for the file, so it gets a thread of its own
+        final WorkerPool.Tasks reader = WorkerPool.io("sSMLMA frame reader", 1, ithread -> {
+            long sequence = 0;
+            try {
+                for (B batch = source.next(); batch != null; batch = source.next()) {
+                    if (!put(queue, new Item<>(sequence++, batch), lock, failure)) break;
+                }
+            } catch (IOException | InterruptedException | RuntimeException | Error e) {
+                fail(lock, failure, e);
+            } finally {
+                synchronized (lock) {
+                    state[1] = sequence;
+                    lock.notifyAll();
+                }
+                // One end marker per worker
+                try {
+                    for (int i = 0; i < workers; i++) {
+                        if (!put(queue, end, lock, failure)) break;
+                    }
+                } catch (InterruptedException ignored) {}
+            }
+        });
+
+        final WorkerPool.Tasks processors = WorkerPool.start(workers, ithread -> {
+            try {
+                for (Item<B> item = take(queue, lock, failure); item != null && item != end; item = take(queue, lock, failure)) {
+                    R result = worker.process(item.batch);
+
+                    // The slot is free once the sink took the result that was a window before this one
+                    synchronized (lock) {
+                        while (item.sequence >= state[0] + window && failure[0] == null) lock.wait();
+                        if (failure[0] != null) break;
+                        finished[(int) (item.sequence % window)] = result;
+                        lock.notifyAll();
+                    }
+                }
+            } catch (InterruptedException | RuntimeException | Error e) {
+                fail(lock, failure, e);
+            }
+        });
+
+        try {
+            while (true) {
+                R result = null;
+                Item<B> own = null;
+                synchronized (lock) {
+                    int slot = (int) (state[0] % window);
+                    while (finished[slot] == null && failure[0] == null && state[0] != state[1]) {
+                        // No worker took the next batch yet (when every thread of the pool is busy none may have started), so it is processed here
+                        Item<B> next = queue.peek();
+                        if (next != null && next != end && next.sequence == state[0] && queue.remove(next)) {
+                            own = next;
+                            break;
+                        }
+                        lock.wait();
+                    }
+                    if (own == null) {
+                        if (failure[0] instanceof IOException) throw (IOException) failure[0];
+                        if (failure[0] instanceof CancellationToken.CancelledException) throw (CancellationToken.CancelledException) failure[0];
+                        if (failure[0] != null) throw new IOException("Could not process the frames: " + failure[0], failure[0]);
+                        if (state[0] == state[1]) break;
+                        result = finished[slot];
+                        finished[slot] = null;
+                    }
+                }
+
+                if (own != null) {
+                    try {
+                        result = worker.process(own.batch);
+                    } catch (RuntimeException | Error e) {
+                        // Reported like a failure of a worker on the next pass
+                        fail(lock, failure, e);
+                        continue;
+                    }
+                }
+
+                sink.accept(result);
+
+                synchronized (lock) {
+                    state[0]++;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing the frames");
+        } finally {
+            // Make sure no thread keeps waiting on a sink that stopped
+            synchronized (lock) {
+                if (failure[0] == null && state[0] != state[1]) failure[0] = new IOException("Processing stopped");
+                lock.notifyAll();
+            }
+            reader.join();
+            processors.join();
+        }
+        return state[0];
+    }
+
+    // Once anything failed the reader and the workers stop, so neither waits for the other any longer than the timeout
+    private static <T> boolean put(BlockingQueue<T> queue, T item, Object lock, Throwable[] failure) throws InterruptedException {
+        // False if it failed before there was room
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            synchronized (lock) {
+                if (failure[0] != null) return false;
+            }
+        }
+        // The sink may be waiting to process it itself
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    private static <T> T take(BlockingQueue<T> queue, Object lock, Throwable[] failure) throws InterruptedException {
+        // Null if it failed
+        while (true) {
+            synchronized (lock) {
+                if (failure[0] != null) return null;
+            }
+            T item = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (item != null) return item;
+        }
+    }
+
+    private static void fail(Object lock, Throwable[] failure, Throwable e) {
+        synchronized (lock) {
+            if (failure[0] == null) failure[0] = e;
+            lock.notifyAll();
+        }
+    }
+}
@@ -25,8 +25,9 @@ public class GenericDialogPlusPlus extends GenericDialogPlus {
         String csv_target_dir = strings.get(1).getText();
 
         boolean saveSCV = checkboxes.get(0).getState();
-        boolean visualisation = checkboxes.get(9).getState();
-        boolean visualiseZOLA = checkboxes.get(10).getState();
+        // The visualisation checkboxes are the last two in the dialog
+        boolean visualisation = checkboxes.get(checkboxes.size() - 2).getState();
+        boolean visualiseZOLA = checkboxes.get(checkboxes.size() - 1).getState();
         // Require input CSV
         if(filePath.equals("")){
             return"No input CSV was set";
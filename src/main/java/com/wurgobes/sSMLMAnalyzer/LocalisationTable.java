@@ -0,0 +1,183 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the table the localisations are loaded into, also used for the combined position results.
+Every column is split in segments of 2^20 floats that live outside the java heap (direct buffers),
+and rows are counted with a long, so the size is not limited to the 2^31 numbers of a FloatMatrix
+and the garbage collector never has to move or scan the data.
+A selection of columns shares the segments with the table it came from, nothing is copied.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.jblas.FloatMatrix;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LocalisationTable implements ResultTable {
+
+    private static final int segmentShift = 20;
+    public static final int segmentRows = 1 << segmentShift; // 4 MB per column segment
+    private static final int segmentMask = segmentRows - 1;
+
+    private final List<String> columnNames;
+    private FloatBuffer[][] segments; // [column][segment]
+    private long rows = 0;
+
+    public LocalisationTable(List<String> columnNames) {
+        this.columnNames = new ArrayList<>(columnNames);
+        this.segments = new FloatBuffer[columnNames.size()][0];
+    }
+
+    public LocalisationTable(int columns, long rows) {
+        // A table of the given size filled with 0
+        this.columnNames = new ArrayList<>();
+        for (int c = 0; c < columns; c++) columnNames.add("column " + c);
+        this.segments = new FloatBuffer[columns][0];
+        ensure(rows);
+        this.rows = rows;
+    }
+
+    private LocalisationTable(List<String> columnNames, FloatBuffer[][] segments, long rows) {
+        this.columnNames = columnNames;
+        this.segments = segments;
+        this.rows = rows;
+    }
+
+    private static FloatBuffer newSegment() {
+        // Direct buffers start out as zeros
+        return ByteBuffer.allocateDirect(segmentRows * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private void ensure(long size) {
+        int needed = (int) ((size + segmentMask) >>> segmentShift);
+        for (int c = 0; c < segments.length; c++) {
+            int have = segments[c].length;
+            if (have >= needed) continue;
+            segments[c] = Arrays.copyOf(segments[c], needed);
+            for (int s = have; s < needed; s++) segments[c][s] = newSegment();
+        }
+    }
+
+    @Override
+    public long rows() { return rows; }
+
+    @Override
+    public int columns() { return segments.length; }
+
+    public List<String> getColumnNames() { return columnNames; }
+
+    public long memoryBytes() {
+        // Memory taken by the column segments (shared with any table selected from this one)
+        long bytes = 0;
+        for (FloatBuffer[] column : segments) bytes += (long) column.length * segmentRows * 4;
+        return bytes;
+    }
+
+    public float get(long row, int column) {
+        return segments[column][(int) (row >>> segmentShift)].get((int) (row & segmentMask));
+    }
+
+    public void put(long row, int column, float value) {
+        segments[column][(int) (row >>> segmentShift)].put((int) (row & segmentMask), value);
+    }
+
+    public void addRow(final float[] values) {
+        if ((rows & segmentMask) == 0) ensure(rows + 1);
+        for (int c = 0; c < segments.length; c++) put(rows, c, values[c]);
+        rows++;
+    }
+
+    @Override
+    public void readColumn(int column, long row, float[] into, int count) {
+        // Copies segment by segment
+        int done = 0;
+        while (done < count) {
+            long position = row + done;
+            int offset = (int) (position & segmentMask);
+            int length = Math.min(count - done, segmentRows - offset);
+            FloatBuffer segment = segments[column][(int) (position >>> segmentShift)].duplicate();
+            segment.position(offset);
+            segment.get(into, done, length);
+            done += length;
+        }
+    }
+
+    public LocalisationTable select(final int[] columns, final float[] missing) {
+        // The given columns in that order, sharing their data with this table
+        // A column of -1 is not in this table and becomes a new column filled with the value in missing
+        List<String> names = new ArrayList<>();
+        FloatBuffer[][] selected = new FloatBuffer[columns.length][];
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c] >= 0) {
+                names.add(columnNames.get(columns[c]));
+                selected[c] = segments[columns[c]];
+            } else {
+                names.add("column " + c);
+                int count = (int) ((rows + segmentMask) >>> segmentShift);
+                selected[c] = new FloatBuffer[count];
+                for (int s = 0; s < count; s++) {
+                    selected[c][s] = newSegment();
+                    if (missing[c] != 0.0f) for (int i = 0; i < segmentRows; i++) selected[c][s].put(i, missing[c]);
+                }
+            }
+        }
+        return new LocalisationTable(names, selected, rows);
+    }
+
+    public float max(int column) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (long r = 0; r < rows; r++) max = Math.max(max, get(r, column));
+        return max;
+    }
+
+    public FloatMatrix getRows(final long[] rowIndices) {
+        // A small FloatMatrix with the given rows and all columns, for example one frame
+        FloatMatrix result = new FloatMatrix(rowIndices.length, segments.length);
+        for (int c = 0; c < segments.length; c++) {
+            for (int i = 0; i < rowIndices.length; i++) result.data[c * rowIndices.length + i] = get(rowIndices[i], c);
+        }
+        return result;
+    }
+
+    public float[] getColumn(int column) {
+        // Only for tables that fit in an array, such as the values shown in a plot
+        if (rows > Integer.MAX_VALUE - 8) throw new IllegalStateException("Column too large for an array: " + rows + " rows");
+        float[] result = new float[(int) rows];
+        readColumn(column, 0, result, result.length);
+        return result;
+    }
+
+    public FloatMatrix toFloatMatrix() {
+        // For the code that still needs a FloatMatrix, limited to 2^31 numbers
+        if (rows * segments.length > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("Table too large for a FloatMatrix: " + rows + " rows of " + segments.length + " columns");
+        FloatMatrix result = new FloatMatrix((int) rows, segments.length);
+        float[] column = new float[(int) rows];
+        for (int c = 0; c < segments.length; c++) {
+            readColumn(c, 0, column, column.length);
+            System.arraycopy(column, 0, result.data, c * (int) rows, column.length);
+        }
+        return result;
+    }
+}
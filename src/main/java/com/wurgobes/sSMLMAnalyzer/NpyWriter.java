@@ -0,0 +1,202 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the binary export of the result tables as NumPy .npy files (little endian float32).
+Columns of whole numbers (ids, frames, indices) are int64 on their own, and make their table float64,
+as a float32 only holds them exactly up to 2^24.
+NumPy reads these with numpy.load, and MATLAB can read them with fread after skipping the header.
+The tables are stored column major (fortran_order), so each column is written as one run,
+a megabyte at a time, without rearranging anything.
+A schema.json next to them lists every table with its column names and units.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class NpyWriter {
+
+    public enum Layout {
+        NONE,
+        TABLE,  // One <table>.npy per table, shape (rows, columns)
+        COLUMN  // A folder per table with one .npy per column, shape (rows,)
+    }
+
+    private static final int bufferFloats = 1 << 18; // 1 MB
+    private static final Pattern unitPattern = Pattern.compile("\\[(.*?)]");
+
+    public static void writeTable(Path path, final ResultTable data, int[] columns) throws IOException {
+        // columns are the columns of data to write in that order, or null for all of them
+        int count = columns == null ? data.columns() : columns.length;
+        String type = tableType(data, columns);
+        try (FileChannel channel = open(path)) {
+            writeFully(channel, header(type, "(" + data.rows() + ", " + count + ")"));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferFloats * 4).order(ByteOrder.LITTLE_ENDIAN);
+            float[] values = new float[bufferFloats];
+            for (int c = 0; c < count; c++) {
+                if (type.equals("<f8")) writeDoubles(channel, buffer, data, columns == null ? c : columns[c]);
+                else writeFloats(channel, buffer, values, data, columns == null ? c : columns[c]);
+            }
+        }
+    }
+
+    public static void writeColumn(Path path, final ResultTable data, int column) throws IOException {
+        try (FileChannel channel = open(path)) {
+            writeFully(channel, header(columnType(data, column), "(" + data.rows() + ",)"));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferFloats * 4).order(ByteOrder.LITTLE_ENDIAN);
+            if (data.isInteger(column)) writeLongs(channel, buffer, data, column);
+            else writeFloats(channel, buffer, new float[bufferFloats], data, column);
+        }
+    }
+
+    public static String columnType(final ResultTable data, int column) {
+        return data.isInteger(column) ? "<i8" : "<f4";
+    }
+
+    public static String tableType(final ResultTable data, int[] columns) {
+        // A table has one type for all its columns
+        int count = columns == null ? data.columns() : columns.length;
+        for (int c = 0; c < count; c++) if (data.isInteger(columns == null ? c : columns[c])) return "<f8";
+        return "<f4";
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private static ByteBuffer header(String type, String shape) {
+        // Version 1.0 header: magic, version, header length and a python dict padded with spaces so the data is 64 byte aligned
+        StringBuilder dict = new StringBuilder("{'descr': '" + type + "', 'fortran_order': True, 'shape': " + shape + ", }");
+        while ((10 + dict.length() + 1) % 64 != 0) dict.append(' ');
+        dict.append('\n');
+
+        ByteBuffer header = ByteBuffer.allocate(10 + dict.length()).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII)).put((byte) 1).put((byte) 0);
+        header.putShort((short) dict.length());
+        header.put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+        header.flip();
+        return header;
+    }
+
+    private static void writeFloats(FileChannel channel, ByteBuffer buffer, final float[] values, final ResultTable data, int column) throws IOException {
+        // The column goes into the buffer with one bulk copy per megabyte, which also takes care of the byte order
+        for (long start = 0; start < data.rows(); start += bufferFloats) {
+            int count = (int) Math.min(bufferFloats, data.rows() - start);
+            data.readColumn(column, start, values, count);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, 0, count);
+            buffer.limit(count * 4);
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void writeLongs(FileChannel channel, ByteBuffer buffer, final ResultTable data, int column) throws IOException {
+        // As writeFloats, with half as many values per megabyte
+        final int chunk = bufferFloats / 2;
+        final long[] values = new long[chunk];
+        for (long start = 0; start < data.rows(); start += chunk) {
+            int count = (int) Math.min(chunk, data.rows() - start);
+            data.readColumn(column, start, values, count);
+            buffer.clear();
+            buffer.asLongBuffer().put(values, 0, count);
+            buffer.limit(count * 8);
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void writeDoubles(FileChannel channel, ByteBuffer buffer, final ResultTable data, int column) throws IOException {
+        // Whole numbers are read as longs, so they stay exact (a double holds them up to 2^53)
+        final int chunk = bufferFloats / 2;
+        final boolean integer = data.isInteger(column);
+        final long[] whole = integer ? new long[chunk] : null;
+        final float[] values = integer ? null : new float[chunk];
+        final double[] converted = new double[chunk];
+        for (long start = 0; start < data.rows(); start += chunk) {
+            int count = (int) Math.min(chunk, data.rows() - start);
+            if (integer) {
+                data.readColumn(column, start, whole, count);
+                for (int i = 0; i < count; i++) converted[i] = whole[i];
+            } else {
+                data.readColumn(column, start, values, count);
+                for (int i = 0; i < count; i++) converted[i] = values[i];
+            }
+            buffer.clear();
+            buffer.asDoubleBuffer().put(converted, 0, count);
+            buffer.limit(count * 8);
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    public static String columnFileName(int column, String header) {
+        // For example 03_x_nm_0.npy
+        return String.format("%02d_%s.npy", column, header.replaceAll("[^\\w]+", "_").replaceAll("^_|_$", ""));
+    }
+
+    public static String getUnit(String header) {
+        Matcher matcher = unitPattern.matcher(header);
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    public static void writeSchema(Path path, Layout layout, List<String> tableNames, List<ResultTable> tables,
+                                   List<int[]> selectedColumns, List<List<String>> headers) throws IOException {
+        // Lists the files, the shape and the name and unit of every column, so a reader does not need the csv headers
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"format\": \"npy\",\n  \"layout\": \"").append(layout.name().toLowerCase()).append("\",\n  \"tables\": [\n");
+        for (int t = 0; t < tables.size(); t++) {
+            String name = tableNames.get(t);
+            int count = selectedColumns.get(t) == null ? tables.get(t).columns() : selectedColumns.get(t).length;
+            json.append("    {\n      \"name\": ").append(quote(name)).append(",\n      \"rows\": ").append(tables.get(t).rows()).append(",\n");
+            if (layout == Layout.TABLE) {
+                json.append("      \"file\": ").append(quote(name + ".npy")).append(",\n");
+                json.append("      \"dtype\": ").append(quote(tableType(tables.get(t), selectedColumns.get(t)))).append(",\n");
+            }
+            json.append("      \"columns\": [\n");
+            for (int c = 0; c < count; c++) {
+                String header = c < headers.get(t).size() ? headers.get(t).get(c) : "column " + c;
+                json.append("        {\"name\": ").append(quote(header)).append(", \"unit\": ").append(quote(getUnit(header)));
+                if (layout == Layout.COLUMN) {
+                    int column = selectedColumns.get(t) == null ? c : selectedColumns.get(t)[c];
+                    json.append(", \"file\": ").append(quote(name + "/" + columnFileName(c, header)));
+                    json.append(", \"dtype\": ").append(quote(columnType(tables.get(t), column)));
+                }
+                json.append(c < count - 1 ? "},\n" : "}\n");
+            }
+            json.append("      ]\n    }").append(t < tables.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+        Files.write(path, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -7,6 +7,7 @@ Spectral Super Resolution Pair Finder
 This file contains a loader that takes a csv file with a header
 The Header is parsed into an arraylist and the values into a jblas Floatmatrix
 Default and fallback delimiter is a comma
+Gzipped files (.gz or starting with the gzip magic bytes) are decompressed on a separate thread while the lines are parsed
 
 This software is released under the GPL v3. You may copy, distribute and modify
 the software as long as you track changes/dates in source files. Any
@@ -26,43 +27,108 @@ SOFTWARE.
 import org.jblas.FloatMatrix;
 import org.scijava.log.LogService;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 
 public class OwnFloatMatrixLoader {
 
 
     private List<String> columns = new ArrayList<>();
+    private CancellationToken cancellation = CancellationToken.NONE;
 
 
     public FloatMatrix loadCSVFile(String filename) throws IOException {
+        return loadTable(filename).toFloatMatrix();
+    }
 
+    public LocalisationTable loadTable(String filename) throws IOException {
+        // Each line is parsed straight into the (off heap) columns of the table, without building a row object for it
 
-        BufferedReader is = new BufferedReader(new InputStreamReader(new FileInputStream(filename)));
 
-        List<FloatMatrix> rows = new LinkedList<>();
-        String line = is.readLine();
-        int columns = -1;
+        LocalisationTable table;
+        try (BufferedReader is = new BufferedReader(new InputStreamReader(openInput(filename)))) {
+            LineParser parser = new LineParser(header(is, filename));
+            this.columns = parser.header;
+
+            table = new LocalisationTable(this.columns);
+            String line;
+            while ((line = is.readLine()) != null) {
+                table.addRow(parser.parse(line));
+                if ((table.rows() & 0xFFFF) == 0) cancellation.check(); // Every 65536 lines
+            }
+        }
+
+        System.out.println("Done reading file: " + filename);
+
+        return table;
+    }
 
-        String delimiter = ",";
-        if(line.contains(";")){
-            delimiter = ";";
-        } else if(line.contains("\t")) {
-            delimiter = "\t";
+    public void setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    public FrameReader openFrames(String filename) throws IOException {
+        // For reading a file that is sorted by frame a few frames at a time, instead of loading it completely
+        BufferedReader is = new BufferedReader(new InputStreamReader(openInput(filename)));
+        try {
+            LineParser parser = new LineParser(header(is, filename));
+            this.columns = parser.header;
+            return new FrameReader(is, parser);
+        } catch (IOException | RuntimeException e) {
+            // The reader is only handed out once the header was read, so it is closed here (which also stops a prefetch thread)
+            try {
+                is.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
         }
+    }
+
+    private static String header(BufferedReader is, String filename) throws IOException {
+        String line = is.readLine();
+        if (line == null) throw new IOException("The file " + filename + " is empty.");
+        return line;
+    }
 
-        final Pattern DELIMITER_PATTERN  = Pattern.compile(delimiter);
-        final String DELIMITER = delimiter;
+    private static class LineParser {
+        // Splits the lines on the delimiter found in the header, and checks every line has the same amount of numbers
+        final List<String> header;
+        private final Pattern DELIMITER_PATTERN;
+        private int columns = -1;
+        private float[] row;
 
-        this.columns = Arrays.asList(line.split(DELIMITER));
+        LineParser(String line) {
+            String delimiter = ",";
+            if(line.contains(";")){
+                delimiter = ";";
+            } else if(line.contains("\t")) {
+                delimiter = "\t";
+            }
 
+            DELIMITER_PATTERN = Pattern.compile(delimiter);
+            header = Arrays.asList(line.split(delimiter));
+            row = new float[header.size()];
+        }
 
-        while ((line = is.readLine()) != null) {
+        float[] parse(String line) throws IOException {
             String[] elements = DELIMITER_PATTERN.split(line);
             int numElements = elements.length;
             if (elements[0].length() == 0) {
@@ -74,34 +140,349 @@ public class OwnFloatMatrixLoader {
 
             if (columns == -1) {
                 columns = numElements;
+                if (columns > row.length) row = new float[columns];
             } else {
                 if (columns != numElements) {
                     throw new IOException("Number of elements changes in line " + line + ".");
                 }
             }
 
-            FloatMatrix row = new FloatMatrix(columns);
             for (int c = 0; c < columns; c++) {
                 if(elements[c].equals("Inf")){
-                    row.put(c, Float.parseFloat("Infinity"));
+                    row[c] = Float.parseFloat("Infinity");
                 } else {
-                    row.put(c, Float.parseFloat(elements[c]));
+                    row[c] = Float.parseFloat(elements[c]);
                 }
             }
-            rows.add(row);
+            return row;
         }
-        is.close();
+    }
 
-        System.out.println("Done reading file: " + filename);
+    private static class RowBuffer {
+        // Collects the selected columns of parsed rows, one row after the other, until they become a FloatMatrix
+        // A column of -1 is not in the file and is filled with its value in missing
+        private final int[] selection;
+        private final float[] missing;
+        private float[] values;
+        int rows = 0;
+
+        RowBuffer(int[] selection, float[] missing, int capacity) {
+            this.selection = selection;
+            this.missing = missing;
+            this.values = new float[Math.max(16, capacity) * selection.length];
+        }
+
+        void add(float[] row) {
+            if ((rows + 1) * selection.length > values.length) values = Arrays.copyOf(values, values.length * 2);
+            for (int c = 0; c < selection.length; c++)
+                values[rows * selection.length + c] = selection[c] >= 0 ? row[selection[c]] : missing[c];
+            rows++;
+        }
+
+        FloatMatrix toFloatMatrix(int first, int count) {
+            // The rows were collected one after the other, a FloatMatrix stores them column after column
+            FloatMatrix result = new FloatMatrix(count, selection.length);
+            for (int r = 0; r < count; r++)
+                for (int c = 0; c < selection.length; c++) result.data[c * count + r] = values[(first + r) * selection.length + c];
+            return result;
+        }
+
+        void keep(int first) {
+            // Drops the rows before first
+            System.arraycopy(values, first * selection.length, values, 0, (rows - first) * selection.length);
+            rows -= first;
+        }
+    }
+
+    private static int checkFrame(int frame, int lastFrame) throws IOException {
+        if (frame < lastFrame)
+            throw new IOException("Streaming needs the localisations sorted by frame, but frame " + frame + " follows frame " + lastFrame);
+        return frame;
+    }
+
+    public static class FrameReader implements Closeable {
+        // Reads whole frames at a time from a file sorted by frame
+        // The first line of the next frame is kept until the next call
+        private final BufferedReader is;
+        private final LineParser parser;
+        private float[] pending = null; // First row of the next frame
+        private boolean finished = false;
+        private long rowsRead = 0;
+
+        private FrameReader(BufferedReader is, LineParser parser) {
+            this.is = is;
+            this.parser = parser;
+        }
+
+        public long getRowsRead() { return rowsRead; }
+
+        public FloatMatrix next(final int[] selection, final float[] missing, int minRows) throws IOException {
+            // Reads at least minRows rows (unless the file ends first), always ending at the end of a frame
+            // Only the selected columns are kept, in that order. The first selected column must be the frame
+            // Returns null once the file is done
+            RowBuffer batch = new RowBuffer(selection, missing, minRows + minRows / 4);
+            int lastFrame = 0;
+
+            while (true) {
+                float[] row = pending;
+                pending = null;
+                if (row == null && !finished) {
+                    String line = is.readLine();
+                    if (line == null) finished = true;
+                    else row = parser.parse(line);
+                }
+                if (row == null) break;
+
+                int frame = (int) row[selection[0]];
+                if (batch.rows > 0 && frame != lastFrame) {
+                    checkFrame(frame, lastFrame);
+                    if (batch.rows >= minRows) {
+                        pending = row.clone();
+                        break;
+                    }
+                }
+                lastFrame = frame;
+                batch.add(row);
+            }
+            if (batch.rows == 0) return null;
+            rowsRead += batch.rows;
+            return batch.toFloatMatrix(0, batch.rows);
+        }
+
+        @Override
+        public void close() throws IOException {
+            is.close();
+        }
+    }
+
+    public TailReader openTail(String filename) throws IOException {
+        // For following a file that is still being written
+        if (filename.toLowerCase().endsWith(".gz")) throw new IOException("A gzipped file can not be followed while it is written");
+        return new TailReader(Paths.get(filename));
+    }
+
+    public class TailReader implements Closeable {
+        // Follows a csv (sorted by frame) that another program is still appending to
+        // Every poll reads only the bytes added since the last one, from the offset where that one stopped
+        // A line without its end yet is kept for the next poll, and so are the rows of the last frame,
+        // as more of that frame may still come. They are only handed out once a later frame starts, or by flush()
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private long offset = 0;
+        private byte[] partial = new byte[0]; // Start of a line whose end has not been written yet
+        private LineParser parser = null;
+        private RowBuffer rows = null;
+        private int lastFrame = 0;
+        private int frameStart = 0; // First row of the last frame in rows
+        private long rowsRead = 0;
 
-        FloatMatrix result = new FloatMatrix(rows.size(), columns);
-        int r = 0;
-        for (FloatMatrix row : rows) {
-            result.putRow(r, row);
-            r++;
+        private TailReader(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
         }
-        return result;
+
+        public long getRowsRead() { return rowsRead; }
+
+        public long getOffset() { return offset; }
+
+        public boolean readHeader() throws IOException {
+            // True once the first line (the header) is complete. Sets the columns of the loader
+            if (parser == null) readLines(null);
+            return parser != null;
+        }
+
+        public FloatMatrix poll(final int[] selection, final float[] missing) throws IOException {
+            // All complete frames added since the last poll, or null if there are none yet
+            if (rows == null) rows = new RowBuffer(selection, missing, 1 << 12);
+            readLines(row -> {
+                int frame = (int) row[selection[0]];
+                if (rowsRead + rows.rows > 0 && frame != lastFrame) {
+                    checkFrame(frame, lastFrame);
+                    frameStart = rows.rows;
+                }
+                lastFrame = frame;
+                rows.add(row);
+            });
+            return take(frameStart);
+        }
+
+        public FloatMatrix flush() {
+            // The rows of the last frame, for when the acquisition is done
+            return rows == null ? null : take(rows.rows);
+        }
+
+        private FloatMatrix take(int count) {
+            if (count == 0) return null;
+            FloatMatrix result = rows.toFloatMatrix(0, count);
+            rows.keep(count);
+            frameStart = Math.max(0, frameStart - count);
+            rowsRead += count;
+            return result;
+        }
+
+        private void readLines(RowConsumer consumer) throws IOException {
+            long size = channel.size();
+            if (size < offset) throw new IOException("The file got shorter, it was replaced or overwritten");
+
+            while (offset < size) {
+                buffer.clear();
+                int read = channel.read(buffer, offset);
+                if (read <= 0) break;
+
+                byte[] bytes = buffer.array();
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (bytes[i] != '\n') continue;
+                    String line = lineFrom(bytes, lineStart, i);
+                    lineStart = i + 1;
+                    if (parser == null) {
+                        parser = new LineParser(line);
+                        columns = parser.header;
+                        if (consumer == null) {
+                            // Only the header was asked for, the rest is read by the next poll
+                            offset += lineStart;
+                            return;
+                        }
+                    } else if (line.length() > 0) {
+                        consumer.accept(parser.parse(line));
+                    }
+                }
+                // The bytes after the last line end are the start of the next line
+                byte[] rest = Arrays.copyOf(partial, partial.length + read - lineStart);
+                System.arraycopy(bytes, lineStart, rest, partial.length, read - lineStart);
+                partial = rest;
+                offset += read;
+            }
+        }
+
+        private String lineFrom(byte[] bytes, int start, int end) {
+            // The line is the carried over part followed by bytes[start, end), without a \r at the end
+            if (end > start && bytes[end - 1] == '\r') end--;
+            String line;
+            if (partial.length > 0) {
+                byte[] joined = Arrays.copyOf(partial, partial.length + end - start);
+                System.arraycopy(bytes, start, joined, partial.length, end - start);
+                if (joined.length > 0 && joined[joined.length - 1] == '\r') joined = Arrays.copyOf(joined, joined.length - 1);
+                line = new String(joined, StandardCharsets.UTF_8);
+                partial = new byte[0];
+            } else {
+                line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private interface RowConsumer {
+        void accept(float[] row) throws IOException;
     }
 
     public List<String> getColumns() {return columns;}
+
+    public static InputStream openInput(String filename) throws IOException {
+        // Plain files are read directly, gzipped files are decompressed ahead of the parser on their own thread
+        BufferedInputStream input = new BufferedInputStream(new FileInputStream(filename), 1 << 16);
+        try {
+            input.mark(2);
+            boolean gzip = input.read() == 0x1f && input.read() == 0x8b;
+            input.reset();
+
+            if (gzip || filename.toLowerCase().endsWith(".gz"))
+                return new PrefetchInputStream(new GZIPInputStream(input, 1 << 16), 1 << 18, 16);
+            return input;
+        } catch (IOException | RuntimeException e) {
+            // Not a readable (gzip) file
+            input.close();
+            throw e;
+        }
+    }
+
+    private static class PrefetchInputStream extends InputStream {
+        // Reads the source on a background thread into a bounded queue of chunks, so reading (and decompressing) and parsing overlap
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> queue;
+        private final WorkerPool.Tasks reader;
+        private volatile Throwable failure = null;
+
+        private byte[] current = null;
+        private int position = 0;
+        private boolean finished = false;
+
+        PrefetchInputStream(final InputStream source, final int chunkSize, int chunks) {
+            queue = new ArrayBlockingQueue<>(chunks);
+            reader = WorkerPool.io("sSMLMA input reader", 1, ithread -> {
+                boolean closed = false;
+                try {
+                    while (true) {
+                        byte[] chunk = new byte[chunkSize];
+                        int filled = 0;
+                        int read;
+                        while (filled < chunkSize && (read = source.read(chunk, filled, chunkSize - filled)) != -1) filled += read;
+
+                        if (filled > 0) queue.put(filled == chunkSize ? chunk : Arrays.copyOf(chunk, filled));
+                        if (filled < chunkSize) break;
+                    }
+                } catch (InterruptedException e) {
+                    closed = true; // The stream was closed before everything was read
+                } catch (IOException | RuntimeException | Error e) {
+                    failure = e; // Handed to the parser after everything read before it
+                } finally {
+                    try {
+                        source.close();
+                    } catch (IOException ignored) {}
+                    // Whatever happened the parser gets an end, so it never waits for a reader that stopped
+                    if (!closed) {
+                        try {
+                            queue.put(END);
+                        } catch (InterruptedException ignored) {}
+                    }
+                }
+            });
+        }
+
+        private boolean fill() throws IOException {
+            while (current == null || position >= current.length) {
+                if (finished) return false;
+                try {
+                    current = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading");
+                }
+                position = 0;
+                if (current == END) {
+                    finished = true;
+                    if (failure instanceof IOException) throw (IOException) failure;
+                    if (failure != null) throw new IOException("Could not read the file: " + failure, failure);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? current[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+            reader.cancel();
+        }
+    }
 }
@@ -0,0 +1,306 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the search for candidate pairs within one frame, and the plan of which search is used for which frame.
+The dense search calculates the distance and angle from every point to every other point in a few matrices,
+which is fast for small frames but grows with the square of the points: a frame of 20000 points needs gigabytes.
+The grid search only compares points in neighbouring cells of a SpatialGrid, so it grows with the amount of points.
+Both give exactly the same candidates, in the same order (by start point, then end point).
+A frame that holds a large part of all points is split into strips that are searched in parallel, each with a halo of the end distance.
+Before a run the plan goes over the points per frame, picks a search for each frame and estimates the memory and time,
+so a run that would not fit in memory is stopped before it starts.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.jblas.FloatMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.wurgobes.sSMLMAnalyzer.Util.*;
+
+public class PairSearch {
+
+    public enum Strategy {DENSE, GRID}
+
+    public static final String[] modes = {"auto", "dense", "grid"};
+
+    // Above this many points in a frame the grid is faster than the matrices
+    // The grid already wins from about 10 points per frame, the matrices only for a handful of points
+    public static final int denseLimit = 8;
+
+    // A frame is only split into tiles that get at least this many points, below that the threads cost more than they save
+    public static final int tilePoints = 4096;
+
+    // Rough costs per frame (including the merging of the candidates) on one core, only used for the estimate before a run
+    private static final double denseNanos = 100; // per point squared
+    private static final double gridNanos = 5000; // per point
+    private static final int denseMatrices = 14; // n x n float matrices alive at the same time in the dense search
+    private static final int gridBytes = 256; // per point: the coordinates, the cells and a few candidates with all their columns
+
+    public static class Candidates {
+        // Pairs of points (row in the frame) that match the distance, angle and z restrictions
+        public int count = 0;
+        public int[] start;
+        public int[] end;
+        public float[] distance;
+        public float[] angle;
+
+        Candidates(int capacity) {
+            start = new int[capacity];
+            end = new int[capacity];
+            distance = new float[capacity];
+            angle = new float[capacity];
+        }
+
+        void add(int s, int e, float d, float a) {
+            if (count == start.length) {
+                int capacity = Math.max(16, count * 2);
+                start = Arrays.copyOf(start, capacity);
+                end = Arrays.copyOf(end, capacity);
+                distance = Arrays.copyOf(distance, capacity);
+                angle = Arrays.copyOf(angle, capacity);
+            }
+            start[count] = s;
+            end[count] = e;
+            distance[count] = d;
+            angle[count] = a;
+            count++;
+        }
+    }
+
+    public static Strategy strategy(String mode, int points) {
+        if (mode.equals("dense")) return Strategy.DENSE;
+        if (mode.equals("grid")) return Strategy.GRID;
+        return points <= denseLimit ? Strategy.DENSE : Strategy.GRID;
+    }
+
+    public static long bytes(Strategy strategy, int points) {
+        return strategy == Strategy.DENSE ? (long) denseMatrices * 4 * points * points : (long) gridBytes * points;
+    }
+
+    public static double nanos(Strategy strategy, int points) {
+        return strategy == Strategy.DENSE ? denseNanos * points * points : gridNanos * points;
+    }
+
+    public static int tiles(int points, long rangePoints, int threads) {
+        // A frame with a large part of all the points in the range would keep one thread busy long after the others are done,
+        // so it is split into as many tiles as its share of the threads, if each tile still gets enough points
+        if (threads <= 1 || rangePoints == 0) return 1;
+        long share = (long) points * threads / rangePoints;
+        return (int) Math.max(1, Math.min(Math.min(share, threads), points / tilePoints));
+    }
+
+    public static Candidates find(final FloatMatrix frameData, Strategy strategy, final float[] distRange, final float[] angRange,
+                                  boolean checkZ, float zMargin) {
+        return find(frameData, strategy, distRange, angRange, checkZ, zMargin, 1);
+    }
+
+    public static Candidates find(final FloatMatrix frameData, Strategy strategy, final float[] distRange, final float[] angRange,
+                                  boolean checkZ, float zMargin, int tiles) {
+        // frameData holds frame, x, y, z, intensity per row
+        // Only the grid search is split into tiles, the dense search is only used for frames of a few points
+        return strategy == Strategy.DENSE ?
+                dense(frameData, distRange, angRange, checkZ, zMargin) :
+                grid(frameData, distRange, angRange, checkZ, zMargin, tiles);
+    }
+
+    private static Candidates dense(final FloatMatrix frameData, final float[] distRange, final float[] angRange, boolean checkZ, float zMargin) {
+        // Distance Matrices that show distance from one point to each other point in X and Y
+        final FloatMatrix subtractedX = makeSubstractedMatrix(frameData.getColumn(1));
+        final FloatMatrix subtractedY = makeSubstractedMatrix(frameData.getColumn(2));
+
+        // Matrices that have distances and angles from any point to another point in this frame
+        final FloatMatrix distances = Distance(subtractedX, subtractedY);
+        final FloatMatrix angles = atan2(subtractedX, subtractedY, distances);
+
+        // Filter to only points that match the distance and angle restrictions;
+        // The value indicates both the start and end point
+        final int[] correctAngleAndDistance;
+
+        if (checkZ) {
+            final FloatMatrix zDistances = makeSubstractedMatrix(frameData.getColumn(3));
+            correctAngleAndDistance = distances.gt(distRange[0]).and(distances.lt(distRange[1]))
+                    .and(angles.gt(angRange[0])).and(angles.lt(angRange[1])).and(zDistances.lt(zMargin)).findIndices();
+        } else {
+            correctAngleAndDistance = distances.gt(distRange[0]).and(distances.lt(distRange[1]))
+                    .and(angles.gt(angRange[0])).and(angles.lt(angRange[1])).findIndices();
+        }
+
+        // The matrices are column major, so the start point is the column and the end point the row
+        Candidates candidates = new Candidates(correctAngleAndDistance.length);
+        for (int index : correctAngleAndDistance)
+            candidates.add(index / distances.rows, index % distances.rows, distances.get(index), angles.get(index));
+        return candidates;
+    }
+
+    private static Candidates grid(final FloatMatrix frameData, final float[] distRange, final float[] angRange, final boolean checkZ, final float zMargin, int tiles) {
+        final int n = frameData.rows;
+        final float[] x = frameData.getColumn(1).data;
+        final float[] y = frameData.getColumn(2).data;
+        final float[] z = frameData.getColumn(3).data;
+
+        // The grid radius is a bit larger so rounding never loses a pair at the edge
+        final float radius = Math.nextUp(distRange[1]) * 1.001f;
+
+        // The points are split into strips along x with about the same amount of points each
+        // Every strip also looks at the points up to the radius around it (the halo), but only keeps the pairs that start in the strip itself,
+        // so a pair across the border of two strips is found exactly once, by the strip of its start point
+        final int strips = Math.max(1, Math.min(tiles, n));
+        final float[] bounds = new float[strips + 1];
+        bounds[0] = Float.NEGATIVE_INFINITY;
+        bounds[strips] = Float.POSITIVE_INFINITY;
+        if (strips > 1) {
+            float[] sortedX = x.clone();
+            Arrays.sort(sortedX);
+            for (int t = 1; t < strips; t++) bounds[t] = sortedX[(int) ((long) t * n / strips)];
+        }
+
+        final long[][] keys = new long[strips][]; // start * n + end, per strip
+        final int[] counts = new int[strips];
+        final AtomicInteger ai = new AtomicInteger(0);
+        final Runnable search = () -> {
+            for (int t = ai.getAndIncrement(); t < strips; t = ai.getAndIncrement()) {
+                final float low = bounds[t];
+                final float high = bounds[t + 1];
+
+                int members = 0;
+                int[] member = new int[strips == 1 ? n : Math.max(16, 2 * n / strips)];
+                for (int i = 0; i < n; i++) {
+                    if (x[i] < low - radius || x[i] >= high + radius) continue;
+                    if (members == member.length) member = Arrays.copyOf(member, members * 2);
+                    member[members++] = i;
+                }
+                final float[] tileX = new float[members];
+                final float[] tileY = new float[members];
+                for (int m = 0; m < members; m++) {
+                    tileX[m] = x[member[m]];
+                    tileY[m] = y[member[m]];
+                }
+
+                // Every pair within the end distance is checked both ways, exactly like the dense search would
+                final int[] tileMember = member;
+                final int strip = t;
+                final long[][] found = {new long[Math.max(16, members)]};
+                new SpatialGrid(tileX, tileY, members, radius).visitPairs(radius, (a, b, dx, dy) -> {
+                    for (int k = 0; k < 2; k++) {
+                        final int s = tileMember[k == 0 ? a : b];
+                        final int e = tileMember[k == 0 ? b : a];
+                        if (x[s] < low || x[s] >= high) continue;
+                        if (!matches(x, y, z, s, e, distRange, angRange, checkZ, zMargin)) continue;
+                        if (counts[strip] == found[0].length) found[0] = Arrays.copyOf(found[0], counts[strip] * 2);
+                        found[0][counts[strip]++] = (long) s * n + e;
+                    }
+                });
+                keys[t] = found[0];
+            }
+        };
+
+        if (strips == 1) {
+            search.run();
+        } else {
+            WorkerPool.run(strips, i -> search.run());
+        }
+
+        // Same order as the dense search: by start point, then end point
+        int total = 0;
+        for (int count : counts) total += count;
+        long[] all = new long[total];
+        for (int t = 0, offset = 0; t < strips; offset += counts[t], t++) System.arraycopy(keys[t], 0, all, offset, counts[t]);
+        Arrays.sort(all);
+
+        Candidates candidates = new Candidates(total);
+        for (long key : all) {
+            int s = (int) (key / n);
+            int e = (int) (key % n);
+            float dx = x[e] - x[s];
+            float dy = y[e] - y[s];
+            float distance = distance(dx, dy);
+            candidates.add(s, e, distance, angle(dx, dy, distance));
+        }
+        return candidates;
+    }
+
+    private static boolean matches(float[] x, float[] y, float[] z, int s, int e, float[] distRange, float[] angRange, boolean checkZ, float zMargin) {
+        // The same tests as the dense search, on the same float values
+        float dx = x[e] - x[s];
+        float dy = y[e] - y[s];
+        float distance = distance(dx, dy);
+        if (!(distance > distRange[0] && distance < distRange[1])) return false;
+        float angle = angle(dx, dy, distance);
+        if (!(angle > angRange[0] && angle < angRange[1])) return false;
+        return !checkZ || z[e] - z[s] < zMargin;
+    }
+
+    private static float distance(float dx, float dy) {
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static float angle(float dx, float dy, float distance) {
+        // As in Util.atan2, element by element
+        if (dx > 0 || dy != 0) return (float) Math.atan(dy / (distance + dx)) * 2;
+        if (dx < 0) return (float) Math.PI;
+        return 0;
+    }
+
+    public static class Plan {
+        // The points per frame, the search used for them and what that will take
+        public final int[] histogram = new int[32]; // frames with 2^i up to 2^(i+1) points
+        public final int[] strategyFrames = new int[Strategy.values().length];
+        public int maxPoints = 0;
+        public long peakBytes = 0; // the largest frames searched at the same time, one per thread
+        public double nanos = 0; // all frames, on one thread
+
+        public List<String> report(int threads) {
+            List<String> lines = new ArrayList<>();
+            lines.add("Points per frame:");
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] == 0) continue;
+                lines.add(String.format("  %8d - %-8d %d frames", 1L << i, (1L << (i + 1)) - 1, histogram[i]));
+            }
+            lines.add("Largest frame: " + maxPoints + " points");
+            lines.add("Dense search: " + strategyFrames[Strategy.DENSE.ordinal()] + " frames, grid search: " + strategyFrames[Strategy.GRID.ordinal()] + " frames");
+            lines.add("Expected pair search: " + String.format("%.1f", nanos / threads / 1000000000) + " s, " + String.format("%.0f", peakBytes / 1048576.0) + " MB at most");
+            return lines;
+        }
+    }
+
+    public static Plan plan(final FrameIndex frames, String mode, int threads) {
+        Plan plan = new Plan();
+        PriorityQueue<Long> largest = new PriorityQueue<>(); // the largest frame sizes in bytes, at most one per thread
+
+        for (int i = 0; i < frames.size(); i++) {
+            int points = frames.getCount(i);
+            plan.histogram[31 - Integer.numberOfLeadingZeros(Math.max(1, points))]++;
+            plan.maxPoints = Math.max(plan.maxPoints, points);
+
+            Strategy strategy = strategy(mode, points);
+            plan.strategyFrames[strategy.ordinal()]++;
+            plan.nanos += nanos(strategy, points);
+
+            largest.add(bytes(strategy, points));
+            if (largest.size() > threads) largest.poll();
+        }
+        for (long bytes : largest) plan.peakBytes += bytes;
+        return plan;
+    }
+}
@@ -0,0 +1,438 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the table that holds all found pairs and the orders connected to them.
+Every value has its own array (struct of arrays): the frame, ids and indices are ints, the positions, intensities, distances and angles floats.
+Each order can be looked at on its own with order(k), without copying anything.
+Without z no z arrays are kept at all.
+The writers see it (through asResultTable) in the old layout of orders * 7 columns, and it can convert to a FloatMatrix in that layout:
+0 id, 1 frame, 2 index, 3 x, 4 y, 5 z, 6 intensity, and for each further order index, x, y, z, intensity, distance, angle.
+Each column is its own array, so the table holds up to 2^31 pairs instead of the 2^31 numbers of one FloatMatrix.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.jblas.FloatMatrix;
+
+import java.util.Arrays;
+
+public class PairTable {
+
+    public static final int orderColumns = 7; // Columns per order in the FloatMatrix layout
+
+    private final int orders;
+    private final boolean hasZ;
+    private int rows = 0;
+
+    private long[] id; // Over all batches of a run, which can be more than 2^31
+    private int[] frame;
+    private final int[][] index;
+    private final float[][] x;
+    private final float[][] y;
+    private final float[][] z; // null for every order without z
+    private final float[][] intensity;
+    private final float[][] distance; // distance and angle to the previous order, null for order 0
+    private final float[][] angle;
+
+    public class Order {
+        // A view on one order of the table, the arrays are shared with the table and only valid up to rows()
+        private final int k;
+
+        private Order(int k) {
+            this.k = k;
+        }
+
+        public int order() { return k; }
+        public int rows() { return rows; }
+        public int[] index() { return index[k]; }
+        public float[] x() { return x[k]; }
+        public float[] y() { return y[k]; }
+        public float[] z() { return z[k]; } // null without z
+        public float[] intensity() { return intensity[k]; }
+        public float[] distance() { return distance[k]; } // null for order 0
+        public float[] angle() { return angle[k]; }
+
+        public boolean present(int row) {
+            // Order 0 and 1 are always there, the others only if a pair with the previous order was connected
+            return k < 2 || distance[k][row] != 0.0f;
+        }
+    }
+
+    public PairTable(int orders, boolean hasZ, int capacity) {
+        this.orders = orders;
+        this.hasZ = hasZ;
+        capacity = Math.max(16, capacity);
+
+        id = new long[capacity];
+        frame = new int[capacity];
+        index = new int[orders][];
+        x = new float[orders][];
+        y = new float[orders][];
+        z = new float[orders][];
+        intensity = new float[orders][];
+        distance = new float[orders][];
+        angle = new float[orders][];
+        for (int k = 0; k < orders; k++) {
+            index[k] = new int[capacity];
+            x[k] = new float[capacity];
+            y[k] = new float[capacity];
+            if (hasZ) z[k] = new float[capacity];
+            intensity[k] = new float[capacity];
+            if (k > 0) {
+                distance[k] = new float[capacity];
+                angle[k] = new float[capacity];
+            }
+        }
+    }
+
+    public static long rowBytes(int orders, boolean hasZ) {
+        // The memory of one row: id and frame, and per order the index, x, y, z (with z), intensity
+        // and the distance and angle to the previous order (except for order 0)
+        return 8 + 4 + orders * (4 + 4 + 4 + (hasZ ? 4 : 0) + 4) + Math.max(0, orders - 1) * (4 + 4);
+    }
+
+    public int rows() { return rows; }
+    public int orders() { return orders; }
+    public boolean hasZ() { return hasZ; }
+    public long[] id() { return id; }
+    public int[] frame() { return frame; }
+
+    public Order order(int k) {
+        return new Order(k);
+    }
+
+    private void ensure(int extra) {
+        int capacity = id.length;
+        if (rows + extra <= capacity) return;
+        capacity = Math.max(capacity + (capacity >> 1), rows + extra);
+
+        id = Arrays.copyOf(id, capacity);
+        frame = Arrays.copyOf(frame, capacity);
+        for (int k = 0; k < orders; k++) {
+            index[k] = Arrays.copyOf(index[k], capacity);
+            x[k] = Arrays.copyOf(x[k], capacity);
+            y[k] = Arrays.copyOf(y[k], capacity);
+            if (hasZ) z[k] = Arrays.copyOf(z[k], capacity);
+            intensity[k] = Arrays.copyOf(intensity[k], capacity);
+            if (k > 0) {
+                distance[k] = Arrays.copyOf(distance[k], capacity);
+                angle[k] = Arrays.copyOf(angle[k], capacity);
+            }
+        }
+    }
+
+    public int addPair(int frame, int startIndex, float startX, float startY, float startZ, float startIntensity,
+                       int endIndex, float endX, float endY, float endZ, float endIntensity, float distance, float angle) {
+        // Adds a 0th-1st order pair, the further orders stay empty, and returns its row
+        ensure(1);
+        int row = rows++;
+        this.id[row] = 0;
+        this.frame[row] = frame;
+        put(row, 0, startIndex, startX, startY, startZ, startIntensity, 0, 0);
+        put(row, 1, endIndex, endX, endY, endZ, endIntensity, distance, angle);
+        for (int k = 2; k < orders; k++) put(row, k, 0, 0, 0, 0, 0, 0, 0);
+        return row;
+    }
+
+    public void put(int row, int k, int index, float x, float y, float z, float intensity, float distance, float angle) {
+        this.index[k][row] = index;
+        this.x[k][row] = x;
+        this.y[k][row] = y;
+        if (hasZ) this.z[k][row] = z;
+        this.intensity[k][row] = intensity;
+        if (k > 0) {
+            this.distance[k][row] = distance;
+            this.angle[k][row] = angle;
+        }
+    }
+
+    public void addRows(final FloatMatrix A) {
+        // Appends rows in the FloatMatrix layout, orders beyond the ones in A stay empty
+        int matrixOrders = Math.min(orders, A.columns / orderColumns);
+        ensure(A.rows);
+        for (int r = 0; r < A.rows; r++) {
+            int row = rows + r;
+            id[row] = (long) A.get(r, 0);
+            frame[row] = (int) A.get(r, 1);
+            for (int k = 0; k < orders; k++) {
+                if (k >= matrixOrders) {
+                    put(row, k, 0, 0, 0, 0, 0, 0, 0);
+                } else if (k == 0) {
+                    put(row, 0, (int) A.get(r, 2), A.get(r, 3), A.get(r, 4), A.get(r, 5), A.get(r, 6), 0, 0);
+                } else {
+                    int base = k * orderColumns;
+                    put(row, k, (int) A.get(r, base), A.get(r, base + 1), A.get(r, base + 2), A.get(r, base + 3),
+                            A.get(r, base + 4), A.get(r, base + 5), A.get(r, base + 6));
+                }
+            }
+        }
+        rows += A.rows;
+    }
+
+    public void addAll(final PairTable other) {
+        addRows(other, 0, other.rows);
+    }
+
+    private void addRows(final PairTable other, int from, int count) {
+        // Appends count rows of other, starting at row from
+        ensure(count);
+        System.arraycopy(other.id, from, id, rows, count);
+        System.arraycopy(other.frame, from, frame, rows, count);
+        for (int k = 0; k < orders; k++) {
+            System.arraycopy(other.index[k], from, index[k], rows, count);
+            System.arraycopy(other.x[k], from, x[k], rows, count);
+            System.arraycopy(other.y[k], from, y[k], rows, count);
+            if (hasZ) System.arraycopy(other.z[k], from, z[k], rows, count);
+            System.arraycopy(other.intensity[k], from, intensity[k], rows, count);
+            if (k > 0) {
+                System.arraycopy(other.distance[k], from, distance[k], rows, count);
+                System.arraycopy(other.angle[k], from, angle[k], rows, count);
+            }
+        }
+        rows += count;
+    }
+
+    public static PairTable concat(PairTable[] tables, int orders, boolean hasZ) {
+        int total = 0;
+        for (PairTable table : tables) total += table.rows;
+        PairTable result = new PairTable(orders, hasZ, total);
+        for (PairTable table : tables) result.addAll(table);
+        return result;
+    }
+
+    public static PairTable mergeByFrame(PairTable[] tables, int orders, boolean hasZ, long firstId) {
+        // One table sorted by frame from tables that each are sorted by frame already (those of the threads taking the frames in order),
+        // with the rows numbered from firstId on
+        // Rows of the same frame go in the order of the tables, which is the order sortByFrame() gives their concatenation
+        // Every step copies the longest stretch of one table that comes before all other tables, so a frame is copied in one go
+        int total = 0;
+        for (PairTable table : tables) {
+            total += table.rows;
+            if (!table.isSortedByFrame()) {
+                PairTable sorted = concat(tables, orders, hasZ).sortByFrame();
+                sorted.numberRows(firstId);
+                return sorted;
+            }
+        }
+
+        PairTable result = new PairTable(orders, hasZ, total);
+        final int[] next = new int[tables.length]; // The first row of each table that is not copied yet
+        while (result.rows < total) {
+            // The table with the lowest next frame, the first of them on a tie
+            int from = -1;
+            for (int t = 0; t < tables.length; t++) {
+                if (next[t] < tables[t].rows && (from == -1 || tables[t].frame[next[t]] < tables[from].frame[next[from]])) from = t;
+            }
+
+            // Its rows up to the next frame of the other tables, including that frame for the tables after it
+            long limit = Long.MAX_VALUE;
+            for (int t = 0; t < tables.length; t++) {
+                if (t == from || next[t] >= tables[t].rows) continue;
+                limit = Math.min(limit, t < from ? tables[t].frame[next[t]] - 1L : tables[t].frame[next[t]]);
+            }
+            final PairTable table = tables[from];
+            int end = next[from] + 1;
+            while (end < table.rows && table.frame[end] <= limit) end++;
+
+            result.addRows(table, next[from], end - next[from]);
+            next[from] = end;
+        }
+        result.numberRows(firstId);
+        return result;
+    }
+
+    private boolean isSortedByFrame() {
+        for (int i = 1; i < rows; i++) if (frame[i] < frame[i - 1]) return false;
+        return true;
+    }
+
+    public PairTable getRows(final int[] rowIndices) {
+        // A new table with the given rows in that order
+        PairTable result = new PairTable(orders, hasZ, rowIndices.length);
+        int n = rowIndices.length;
+        result.rows = n;
+        gather(id, result.id, rowIndices);
+        gather(frame, result.frame, rowIndices);
+        for (int k = 0; k < orders; k++) {
+            gather(index[k], result.index[k], rowIndices);
+            gather(x[k], result.x[k], rowIndices);
+            gather(y[k], result.y[k], rowIndices);
+            if (hasZ) gather(z[k], result.z[k], rowIndices);
+            gather(intensity[k], result.intensity[k], rowIndices);
+            if (k > 0) {
+                gather(distance[k], result.distance[k], rowIndices);
+                gather(angle[k], result.angle[k], rowIndices);
+            }
+        }
+        return result;
+    }
+
+    private static void gather(long[] from, long[] to, int[] rowIndices) {
+        for (int i = 0; i < rowIndices.length; i++) to[i] = from[rowIndices[i]];
+    }
+
+    private static void gather(int[] from, int[] to, int[] rowIndices) {
+        for (int i = 0; i < rowIndices.length; i++) to[i] = from[rowIndices[i]];
+    }
+
+    private static void gather(float[] from, float[] to, int[] rowIndices) {
+        for (int i = 0; i < rowIndices.length; i++) to[i] = from[rowIndices[i]];
+    }
+
+    public PairTable dup() {
+        int[] all = new int[rows];
+        for (int i = 0; i < rows; i++) all[i] = i;
+        return getRows(all);
+    }
+
+    public PairTable sortByFrame() {
+        // Same permutation as sorting the frame column of the FloatMatrix layout
+        FloatMatrix frames = new FloatMatrix(rows, 1);
+        for (int i = 0; i < rows; i++) frames.data[i] = frame[i];
+        return getRows(frames.sortingPermutation());
+    }
+
+    public void numberRows() {
+        // Gives every row its global id
+        numberRows(0);
+    }
+
+    public void numberRows(long first) {
+        // Numbers the rows starting at first, for tables that are one part of the whole result
+        for (int i = 0; i < rows; i++) id[i] = first + i;
+    }
+
+    private static boolean isIntegerColumn(int column) {
+        // The id, the frame and the index of every order, in the FloatMatrix layout
+        return column < 3 || column % orderColumns == 0;
+    }
+
+    public ResultTable asResultTable() {
+        // The table in the FloatMatrix layout, read straight from the arrays; missing z is written as 0
+        return new ResultTable() {
+            @Override
+            public long rows() { return rows; }
+
+            @Override
+            public int columns() { return orders * orderColumns; }
+
+            @Override
+            public boolean isInteger(int column) { return isIntegerColumn(column); }
+
+            @Override
+            public void readColumn(int column, long row, long[] into, int count) {
+                if (!isIntegerColumn(column)) {
+                    ResultTable.super.readColumn(column, row, into, count);
+                    return;
+                }
+                final int start = (int) row;
+                if (column == 0) {
+                    System.arraycopy(id, start, into, 0, count);
+                    return;
+                }
+                final int[] source = column == 1 ? frame : index[column < orderColumns ? 0 : column / orderColumns];
+                for (int i = 0; i < count; i++) into[i] = source[start + i];
+            }
+
+            @Override
+            public void readColumn(int column, long row, float[] into, int count) {
+                final int start = (int) row;
+                if (column == 0) {
+                    for (int i = 0; i < count; i++) into[i] = id[start + i];
+                    return;
+                }
+                if (column == 1) {
+                    for (int i = 0; i < count; i++) into[i] = frame[start + i];
+                    return;
+                }
+                // Order 0 has no distance and angle, its index sits in column 2
+                final int k = column < orderColumns ? 0 : column / orderColumns;
+                final int value = k == 0 ? column - 2 : column % orderColumns;
+                float[] source;
+                switch (value) {
+                    case 0:
+                        for (int i = 0; i < count; i++) into[i] = index[k][start + i];
+                        return;
+                    case 1: source = x[k]; break;
+                    case 2: source = y[k]; break;
+                    case 3: source = z[k]; break;
+                    case 4: source = intensity[k]; break;
+                    case 5: source = distance[k]; break;
+                    default: source = angle[k]; break;
+                }
+                if (source == null) Arrays.fill(into, 0, count, 0.0f);
+                else System.arraycopy(source, start, into, 0, count);
+            }
+        };
+    }
+
+    public FloatMatrix toFloatMatrix() {
+        // Column major, so every array is copied as one block
+        FloatMatrix A = new FloatMatrix(rows, orders * orderColumns);
+        float[] out = A.data;
+        for (int r = 0; r < rows; r++) {
+            out[r] = id[r];
+            out[rows + r] = frame[r];
+        }
+        for (int k = 0; k < orders; k++) {
+            int base = k == 0 ? 2 : k * orderColumns;
+            for (int r = 0; r < rows; r++) out[base * rows + r] = index[k][r];
+            System.arraycopy(x[k], 0, out, (base + 1) * rows, rows);
+            System.arraycopy(y[k], 0, out, (base + 2) * rows, rows);
+            if (hasZ) System.arraycopy(z[k], 0, out, (base + 3) * rows, rows);
+            System.arraycopy(intensity[k], 0, out, (base + 4) * rows, rows);
+            if (k > 0) {
+                System.arraycopy(distance[k], 0, out, (base + 5) * rows, rows);
+                System.arraycopy(angle[k], 0, out, (base + 6) * rows, rows);
+            }
+        }
+        return A;
+    }
+
+    public static PairTable fromResultTable(final ResultTable A, int orders, boolean hasZ) {
+        // The other way around from asResultTable, for example to read back a batch written to disk
+        final int n = (int) A.rows();
+        PairTable table = new PairTable(orders, hasZ, n);
+        table.rows = n;
+        long[] column = new long[n];
+
+        A.readColumn(0, 0, table.id, n);
+        A.readColumn(1, 0, column, n);
+        for (int i = 0; i < n; i++) table.frame[i] = (int) column[i];
+        for (int k = 0; k < orders; k++) {
+            int base = k == 0 ? 2 : k * orderColumns;
+            A.readColumn(base, 0, column, n);
+            for (int i = 0; i < n; i++) table.index[k][i] = (int) column[i];
+            A.readColumn(base + 1, 0, table.x[k], n);
+            A.readColumn(base + 2, 0, table.y[k], n);
+            if (hasZ) A.readColumn(base + 3, 0, table.z[k], n);
+            A.readColumn(base + 4, 0, table.intensity[k], n);
+            if (k > 0) {
+                A.readColumn(base + 5, 0, table.distance[k], n);
+                A.readColumn(base + 6, 0, table.angle[k], n);
+            }
+        }
+        return table;
+    }
+
+    public static PairTable fromFloatMatrix(final FloatMatrix A, int orders, boolean hasZ) {
+        PairTable table = new PairTable(orders, hasZ, A.rows);
+        table.addRows(A);
+        return table;
+    }
+}
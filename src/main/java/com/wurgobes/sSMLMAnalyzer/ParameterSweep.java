@@ -0,0 +1,322 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the parameter sweep: one localisation file analysed with a list of parameter sets.
+The file is loaded and its frames are indexed once (they are shared through the DatasetCache),
+after which the sets are analysed at the same time, each in its own result folder with its own info.xml.
+The sets are Analyze Pairs macro options, given one per line or as a csv with a keyword per column and a set per row.
+At the end a table compares the sets: the amount of pairs, how long the chains are and how wide the distance
+and angle distributions are. It is shown and saved as sweep_summary.csv.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import fiji.util.gui.GenericDialogPlus;
+import ij.Macro;
+import ij.measure.ResultsTable;
+import net.imagej.lut.LUTService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.wurgobes.sSMLMAnalyzer.Util.getOrdinal;
+
+@Plugin(type = Command.class, menuPath = "Plugins>Spectral Analyzer>Parameter Sweep")
+public class ParameterSweep implements Command {
+
+    @Parameter
+    private LogService logService;
+
+    @Parameter
+    private LUTService lutService;
+
+    private String filePath = "";
+    private String outputFolder = "";
+    private String sets = ""; // One set of Analyze Pairs options per line (or separated by ;)
+    private String setsFile = ""; // Or a csv: keywords in the header, one set per row
+    private String options = ""; // Options used for every set
+    private int threads = 2; // Sets analysed at the same time
+
+    private static class Result {
+        final String options;
+        int orders = 0;
+        double[] values = null; // summarise() of its pairs with its own orders, null without pairs
+        double time = 0;
+
+        Result(String options) {
+            this.options = options;
+        }
+    }
+
+    private boolean setup() {
+        String arg = Macro.getOptions();
+        if (arg != null && !arg.equals("")) {
+            filePath = Macro.getValue(arg, "csv_in", filePath);
+            outputFolder = Macro.getValue(arg, "csv_out", outputFolder);
+            sets = Macro.getValue(arg, "sets", sets);
+            setsFile = Macro.getValue(arg, "sets_file", setsFile);
+            options = Macro.getValue(arg, "options", options);
+            try {
+                threads = Integer.parseInt(Macro.getValue(arg, "threads", String.valueOf(threads)));
+            } catch (NumberFormatException e) {
+                logService.error("Malformed number: " + e.getMessage());
+                return false;
+            }
+        } else {
+            GenericDialogPlus gd = new GenericDialogPlus("Parameter Sweep");
+            gd.addFileField("CSV input", filePath, 25);
+            gd.addDirectoryField("Output directory", outputFolder, 25);
+            gd.addFileField("Sets from csv (optional)", setsFile, 25);
+            gd.addStringField("Options for every set", options, 40);
+            gd.addNumericField("Sets at the same time", threads);
+            gd.addMessage("One set of Analyze Pairs options per line, for example:\n" +
+                    "order_number=3 check_order_ratio=1.5\n" +
+                    "order_number=4 lone_pair_remove=true lone_pair_neighbours=5 lone_pair_distance=200");
+            gd.addTextAreas(sets, null, 10, 60);
+            gd.showDialog();
+            if (gd.wasCanceled()) return false;
+
+            filePath = gd.getNextString();
+            outputFolder = gd.getNextString();
+            setsFile = gd.getNextString();
+            options = gd.getNextString();
+            threads = Math.max(1, (int) gd.getNextNumber());
+            sets = gd.getNextText();
+        }
+
+        if (filePath.equals("")) {
+            logService.error("No input CSV was set");
+            return false;
+        }
+        if (outputFolder.equals("")) {
+            logService.error("No output directory was set");
+            return false;
+        }
+        threads = Math.max(1, threads);
+        return true;
+    }
+
+    private List<String> readSets() throws IOException {
+        // The inline sets, followed by those in the csv
+        List<String> result = new ArrayList<>();
+        for (String set : sets.split("[;\n]")) {
+            if (!set.trim().equals("")) result.add(set.trim());
+        }
+
+        if (!setsFile.equals("")) {
+            List<String> lines = Files.readAllLines(Paths.get(setsFile), StandardCharsets.UTF_8);
+            if (lines.isEmpty()) return result;
+            String separator = lines.get(0).contains("\t") ? "\t" : lines.get(0).contains(";") ? ";" : ",";
+            String[] keywords = lines.get(0).split(separator);
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.trim().equals("")) continue;
+                String[] values = line.split(separator, -1);
+                StringBuilder set = new StringBuilder();
+                // An empty cell leaves that setting at its default
+                for (int i = 0; i < keywords.length && i < values.length; i++) {
+                    String value = values[i].trim();
+                    if (value.equals("")) continue;
+                    if (set.length() > 0) set.append(' ');
+                    set.append(keywords[i].trim()).append('=').append(value.contains(" ") ? "'" + value + "'" : value);
+                }
+                result.add(set.toString());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void run() {
+        if (!setup()) return;
+
+        final List<String> parameterSets;
+        final String datasetKey;
+        try {
+            parameterSets = readSets();
+            Files.createDirectories(Paths.get(outputFolder));
+            datasetKey = DatasetCache.key(filePath);
+        } catch (IOException e) {
+            logService.error(e.getMessage());
+            return;
+        }
+        if (parameterSets.isEmpty()) {
+            logService.error("No parameter sets were given");
+            return;
+        }
+
+        // Load the file once, pinned so it stays while the sets run
+        final boolean wasPinned = DatasetCache.isPinned(datasetKey);
+        if (DatasetCache.get(datasetKey) == null) {
+            double loadTime = System.nanoTime();
+            try {
+                DatasetCache.put(datasetKey, new OwnFloatMatrixLoader().loadTable(filePath), true);
+            } catch (IOException e) {
+                logService.error("Could not load " + filePath + ": " + e.getMessage());
+                return;
+            }
+            logService.info("Loading CSV took " + String.format("%.3f", (System.nanoTime() - loadTime) / 1000000000) + " s");
+        } else {
+            DatasetCache.pin(datasetKey, true);
+        }
+
+        final Result[] results = new Result[parameterSets.size()];
+        for (int i = 0; i < results.length; i++) results[i] = new Result(parameterSets.get(i));
+        logService.info("Running " + results.length + " parameter sets, " + Math.min(threads, results.length) + " at a time");
+
+        // The sets run on the threads of WorkerPool, as do their stages, so together they never use more than its threads
+        final AtomicInteger ai = new AtomicInteger(0);
+        try {
+            WorkerPool.run(Math.min(threads, results.length), ithread -> {
+                for (int i = ai.getAndIncrement(); i < results.length; i = ai.getAndIncrement()) {
+                    Result result = results[i];
+                    // Each set has its own folder, and nothing is kept for later runs except the file itself
+                    String arguments = "csv_in='" + filePath + "' csv_out='" + setFolder(i) + "' stage_cache=off" +
+                            (options.equals("") ? "" : " " + options) + " " + result.options;
+                    long start = System.nanoTime();
+                    try {
+                        Files.createDirectories(setFolder(i));
+                        sSMLMA<?> analysis = new sSMLMA<>();
+                        analysis.run(arguments, logService, lutService);
+                        // Only the summary of the pairs is kept, so the memory used does not grow with the amount of sets
+                        PairTable pairs = analysis.getResultPairs();
+                        if (pairs != null) {
+                            result.orders = pairs.orders();
+                            result.values = new double[Math.max(result.orders, 2) + 4];
+                            Arrays.fill(result.values, Double.NaN);
+                            summarise(pairs, result.orders, result.values);
+                        }
+                    } catch (Exception e) {
+                        logService.error("Set " + (i + 1) + " failed: " + e);
+                    }
+                    result.time = (System.nanoTime() - start) / 1e9;
+                    logService.info("Set " + (i + 1) + "/" + results.length + " done: " + (result.values == null ? "no pairs" : (long) result.values[0] + " pairs"));
+                }
+            });
+        } finally {
+            if (!wasPinned) DatasetCache.pin(datasetKey, false);
+        }
+
+        summarise(results);
+    }
+
+    private Path setFolder(int i) {
+        return Paths.get(outputFolder, "set_" + (i + 1));
+    }
+
+    private void summarise(Result[] results) {
+        // One row per set, shown as a table and saved as sweep_summary.csv
+        int orders = 0;
+        for (Result result : results) if (result.values != null) orders = Math.max(orders, result.orders);
+
+        List<String> header = new ArrayList<>(Arrays.asList("set", "options", "pairs", "mean chain length"));
+        for (int k = 2; k < orders; k++) header.add("with " + getOrdinal(k) + " order");
+        header.addAll(Arrays.asList("distance mean", "distance std", "distance IQR", "angle std (rad)", "time (s)"));
+
+        ResultsTable table = new ResultsTable();
+        List<String> lines = new ArrayList<>();
+        lines.add(String.join(",", header));
+
+        for (int i = 0; i < results.length; i++) {
+            Result result = results[i];
+            double[] values = new double[header.size() - 2];
+            Arrays.fill(values, Double.NaN);
+            if (result.values != null) {
+                // The further orders a set did not have are counted as absent
+                values[0] = result.values[0];
+                values[1] = result.values[1];
+                for (int k = 2; k < orders; k++) values[k] = k < result.orders ? result.values[k] : result.values[0] == 0 ? Double.NaN : 0;
+                System.arraycopy(result.values, Math.max(result.orders, 2), values, Math.max(orders, 2), 4);
+            }
+            values[values.length - 1] = result.time;
+
+            table.incrementCounter();
+            table.addValue("set", i + 1);
+            table.addValue("options", result.options);
+            StringBuilder line = new StringBuilder().append(i + 1).append(",\"").append(result.options.replace("\"", "\"\"")).append('"');
+            for (int c = 0; c < values.length; c++) {
+                table.addValue(header.get(c + 2), values[c]);
+                line.append(',').append(Double.isNaN(values[c]) ? "" : String.format(Locale.US, "%.6g", values[c]));
+            }
+            lines.add(line.toString());
+        }
+        table.show("Parameter Sweep");
+
+        Path summary = Paths.get(outputFolder, "sweep_summary.csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(summary, StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            logService.info("Wrote " + summary);
+        } catch (IOException e) {
+            logService.error("Could not create file: " + summary + ". Is the file opened anywhere?");
+        }
+    }
+
+    private static void summarise(PairTable pairs, int orders, double[] values) {
+        // pairs, mean chain length, rows with each further order, 0-1 distance mean, std and interquartile range, angle std
+        final int rows = pairs.rows();
+        values[0] = rows;
+        if (rows == 0) return;
+
+        long chainLength = 0;
+        for (int k = 2; k < orders; k++) {
+            int present = 0;
+            if (k < pairs.orders()) {
+                PairTable.Order order = pairs.order(k);
+                for (int r = 0; r < rows; r++) if (order.present(r)) present++;
+            }
+            values[k] = present;
+            chainLength += present;
+        }
+        // Every row has at least the 0th and 1st order
+        values[1] = 2 + chainLength / (double) rows;
+
+        int i = Math.max(orders, 2);
+        float[] distance = Arrays.copyOf(pairs.order(1).distance(), rows);
+        double[] distanceStats = meanAndStd(distance);
+        Arrays.sort(distance);
+        values[i++] = distanceStats[0];
+        values[i++] = distanceStats[1];
+        values[i++] = distance[(int) (0.75 * (rows - 1))] - distance[(int) (0.25 * (rows - 1))];
+        values[i] = meanAndStd(Arrays.copyOf(pairs.order(1).angle(), rows))[1];
+    }
+
+    private static double[] meanAndStd(float[] values) {
+        double sum = 0, squares = 0;
+        for (float v : values) {
+            sum += v;
+            squares += (double) v * v;
+        }
+        double mean = sum / values.length;
+        return new double[]{mean, Math.sqrt(Math.max(0, squares / values.length - mean * mean))};
+    }
+}
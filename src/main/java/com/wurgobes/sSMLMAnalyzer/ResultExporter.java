@@ -0,0 +1,239 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the export stage: every result file is registered once, and they are then all written at the same time.
+Each file gets its own writer thread, and the formatting threads are divided over the files by how many numbers they contain,
+so the bigger files do not hold up the smaller ones and the total time is close to that of the biggest file.
+Columns (for example the empty z columns) are left out by selecting the columns to write, nothing is copied.
+Optionally every table is also written as binary .npy, see NpyWriter, and the csv files can be gzipped.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ResultExporter {
+
+    private static class Table {
+        final String fileName;
+        final ResultTable data;
+        final int[] columns; // null for all columns
+        final List<String> headers;
+        final String separator;
+        final CSVWriter.Notation notation;
+
+        Table(String fileName, ResultTable data, int[] columns, List<String> headers, String separator, CSVWriter.Notation notation) {
+            this.fileName = fileName;
+            this.data = data;
+            this.columns = columns;
+            this.headers = headers;
+            this.separator = separator;
+            this.notation = notation;
+        }
+
+        long cells() {
+            return data.rows() * (columns == null ? data.columns() : columns.length);
+        }
+
+        String baseName() {
+            int dot = fileName.lastIndexOf('.');
+            return dot > 0 ? fileName.substring(0, dot) : fileName;
+        }
+    }
+
+    private final Path directory;
+    private final int coreCount;
+    private final List<Table> tables = new ArrayList<>();
+    private NpyWriter.Layout binaryLayout = NpyWriter.Layout.NONE;
+    private boolean compress = false;
+    private CancellationToken cancellation = CancellationToken.NONE;
+    private final List<Path> created = new ArrayList<>(); // The files (and folders) this export wrote, in that order
+
+    public ResultExporter(Path directory, int coreCount) {
+        this.directory = directory;
+        this.coreCount = coreCount;
+    }
+
+    public void add(String fileName, ResultTable data, int[] columns, List<String> headers) {
+        add(fileName, data, columns, headers, ",", CSVWriter.Notation.FLOAT);
+    }
+
+    public void add(String fileName, ResultTable data, int[] columns, List<String> headers, String separator, CSVWriter.Notation notation) {
+        // The writers read the table block by block, so every block checks if the run was stopped
+        final CancellationToken token = cancellation;
+        ResultTable checked = new ResultTable() {
+            @Override
+            public long rows() { return data.rows(); }
+
+            @Override
+            public int columns() { return data.columns(); }
+
+            @Override
+            public boolean isInteger(int column) { return data.isInteger(column); }
+
+            @Override
+            public void readColumn(int column, long row, float[] into, int count) {
+                token.check();
+                data.readColumn(column, row, into, count);
+            }
+
+            @Override
+            public void readColumn(int column, long row, long[] into, int count) {
+                token.check();
+                data.readColumn(column, row, into, count);
+            }
+        };
+        tables.add(new Table(fileName, checked, columns, headers, separator, notation));
+    }
+
+    public void setCancellation(CancellationToken cancellation) {
+        // Set before adding the tables
+        this.cancellation = cancellation;
+    }
+
+    public void setBinaryLayout(NpyWriter.Layout layout) {
+        this.binaryLayout = layout;
+    }
+
+    public void setCompress(boolean compress) {
+        // The csv files get a .gz extension and are gzipped while they are written
+        this.compress = compress;
+    }
+
+    public List<String> write() {
+        // Writes all files at the same time, and returns the names of the ones that could not be written, each with the reason
+        final List<String> failed = new ArrayList<>();
+        if (tables.isEmpty()) return failed;
+
+        final long totalCells = tables.stream().mapToLong(Table::cells).sum();
+
+        final boolean binary = binaryLayout != NpyWriter.Layout.NONE;
+        if (binary) {
+            try {
+                writeSchema(created(directory.resolve("schema.json")));
+            } catch (Exception e) {
+                failed.add(failure("schema.json", e));
+            }
+        }
+
+        // One task per csv file, and when saving binary one more per table for its .npy file(s)
+        // These mostly wait for the disk, the csv formatting itself is done on the shared worker threads
+        WorkerPool.io("sSMLMA writer", tables.size() * (binary ? 2 : 1), itask -> {
+            final Table table = tables.get(itask % tables.size());
+            if (itask >= tables.size()) {
+                try {
+                    writeBinary(table);
+                } catch (Exception e) {
+                    synchronized (failed) {
+                        failed.add(failure(binaryLayout == NpyWriter.Layout.TABLE ? table.baseName() + ".npy" : table.baseName() + "/", e));
+                    }
+                }
+                return;
+            }
+
+            // Every file gets a share of the formatting threads that matches its size
+            final int share = (int) Math.max(1, Math.round(coreCount * (double) table.cells() / Math.max(1, totalCells)));
+            final String fileName = compress ? table.fileName + ".gz" : table.fileName;
+            try {
+                CSVWriter.write(table.data, table.columns, table.headers, table.separator, table.notation, created(directory.resolve(fileName)), share);
+            } catch (Exception e) {
+                synchronized (failed) {
+                    failed.add(failure(fileName, e));
+                }
+            }
+        }).join();
+
+        // A stopped run leaves no half written files behind
+        if (cancellation.isCancelled()) {
+            removeFiles();
+            cancellation.check();
+        }
+        return failed;
+    }
+
+    private static String failure(String name, Exception e) {
+        // The cause of a failed file, such as a file that is open elsewhere or a full disk
+        return name + " (" + e + (e.getCause() == null ? "" : ", " + e.getCause()) + ")";
+    }
+
+    private Path created(Path path) {
+        // Called just before path is written
+        synchronized (created) {
+            created.add(path);
+        }
+        return path;
+    }
+
+    private void removeFiles() {
+        // Only what this export wrote, the files in a folder before the folder itself
+        // A folder that holds anything else is kept
+        synchronized (created) {
+            for (int i = created.size() - 1; i >= 0; i--) {
+                try {
+                    Files.deleteIfExists(created.get(i));
+                } catch (IOException ignored) {}
+            }
+            created.clear();
+        }
+    }
+
+    private void writeBinary(Table table) throws Exception {
+        if (binaryLayout == NpyWriter.Layout.TABLE) {
+            NpyWriter.writeTable(created(directory.resolve(table.baseName() + ".npy")), table.data, table.columns);
+        } else {
+            Path folder = directory.resolve(table.baseName());
+            if (!Files.isDirectory(folder)) Files.createDirectories(created(folder));
+            int count = table.columns == null ? table.data.columns() : table.columns.length;
+            for (int c = 0; c < count; c++) {
+                String header = c < table.headers.size() ? table.headers.get(c) : "column " + c;
+                NpyWriter.writeColumn(created(folder.resolve(NpyWriter.columnFileName(c, header))), table.data, table.columns == null ? c : table.columns[c]);
+            }
+        }
+    }
+
+    private void writeSchema(Path path) throws Exception {
+        List<String> names = new ArrayList<>();
+        List<ResultTable> data = new ArrayList<>();
+        List<int[]> columns = new ArrayList<>();
+        List<List<String>> headers = new ArrayList<>();
+        for (Table table : tables) {
+            names.add(table.baseName());
+            data.add(table.data);
+            columns.add(table.columns);
+            headers.add(table.headers);
+        }
+        NpyWriter.writeSchema(path, binaryLayout, names, data, columns, headers);
+    }
+
+    public static int[] withoutZ(int orders, int orderColumns) {
+        // Columns of the pair table without the z of each order
+        // 0 id, 1 frame, 2 index, 3 x, 4 y, 6 intensity, and for each further order index, x, y, intensity, distance, angle
+        int[] columns = new int[orders * (orderColumns - 1)];
+        int[] first = new int[]{0, 1, 2, 3, 4, 6};
+        System.arraycopy(first, 0, columns, 0, first.length);
+        for (int i = 1; i < orders; i++) {
+            int[] order = new int[]{orderColumns * i, orderColumns * i + 1, orderColumns * i + 2, orderColumns * i + 4, orderColumns * i + 5, orderColumns * i + 6};
+            System.arraycopy(order, 0, columns, (orderColumns - 1) * i, order.length);
+        }
+        return columns;
+    }
+}
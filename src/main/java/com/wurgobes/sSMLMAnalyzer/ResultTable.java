@@ -0,0 +1,90 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains what the writers need from a table: its size and a way to copy a run of one column.
+The rows are counted with a long, so a table is not limited to 2^31 numbers like a FloatMatrix.
+A FloatMatrix, the PairTable and the LocalisationTable can all be written this way.
+Columns of whole numbers (the ids, frames and indices of the PairTable) can also be copied as longs,
+so they are written exactly instead of rounded to a float beyond 2^24.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import org.jblas.FloatMatrix;
+
+public interface ResultTable {
+
+    long rows();
+
+    int columns();
+
+    // Copies count values of column, starting at row, into the start of into
+    void readColumn(int column, long row, float[] into, int count);
+
+    // Whether column only holds whole numbers, which the long version of readColumn gives without rounding
+    default boolean isInteger(int column) { return false; }
+
+    default void readColumn(int column, long row, long[] into, int count) {
+        float[] values = new float[count];
+        readColumn(column, row, values, count);
+        for (int i = 0; i < count; i++) into[i] = (long) values[i];
+    }
+
+    static ResultTable of(final FloatMatrix A) {
+        return new ResultTable() {
+            @Override
+            public long rows() { return A.rows; }
+
+            @Override
+            public int columns() { return A.columns; }
+
+            @Override
+            public void readColumn(int column, long row, float[] into, int count) {
+                // Column major, so a column is one block
+                System.arraycopy(A.data, column * A.rows + (int) row, into, 0, count);
+            }
+        };
+    }
+
+    static ResultTable withColumns(final ResultTable table, final ResultTable from, final int... columns) {
+        // table, with the given columns read from the same columns of from
+        // The combined positions keep the id and frame of their pair as floats, the pair table has them exactly
+        final boolean[] replaced = new boolean[table.columns()];
+        for (int column : columns) replaced[column] = true;
+        return new ResultTable() {
+            @Override
+            public long rows() { return table.rows(); }
+
+            @Override
+            public int columns() { return table.columns(); }
+
+            @Override
+            public boolean isInteger(int column) { return replaced[column] ? from.isInteger(column) : table.isInteger(column); }
+
+            @Override
+            public void readColumn(int column, long row, float[] into, int count) {
+                (replaced[column] ? from : table).readColumn(column, row, into, count);
+            }
+
+            @Override
+            public void readColumn(int column, long row, long[] into, int count) {
+                (replaced[column] ? from : table).readColumn(column, row, into, count);
+            }
+        };
+    }
+}
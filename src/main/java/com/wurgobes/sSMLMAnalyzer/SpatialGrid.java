@@ -0,0 +1,117 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains a uniform grid over a set of points, used to find every pair of points within a radius
+without calculating the distance from each point to every other point.
+The points are bucketed by cell (counting sort), so only the 3x3 block of cells around a point has to be checked.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+public class SpatialGrid {
+
+    public interface PairVisitor {
+        // i < j, dx and dy point from i to j
+        void visit(int i, int j, float dx, float dy);
+    }
+
+    private final float[] x;
+    private final float[] y;
+    private final int n;
+
+    private final float minX;
+    private final float minY;
+    private final float cellSize;
+    private final int cellsX;
+    private final int cellsY;
+
+    private final int[] cellStart; // points in cell c are cellPoints[cellStart[c]] up to cellPoints[cellStart[c + 1]]
+    private final int[] cellPoints;
+
+    public SpatialGrid(final float[] x, final float[] y, int n, float radius) {
+        this.x = x;
+        this.y = y;
+        this.n = n;
+
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        if (n == 0) minX = minY = maxX = maxY = 0;
+
+        this.minX = minX;
+        this.minY = minY;
+
+        // The cells have to be at least as large as the radius so the 3x3 block covers it
+        // For sparse points we grow them so there are at most ~4 cells per point
+        float extent = Math.max(maxX - minX, maxY - minY);
+        float size = Math.max(radius, extent / (float) Math.sqrt(4.0 * n + 1));
+        if (!(size > 0)) size = 1;
+        this.cellSize = size;
+        this.cellsX = (int) ((maxX - minX) / size) + 1;
+        this.cellsY = (int) ((maxY - minY) / size) + 1;
+
+        int[] cellOf = new int[n];
+        cellStart = new int[cellsX * cellsY + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = cell(x[i], y[i]);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int c = 0; c < cellsX * cellsY; c++) cellStart[c + 1] += cellStart[c];
+
+        int[] fill = new int[cellsX * cellsY];
+        cellPoints = new int[n];
+        for (int i = 0; i < n; i++) {
+            cellPoints[cellStart[cellOf[i]] + fill[cellOf[i]]++] = i;
+        }
+    }
+
+    private int cell(float px, float py) {
+        int cx = Math.min(cellsX - 1, (int) ((px - minX) / cellSize));
+        int cy = Math.min(cellsY - 1, (int) ((py - minY) / cellSize));
+        return cx + cy * cellsX;
+    }
+
+    public void visitPairs(float radius, PairVisitor visitor) {
+        // Visits every unordered pair of points closer than the radius exactly once
+        final float radiusSquared = radius * radius;
+
+        for (int i = 0; i < n; i++) {
+            int cx = Math.min(cellsX - 1, (int) ((x[i] - minX) / cellSize));
+            int cy = Math.min(cellsY - 1, (int) ((y[i] - minY) / cellSize));
+
+            for (int ny = Math.max(0, cy - 1); ny <= Math.min(cellsY - 1, cy + 1); ny++) {
+                for (int nx = Math.max(0, cx - 1); nx <= Math.min(cellsX - 1, cx + 1); nx++) {
+                    int c = nx + ny * cellsX;
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int j = cellPoints[k];
+                        if (j <= i) continue;
+
+                        float dx = x[j] - x[i];
+                        float dy = y[j] - y[i];
+                        if (dx * dx + dy * dy <= radiusSquared) visitor.visit(i, j, dx, dy);
+                    }
+                }
+            }
+        }
+    }
+}
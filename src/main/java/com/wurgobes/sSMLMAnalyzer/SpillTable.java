@@ -0,0 +1,245 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains a table that is kept on disk instead of in memory, used when running with a memory limit.
+It is filled one batch (for example one range of frames) at a time, and every batch becomes one binary file
+with its columns one after the other as little endian float32, or int64 for the columns of whole numbers.
+The whole table can be read like any other ResultTable, so the writers stream it straight from these files,
+and each batch can also be read back on its own. The files are removed by close().
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpillTable implements ResultTable, Closeable {
+
+    private static final int bufferFloats = 1 << 18; // 1 MB
+
+    private static class Batch {
+        final Path path;
+        final FileChannel channel;
+        final long firstRow;
+        final int rows;
+        final long[] positions; // Where each column starts in the file
+
+        Batch(Path path, FileChannel channel, long firstRow, int rows, long[] positions) {
+            this.path = path;
+            this.channel = channel;
+            this.firstRow = firstRow;
+            this.rows = rows;
+            this.positions = positions;
+        }
+    }
+
+    private interface Part {
+        void read(Batch batch, int row, int offset, int count);
+    }
+
+    private final Path directory;
+    private final String name;
+    private final int columns;
+    private final List<Batch> batches = new ArrayList<>();
+    private long rows = 0;
+    private boolean[] integer = null; // The columns of whole numbers, taken from the first batch
+
+    public SpillTable(Path directory, String name, int columns) {
+        this.directory = directory;
+        this.name = name;
+        this.columns = columns;
+    }
+
+    @Override
+    public long rows() { return rows; }
+
+    @Override
+    public int columns() { return columns; }
+
+    @Override
+    public boolean isInteger(int column) { return integer != null && integer[column]; }
+
+    public int batches() { return batches.size(); }
+
+    public void append(final ResultTable batch) throws IOException {
+        // Writes the batch as a new file, column after column
+        final int batchRows = (int) batch.rows();
+        Path path = directory.resolve(name + "_" + batches.size() + ".bin");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long[] positions = new long[columns];
+        try {
+            if (integer == null) {
+                integer = new boolean[columns];
+                for (int c = 0; c < columns; c++) integer[c] = batch.isInteger(c);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferFloats * 4).order(ByteOrder.LITTLE_ENDIAN);
+            float[] values = new float[bufferFloats];
+            long[] whole = new long[bufferFloats / 2];
+            long position = 0;
+            for (int c = 0; c < columns; c++) {
+                positions[c] = position;
+                final int chunk = integer[c] ? whole.length : values.length;
+                for (int start = 0; start < batchRows; start += chunk) {
+                    int count = Math.min(chunk, batchRows - start);
+                    buffer.clear();
+                    if (integer[c]) {
+                        batch.readColumn(c, start, whole, count);
+                        buffer.asLongBuffer().put(whole, 0, count);
+                        buffer.limit(count * 8);
+                    } else {
+                        batch.readColumn(c, start, values, count);
+                        buffer.asFloatBuffer().put(values, 0, count);
+                        buffer.limit(count * 4);
+                    }
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                }
+                position += (long) batchRows * (integer[c] ? 8 : 4);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            // close() only deletes the files of the batches that were kept, so this one is deleted here
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (batches.isEmpty()) integer = null;
+            throw e;
+        }
+
+        batches.add(new Batch(path, channel, rows, batchRows, positions));
+        rows += batchRows;
+    }
+
+    public ResultTable batch(final int i) {
+        // One batch on its own, read from its file
+        final Batch batch = batches.get(i);
+        return new ResultTable() {
+            @Override
+            public long rows() { return batch.rows; }
+
+            @Override
+            public int columns() { return columns; }
+
+            @Override
+            public boolean isInteger(int column) { return SpillTable.this.isInteger(column); }
+
+            @Override
+            public void readColumn(int column, long row, float[] into, int count) {
+                read(batch, column, (int) row, into, 0, count);
+            }
+
+            @Override
+            public void readColumn(int column, long row, long[] into, int count) {
+                read(batch, column, (int) row, into, 0, count);
+            }
+        };
+    }
+
+    @Override
+    public void readColumn(int column, long row, float[] into, int count) {
+        readParts(row, count, (batch, offset, done, length) -> read(batch, column, offset, into, done, length));
+    }
+
+    @Override
+    public void readColumn(int column, long row, long[] into, int count) {
+        readParts(row, count, (batch, offset, done, length) -> read(batch, column, offset, into, done, length));
+    }
+
+    private void readParts(long row, int count, Part part) {
+        // The run can cross from one batch into the next
+        int batchIndex = findBatch(row);
+        int done = 0;
+        while (done < count) {
+            Batch batch = batches.get(batchIndex++);
+            int offset = (int) (row + done - batch.firstRow);
+            int length = Math.min(count - done, batch.rows - offset);
+            part.read(batch, offset, done, length);
+            done += length;
+        }
+    }
+
+    private int findBatch(long row) {
+        int low = 0, high = batches.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (batches.get(middle).firstRow <= row) low = middle;
+            else high = middle - 1;
+        }
+        return low;
+    }
+
+    private void read(Batch batch, int column, int row, float[] into, int offset, int count) {
+        ByteBuffer buffer = read(batch, column, row, count);
+        if (isInteger(column)) {
+            for (int i = 0; i < count; i++) into[offset + i] = buffer.getLong(i * 8);
+        } else {
+            buffer.asFloatBuffer().get(into, offset, count);
+        }
+    }
+
+    private void read(Batch batch, int column, int row, long[] into, int offset, int count) {
+        ByteBuffer buffer = read(batch, column, row, count);
+        if (isInteger(column)) {
+            buffer.asLongBuffer().get(into, offset, count);
+        } else {
+            for (int i = 0; i < count; i++) into[offset + i] = (long) buffer.getFloat(i * 4);
+        }
+    }
+
+    private ByteBuffer read(Batch batch, int column, int row, int count) {
+        // Reads at a fixed position, so several threads can read the same file at once
+        int width = isInteger(column) ? 8 : 4;
+        ByteBuffer buffer = ByteBuffer.allocate(count * width).order(ByteOrder.LITTLE_ENDIAN);
+        long position = batch.positions[column] + (long) row * width;
+        try {
+            while (buffer.hasRemaining()) {
+                if (batch.channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of " + batch.path.getFileName());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void close() {
+        for (Batch batch : batches) {
+            try {
+                batch.channel.close();
+                Files.deleteIfExists(batch.path);
+            } catch (IOException ignored) {}
+        }
+        batches.clear();
+        rows = 0;
+        integer = null;
+    }
+}
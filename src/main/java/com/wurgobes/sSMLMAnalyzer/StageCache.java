@@ -0,0 +1,268 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the cache of the analysis stages, kept for as long as ImageJ runs.
+The analysis is a chain of stages: input -> calibration -> pairs -> filters, after which the output files and plots are made.
+Each stage result is stored under a key made of the key of the stage before it and its own settings,
+so a run where only later settings changed (for example the lone pair filter, the histogram bin width, the LUT or the LUT range)
+finds the earlier stages under the same key and starts from there.
+Only the last result of each stage is kept; replacing it drops every stage that was computed from it.
+The input stage only starts the chain of keys, the loaded files themselves are kept by DatasetCache.
+The pairs can also be stored on disk, so they are reused after ImageJ is restarted.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.Prefs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class StageCache {
+
+    public enum Stage {
+        INPUT(null), CALIBRATION(INPUT), PAIRS(CALIBRATION), FILTERS(PAIRS);
+
+        private final Stage parent;
+
+        Stage(Stage parent) {
+            this.parent = parent;
+        }
+
+        public Stage getParent() { return parent; }
+
+        boolean dependsOn(Stage stage) {
+            for (Stage s = parent; s != null; s = s.parent) if (s == stage) return true;
+            return false;
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final Object value;
+
+        Entry(String key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final Map<Stage, Entry> entries = new EnumMap<>(Stage.class);
+
+    private static final int diskEntries = 8; // Tables kept on disk, the oldest are removed
+    private static final int magic = 0x53534332; // "SSC2", "SSC1" stored the ids and frames as floats
+    private static final int bufferFloats = 1 << 18; // 1 MB
+
+    public static String key(Stage stage, String parentKey, Object... settings) {
+        // The key of a stage contains the key of the stage before it, so a change anywhere upstream changes it
+        StringBuilder key = new StringBuilder();
+        if (parentKey != null) key.append(parentKey).append(" | ");
+        key.append(stage.name().toLowerCase());
+        for (Object setting : settings) key.append(' ').append(setting);
+        return key.toString();
+    }
+
+    public static synchronized Object get(Stage stage, String key) {
+        Entry entry = entries.get(stage);
+        return entry != null && entry.key.equals(key) ? entry.value : null;
+    }
+
+    public static synchronized void put(Stage stage, String key, Object value) {
+        Entry old = entries.get(stage);
+        if (old != null && old.key.equals(key)) return;
+        // Anything computed from the result this replaces is no longer valid
+        for (Stage s : Stage.values()) if (s.dependsOn(stage)) entries.remove(s);
+        entries.put(stage, new Entry(key, value));
+    }
+
+    public static synchronized void clear() {
+        entries.clear();
+    }
+
+    public static Path getStore() {
+        // Next to the ImageJ preferences, like the calibration profiles
+        return Paths.get(Prefs.getPrefsDir(), "sSMLMA_cache");
+    }
+
+    private static Path getStorePath(String key) throws IOException {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) name.append(String.format("%02x", b));
+            return getStore().resolve(name + ".bin");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No SHA-1 available: " + e.getMessage());
+        }
+    }
+
+    public static void save(String key, float[] values, ResultTable table) throws IOException {
+        // Stores a few values and a table under this key, as little endian float32 column after column (int64 for whole numbers)
+        Path path = getStorePath(key);
+        Files.createDirectories(path.getParent());
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+            header.writeInt(magic);
+            header.writeUTF(key);
+            header.writeInt(values.length);
+            for (float value : values) header.writeFloat(value);
+            header.writeLong(table.rows());
+            header.writeInt(table.columns());
+            for (int c = 0; c < table.columns(); c++) header.writeBoolean(table.isInteger(c));
+        }
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes.toByteArray());
+            while (headerBuffer.hasRemaining()) channel.write(headerBuffer);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferFloats * 4).order(ByteOrder.LITTLE_ENDIAN);
+            float[] column = new float[bufferFloats];
+            long[] whole = new long[bufferFloats / 2];
+            for (int c = 0; c < table.columns(); c++) {
+                final boolean integer = table.isInteger(c);
+                final int chunk = integer ? whole.length : column.length;
+                for (long start = 0; start < table.rows(); start += chunk) {
+                    int count = (int) Math.min(chunk, table.rows() - start);
+                    buffer.clear();
+                    if (integer) {
+                        table.readColumn(c, start, whole, count);
+                        buffer.asLongBuffer().put(whole, 0, count);
+                        buffer.limit(count * 8);
+                    } else {
+                        table.readColumn(c, start, column, count);
+                        buffer.asFloatBuffer().put(column, 0, count);
+                        buffer.limit(count * 4);
+                    }
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                }
+            }
+        }
+        // Only a complete file gets the real name, so a run that is stopped halfway never leaves a broken entry
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        removeOldest();
+    }
+
+    public static ResultTable load(String key, float[] values) throws IOException {
+        // The table stored under this key (with its values copied into values), or null if there is none
+        Path path = getStorePath(key);
+        if (!Files.isRegularFile(path)) return null;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+            if (header.readInt() != magic || !header.readUTF().equals(key)) return null;
+            int count = header.readInt();
+            for (int i = 0; i < count; i++) {
+                float value = header.readFloat();
+                if (i < values.length) values[i] = value;
+            }
+            final int rows = (int) header.readLong();
+            final int columns = header.readInt();
+            final boolean[] integer = new boolean[columns];
+            for (int c = 0; c < columns; c++) integer[c] = header.readBoolean();
+
+            // The header was read through the stream, the columns follow it directly
+            final float[][] data = new float[columns][];
+            final long[][] whole = new long[columns][];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferFloats * 4).order(ByteOrder.LITTLE_ENDIAN);
+            for (int c = 0; c < columns; c++) {
+                final int width = integer[c] ? 8 : 4;
+                final int chunk = integer[c] ? bufferFloats / 2 : bufferFloats;
+                if (integer[c]) whole[c] = new long[rows];
+                else data[c] = new float[rows];
+                for (int start = 0; start < rows; start += chunk) {
+                    int n = Math.min(chunk, rows - start);
+                    buffer.clear();
+                    buffer.limit(n * width);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) throw new IOException("Unexpected end of " + path.getFileName());
+                    }
+                    buffer.flip();
+                    if (integer[c]) buffer.asLongBuffer().get(whole[c], start, n);
+                    else buffer.asFloatBuffer().get(data[c], start, n);
+                }
+            }
+            // Used again, so it is the last to be removed
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+
+            return new ResultTable() {
+                @Override
+                public long rows() { return rows; }
+
+                @Override
+                public int columns() { return columns; }
+
+                @Override
+                public boolean isInteger(int column) { return integer[column]; }
+
+                @Override
+                public void readColumn(int column, long row, float[] into, int n) {
+                    if (integer[column]) {
+                        for (int i = 0; i < n; i++) into[i] = whole[column][(int) row + i];
+                    } else {
+                        System.arraycopy(data[column], (int) row, into, 0, n);
+                    }
+                }
+
+                @Override
+                public void readColumn(int column, long row, long[] into, int n) {
+                    if (integer[column]) System.arraycopy(whole[column], (int) row, into, 0, n);
+                    else ResultTable.super.readColumn(column, row, into, n);
+                }
+            };
+        }
+    }
+
+    private static void removeOldest() throws IOException {
+        List<Path> stored;
+        try (Stream<Path> files = Files.list(getStore())) {
+            stored = files.filter(p -> p.getFileName().toString().endsWith(".bin")).collect(Collectors.toCollection(ArrayList::new));
+        }
+        if (stored.size() <= diskEntries) return;
+
+        stored.sort((a, b) -> {
+            try {
+                return Files.getLastModifiedTime(a).compareTo(Files.getLastModifiedTime(b));
+            } catch (IOException e) {
+                return 0;
+            }
+        });
+        for (int i = 0; i < stored.size() - diskEntries; i++) Files.deleteIfExists(stored.get(i));
+    }
+}
@@ -0,0 +1,341 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains a fixed-range histogram that is filled in a single pass over the data.
+Besides the bin counts it keeps the count, sum, sum of squares and extremes of everything added,
+so the mean, standard deviation, quantiles and mode can all be read from it without touching the data again.
+Histograms over the same range can be merged, so every thread can fill its own and these are summed at the end.
+
+It also contains the checks on the angle histogram (is it guassian-ish, is one of the tails cut off)
+and can be turned into ImageStatistics to show it in a HistogramWindow.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.process.ImageStatistics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class StreamingHistogram {
+
+    // Below this many values the threads cost more than they save
+    private static final int parallelThreshold = 100000;
+
+    private final double min;
+    private final double max;
+    private final int bins;
+    private final double scale; // bins per unit
+    private final long[] counts;
+
+    private long underflow = 0;
+    private long overflow = 0;
+
+    // Values at or below lowTail and at or above highTail are counted exactly, for the tail checks
+    private final float lowTail;
+    private final float highTail;
+    private long lowTailCount = 0;
+    private long highTailCount = 0;
+
+    // Over every value added, also the ones outside of the range (NaN is ignored)
+    private long total = 0;
+    private double sum = 0;
+    private double sumSquared = 0;
+    private float dataMin = Float.POSITIVE_INFINITY;
+    private float dataMax = Float.NEGATIVE_INFINITY;
+
+    public StreamingHistogram(double min, double max, int bins) {
+        this(min, max, bins, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    public StreamingHistogram(double min, double max, int bins, float lowTail, float highTail) {
+        if (bins < 1) bins = 1;
+        if (!(max > min)) max = min + bins; // A single value still gets a usable range
+        this.min = min;
+        this.max = max;
+        this.bins = bins;
+        this.scale = bins / (max - min);
+        this.counts = new long[bins];
+        this.lowTail = lowTail;
+        this.highTail = highTail;
+    }
+
+    public void add(float value) {
+        if (Float.isNaN(value)) return;
+
+        total++;
+        sum += value;
+        sumSquared += (double) value * value;
+        if (value < dataMin) dataMin = value;
+        if (value > dataMax) dataMax = value;
+        if (value <= lowTail) lowTailCount++;
+        if (value >= highTail) highTailCount++;
+
+        if (value < min) {
+            underflow++;
+        } else if (value > max) {
+            overflow++;
+        } else {
+            // The maximum itself is part of the last bin, like ImageJ does
+            counts[Math.min(bins - 1, (int) ((value - min) * scale))]++;
+        }
+    }
+
+    public void add(final float[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) add(data[i]);
+    }
+
+    public void merge(StreamingHistogram other) {
+        if (other.bins != bins || other.min != min || other.max != max || other.lowTail != lowTail || other.highTail != highTail)
+            throw new IllegalArgumentException("Only histograms with the same range and bins can be merged");
+
+        for (int i = 0; i < bins; i++) counts[i] += other.counts[i];
+        underflow += other.underflow;
+        overflow += other.overflow;
+        lowTailCount += other.lowTailCount;
+        highTailCount += other.highTailCount;
+        total += other.total;
+        sum += other.sum;
+        sumSquared += other.sumSquared;
+        dataMin = Math.min(dataMin, other.dataMin);
+        dataMax = Math.max(dataMax, other.dataMax);
+    }
+
+    public static StreamingHistogram build(final float[] data, int offset, int length, double min, double max, int bins, int coreCount) {
+        return build(data, offset, length, () -> new StreamingHistogram(min, max, bins), coreCount);
+    }
+
+    public static StreamingHistogram build(final float[] data, int offset, int length, final Supplier<StreamingHistogram> empty, int coreCount) {
+        // Fill a histogram from a part of an array (for example one column of a FloatMatrix) without copying it
+        // Every thread fills its own empty histogram, these are merged at the end
+        StreamingHistogram result = empty.get();
+        if (length < parallelThreshold || coreCount < 2) {
+            result.add(data, offset, length);
+            return result;
+        }
+
+        final StreamingHistogram[] partial = new StreamingHistogram[coreCount];
+        final int chunk = (length + coreCount - 1) / coreCount;
+
+        WorkerPool.run(coreCount, ithread -> {
+            final int start = offset + ithread * chunk;
+            final int end = Math.min(offset + length, start + chunk);
+            partial[ithread] = empty.get();
+            if (start < end) partial[ithread].add(data, start, end - start);
+        });
+
+        for (StreamingHistogram h : partial) result.merge(h);
+        return result;
+    }
+
+    public static StreamingHistogram buildWithWidth(final float[] data, int offset, int length, double width, int coreCount) {
+        return buildWithWidth(data, offset, length, width, 0, coreCount);
+    }
+
+    public static StreamingHistogram buildWithWidth(final float[] data, int offset, int length, double width, double tailWidth, int coreCount) {
+        // When the range is not known beforehand it is taken from the data, which costs one extra (cheap) pass
+        // The tails are the values within tailWidth of the lowest and highest value
+        float[] extremes = minMax(data, offset, length, coreCount);
+        return build(data, offset, length, () -> ofWidth(extremes[0], extremes[1], width, tailWidth), coreCount);
+    }
+
+    public static StreamingHistogram ofWidth(float dataMin, float dataMax, double width, double tailWidth) {
+        // An empty histogram with bins of width starting at dataMin, for when the values are added later in parts
+        if (dataMin > dataMax) throw new IllegalArgumentException("Cannot create a histogram without values");
+
+        final int bins = Math.max(1, (int) Math.ceil((dataMax - dataMin) / width));
+        final float lowTail = tailWidth > 0 ? (float) (dataMin + tailWidth) : Float.NEGATIVE_INFINITY;
+        final float highTail = tailWidth > 0 ? (float) (dataMax - tailWidth) : Float.POSITIVE_INFINITY;
+        return new StreamingHistogram(dataMin, dataMin + bins * width, bins, lowTail, highTail);
+    }
+
+    private static float[] minMax(final float[] data, int offset, int length, int coreCount) {
+        final int threadCount = length < parallelThreshold ? 1 : Math.max(1, coreCount);
+        final float[][] partial = new float[threadCount][];
+        final int chunk = (length + threadCount - 1) / threadCount;
+
+        final AtomicInteger ai = new AtomicInteger(0);
+        WorkerPool.run(threadCount, ithread -> {
+            for (int t = ai.getAndIncrement(); t < threadCount; t = ai.getAndIncrement()) {
+                float low = Float.POSITIVE_INFINITY, high = Float.NEGATIVE_INFINITY;
+                for (int i = offset + t * chunk; i < Math.min(offset + length, offset + (t + 1) * chunk); i++) {
+                    if (data[i] < low) low = data[i];
+                    if (data[i] > high) high = data[i];
+                }
+                partial[t] = new float[]{low, high};
+            }
+        });
+
+        float[] result = new float[]{Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (float[] p : partial) {
+            result[0] = Math.min(result[0], p[0]);
+            result[1] = Math.max(result[1], p[1]);
+        }
+        return result;
+    }
+
+    public double getMin() { return min; }
+
+    public double getMax() { return max; }
+
+    public int getBins() { return bins; }
+
+    public double getBinWidth() { return (max - min) / bins; }
+
+    public double getBinCenter(int bin) { return min + (bin + 0.5) * getBinWidth(); }
+
+    public long[] getCounts() { return counts.clone(); }
+
+    public long getCount() { return total - underflow - overflow; } // Values inside the range
+
+    public long getTotal() { return total; }
+
+    public long getUnderflow() { return underflow; }
+
+    public long getOverflow() { return overflow; }
+
+    public float getDataMin() { return dataMin; }
+
+    public float getDataMax() { return dataMax; }
+
+    public double getMean() { return total > 0 ? sum / total : 0; }
+
+    public double getStdDev() {
+        if (total < 2) return 0;
+        double variance = (sumSquared - sum * sum / total) / (total - 1);
+        return Math.sqrt(Math.max(0, variance));
+    }
+
+    public int getModeBin() {
+        int mode = 0;
+        for (int i = 1; i < bins; i++) if (counts[i] > counts[mode]) mode = i;
+        return mode;
+    }
+
+    public double getMode() { return getBinCenter(getModeBin()); }
+
+    public double quantile(double q) {
+        // Of the values inside the range, assuming they are spread evenly within a bin
+        long inRange = getCount();
+        if (inRange == 0) return Double.NaN;
+
+        double target = Math.max(0, Math.min(1, q)) * inRange;
+        double cumulative = 0;
+        for (int i = 0; i < bins; i++) {
+            if (counts[i] > 0 && cumulative + counts[i] >= target) {
+                return min + (i + (target - cumulative) / counts[i]) * getBinWidth();
+            }
+            cumulative += counts[i];
+        }
+        return max;
+    }
+
+    public double getMedian() { return quantile(0.5); }
+
+    public double countBelow(double value) {
+        // Amount of values at or below value, interpolated within the bin it falls in
+        if (value < min) return 0;
+        if (value >= max) return getCount();
+
+        double position = (value - min) * scale;
+        int bin = (int) position;
+        double result = 0;
+        for (int i = 0; i < bin; i++) result += counts[i];
+        return result + counts[bin] * (position - bin);
+    }
+
+    public double countAbove(double value) { return getCount() - countBelow(value); }
+
+    public long[] windowCounts(int width) {
+        // For each bin the sum of it and the width - 1 bins before it
+        long[] result = new long[bins];
+        long running = 0;
+        for (int i = 0; i < bins; i++) {
+            running += counts[i];
+            if (i >= width) running -= counts[i - width];
+            result[i] = running;
+        }
+        return result;
+    }
+
+    public boolean[] gaussianChecks() {
+        // Is there something resembling a guassian: enough variation between windows,
+        // the lowest window near one of the edges and the highest window somewhere in the middle
+        long[] windows = windowCounts(2);
+
+        double mean = 0;
+        for (long w : windows) mean += w;
+        mean /= windows.length;
+        double variance = 0;
+        for (long w : windows) variance += (w - mean) * (w - mean);
+        double std = windows.length > 1 ? Math.sqrt(variance / (windows.length - 1)) : 0;
+
+        int maxIdx = 0;
+        int minIdx = 0;
+        for (int i = 1; i < windows.length; i++) {
+            if (windows[i] > windows[maxIdx]) maxIdx = i;
+            if (windows[i] < windows[minIdx]) minIdx = i;
+        }
+
+        double buffer = 0.2;
+
+        return new boolean[] {
+                std / total > 0.05,
+                minIdx < windows.length * buffer || minIdx > windows.length * (1 - buffer),
+                maxIdx > (windows.length * 0.4) || maxIdx < (windows.length * 0.6)
+        };
+    }
+
+    public long getLowTailCount() { return lowTailCount; }
+
+    public long getHighTailCount() { return highTailCount; }
+
+    public boolean[] tailChecks() {
+        // Is one of the tails cut off: it holds a lot more values than the other tail, and is it the left one
+        long lower = lowTailCount;
+        long upper = highTailCount;
+
+        return new boolean[] {
+                Math.abs(upper - lower) > Math.max(upper, lower) * 0.2,
+                lower > upper
+        };
+    }
+
+    public ImageStatistics toImageStatistics(double unitScale) {
+        // Statistics for a HistogramWindow, with all values multiplied by unitScale (for example rad to degrees)
+        ImageStatistics stats = new ImageStatistics();
+        stats.nBins = bins;
+        stats.histogram = new int[bins];
+        for (int i = 0; i < bins; i++) stats.histogram[i] = (int) Math.min(Integer.MAX_VALUE, counts[i]);
+        stats.histMin = min * unitScale;
+        stats.histMax = max * unitScale;
+        stats.binSize = getBinWidth() * unitScale;
+
+        stats.pixelCount = (int) Math.min(Integer.MAX_VALUE, total);
+        stats.area = total;
+        stats.mean = getMean() * unitScale;
+        stats.stdDev = getStdDev() * unitScale;
+        stats.min = dataMin * unitScale;
+        stats.max = dataMax * unitScale;
+        stats.median = getMedian() * unitScale;
+        stats.mode = getModeBin();
+        stats.dmode = getMode() * unitScale;
+        stats.maxCount = stats.histogram[stats.mode];
+        return stats;
+    }
+}
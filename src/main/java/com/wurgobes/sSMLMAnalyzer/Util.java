@@ -30,7 +30,6 @@ import ij.process.FloatProcessor;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.RealSum;
 
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.jblas.FloatMatrix;
 import org.jblas.ranges.IntervalRange;
 
@@ -43,11 +42,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
-import static ij.util.ThreadUtil.createThreadArray;
-import static ij.util.ThreadUtil.startAndJoin;
 import static org.jblas.MatrixFunctions.*;
 
-
 public class Util {
 
     public static FloatMatrix atan2(FloatMatrix x, FloatMatrix y){
@@ -118,6 +114,15 @@ public class Util {
         return result;
     }
 
+    public static double[] toDouble(float[] v, int length){
+        // Only the first length values, for the arrays of a PairTable that can be longer than the table
+        double[] result = new double[length];
+        for(int i = 0; i < length; i++)
+            result[i] = v[i];
+
+        return result;
+    }
+
     public static float[] toFloat(double[] v){
         float[] result = new float[v.length];
         for(int i = 0; i < v.length; i++)
@@ -155,32 +160,16 @@ public class Util {
     }
 
     public static void SaveCSV(final FloatMatrix data, List<String> Headers, Path CSV_FILE_NAME) {
-        try {
-            FileWriter fileWrt = new FileWriter(CSV_FILE_NAME.toString());
-            BufferedWriter bufferWrt = new BufferedWriter(fileWrt);
-            bufferWrt.write(String.join(",", Headers));
-
-            StringBuilder s = new StringBuilder(100);
-            for (int r = 0; r < data.rows; r++) {
-                s.setLength(0);
-                for (int c = 0; c < data.columns; c++) {
-                    s.append(data.get(r, c));
-                    if (c < data.columns - 1) {
-                        s.append(",");
-                    }
-                }
-                if (r < data.rows - 1) {
-                    s.append("\n");
-                    bufferWrt.write(s.toString());
-                }
-            }
+        SaveCSV(data, Headers, CSV_FILE_NAME, 1);
+    }
 
-            bufferWrt.close();
-        } catch (Exception e) {
+    public static void SaveCSV(final FloatMatrix data, List<String> Headers, Path CSV_FILE_NAME, int coreCount) {
+        try {
+            CSVWriter.write(data, Headers, CSV_FILE_NAME, coreCount);
+        } catch (IOException e) {
             System.out.println("Could not save CSV.");
             e.printStackTrace();
         }
-        System.gc();
     }
 
     public static int getBins(FloatMatrix A, float width){
@@ -225,84 +214,144 @@ public class Util {
         return title.toString();
     }
 
-    public static FloatMatrix cleanup(final FloatMatrix A, int neighbours, float distance, int coreCount){
-        // Clean up the matrix by discarding any points that do not have at least N neighbours within D distance of them
+    public static PairTable cleanup(final PairTable A, int neighbours, float distance, int coreCount){
+        return cleanup(A, neighbours, distance, coreCount, CancellationToken.NONE);
+    }
 
-        final List<Integer> test = Collections.synchronizedList(new ArrayList<>());
+    public static PairTable cleanup(final PairTable A, int neighbours, float distance, int coreCount, CancellationToken cancellation){
+        // Clean up the table by discarding any points that do not have at least N neighbours within D distance of them
+        // The 0th order position is used
+        final boolean[] keep = cleanupMask(A.order(0).x(), A.order(0).y(), A.rows(), neighbours, distance, coreCount, cancellation);
 
-        final FloatMatrix X = A.getColumn(3);
-        final FloatMatrix Y = A.getColumn(4);
+        // The rows stay in their (frame) order
+        int count = 0;
+        for (boolean k : keep) if (k) count++;
+        final int[] indices = new int[count];
+        for (int i = 0, j = 0; i < A.rows(); i++) if (keep[i]) indices[j++] = i;
+        return A.getRows(indices);
+    }
 
-        final AtomicInteger ai = new AtomicInteger(0);
-        final Thread[] threads = createThreadArray(coreCount); //Get maximum of threads
+    public static boolean[] cleanupMask(final float[] X, final float[] Y, final int rows, int neighbours, float distance, int coreCount){
+        return cleanupMask(X, Y, rows, neighbours, distance, coreCount, CancellationToken.NONE);
+    }
 
-        final int rows = A.rows;
-        //Set the run function for each thread
-        for (int ithread = 0; ithread < threads.length; ithread++) {
-            threads[ithread] = new Thread(() -> {
-                for (int row = ai.getAndIncrement(); row <= rows; row = ai.getAndIncrement()) {
-                    final int currentAI = ai.get();
-                    if (currentAI % 1000 == 0) System.out.println("\r" + currentAI + "/" + rows);
-                    IJ.showProgress(currentAI, rows);
-                    IJ.showStatus(currentAI + "/" + rows);
+    public static boolean[] cleanupMask(final float[] X, final float[] Y, final int rows, int neighbours, float distance, int coreCount, CancellationToken cancellation){
+        // Which of the first rows points have more than N neighbours within D distance of them (counting themselves)
+        // Stops with a CancelledException when the run is stopped
+        final boolean[] keep = new boolean[rows];
 
-                    final float x = A.get(row, 3);
-                    final float y = A.get(row, 4);
+        final AtomicInteger ai = new AtomicInteger(0);
+        WorkerPool.run(coreCount, ithread -> {
+            for (int row = ai.getAndIncrement(); row < rows && !cancellation.isCancelled(); row = ai.getAndIncrement()) {
+                if (row % 1000 == 0) {
+                    System.out.println("\r" + row + "/" + rows);
+                    IJ.showProgress(row, rows);
+                    IJ.showStatus(row + "/" + rows);
+                }
 
-                    final FloatMatrix distances = Distance(X.sub(x), Y.sub(y));
+                final float x = X[row];
+                final float y = Y[row];
 
-                    if(distances.lt(distance).sum() > neighbours + 1) test.add(row);
+                int close = 0;
+                for (int i = 0; i < rows; i++) {
+                    final float dx = X[i] - x;
+                    final float dy = Y[i] - y;
+                    if ((float) Math.sqrt(dx * dx + dy * dy) < distance) close++;
                 }
-            });
-        }
-
-        startAndJoin(threads);
 
-        final int[] indices =  test.stream().mapToInt(i->i).toArray();
-        return A.getRows(indices);
+                keep[row] = close > neighbours + 1;
+            }
+        });
+        cancellation.check();
+        return keep;
     }
 
     public static FloatMatrix connectOrders(FloatMatrix intermediate, int orders, int orderColumns, AtomicBoolean reportOrders){
+        return connectOrders(intermediate, orders, orderColumns, reportOrders, 1);
+    }
+
+    public static FloatMatrix connectOrders(FloatMatrix intermediate, int orders, int orderColumns, AtomicBoolean reportOrders, int threads){
         // This function takes all points and tried to connect the different points together for at most N orders.
         // If more points are found this is echo'd
-        boolean checkMoreOrders = true;
         int max_orders = 5;
         if(orders > max_orders) max_orders = orders;
+        final int finalMaxOrders = max_orders;
         final FloatMatrix intermediateExtended = extend(intermediate, intermediate.rows, max_orders * orderColumns);
-        List<Integer> toKeep = new ArrayList<>();
-        for(int row = 0; row < intermediateExtended.rows; row ++){
-            float index = intermediateExtended.get(row, 2);
 
-            if(intermediateExtended.getColumn(7).eq(index).sum() == 0.0f) { //Start of chain
-                toKeep.add(row);
+        // The start (2) and end (7) index of every row never change while connecting, so the rows for each index are looked up once
+        // Only the later orders of the rows that start a chain are filled in, and those rows are never read while connecting
+        // (a row that is connected to starts where another row ends), so the rows can also be connected in parallel
+        final int[][] byStart = rowsByValue(intermediateExtended, 2);
+        final int[][] byEnd = rowsByValue(intermediateExtended, 7);
+        final boolean[] toKeep = new boolean[intermediateExtended.rows];
 
-                int connected_to = (int) intermediateExtended.get(row, 7);
-                int[] connected_indices = intermediateExtended.getColumn(2).eq(connected_to).findIndices();
+        final AtomicInteger ai = new AtomicInteger(0);
+        final Runnable connect = () -> {
+            for (int row = ai.getAndIncrement(); row < intermediateExtended.rows; row = ai.getAndIncrement()) {
+                float index = intermediateExtended.get(row, 2);
+
+                if (rowsWith(byEnd, index).length == 0) { //Start of chain
+                    toKeep[row] = true;
 
-                if(connected_indices.length > 0){
-                    //We already did the 0-1 connection
+                    int connected_to = (int) intermediateExtended.get(row, 7);
+                    int[] connected_indices = rowsWith(byStart, connected_to);
 
-                    intermediateExtended.putRow(row, recursiveSearch(intermediateExtended, intermediateExtended.getRow(row), connected_indices, 2, max_orders, orderColumns));
+                    if (connected_indices.length > 0) {
+                        //We already did the 0-1 connection
 
-                    if(checkMoreOrders){
-                        connected_to = (int) intermediateExtended.get(row, (orders-1) * orderColumns);
+                        FloatMatrix connected = recursiveSearch(intermediateExtended, byStart, intermediateExtended.getRow(row), connected_indices, 2, finalMaxOrders, orderColumns);
+                        intermediateExtended.putRow(row, connected);
 
-                        if(reportOrders.get() && intermediateExtended.getColumn(2).eq(connected_to).sum() > 1.0f) {
+                        connected_to = (int) connected.get((orders - 1) * orderColumns);
+                        if (reportOrders.get() && rowsWith(byStart, connected_to).length > 1 && reportOrders.compareAndSet(true, false))
                             System.out.println("There seem to be more orders than " + orders);
-                            checkMoreOrders = false;
-                            reportOrders.set(false);
-                        }
                     }
                 }
             }
+        };
+
+        if (threads <= 1) {
+            connect.run();
+        } else {
+            WorkerPool.run(threads, i -> connect.run());
         }
 
-        int[] indices = toKeep.stream().mapToInt(i->i).toArray();
+        int keep = 0;
+        for (boolean k : toKeep) if (k) keep++;
+        int[] indices = new int[keep];
+        for (int row = 0, i = 0; row < toKeep.length; row++) if (toKeep[row]) indices[i++] = row;
 
         return intermediateExtended.getColumns(new IntervalRange(0, orders * orderColumns)).getRows(indices);
     }
 
-    private static FloatMatrix recursiveSearch(FloatMatrix intermediate, FloatMatrix rowData, int[] connected_indices, int order, int max_order, int orderCollumns) {
+    private static int[][] rowsByValue(final FloatMatrix A, int column) {
+        // The rows of A per whole value (>= 0) of the column, in ascending order, like A.getColumn(column).eq(value).findIndices()
+        int max = -1;
+        for (int row = 0; row < A.rows; row++) {
+            float value = A.get(row, column);
+            if (value >= 0 && value == (int) value) max = Math.max(max, (int) value);
+        }
+        final int[] counts = new int[max + 1];
+        for (int row = 0; row < A.rows; row++) {
+            float value = A.get(row, column);
+            if (value >= 0 && value == (int) value) counts[(int) value]++;
+        }
+        final int[][] rows = new int[max + 1][];
+        for (int v = 0; v <= max; v++) rows[v] = new int[counts[v]];
+        Arrays.fill(counts, 0);
+        for (int row = 0; row < A.rows; row++) {
+            float value = A.get(row, column);
+            if (value >= 0 && value == (int) value) rows[(int) value][counts[(int) value]++] = row;
+        }
+        return rows;
+    }
+
+    private static int[] rowsWith(final int[][] byValue, float value) {
+        if (!(value >= 0) || value != (int) value || (int) value >= byValue.length) return new int[0];
+        return byValue[(int) value];
+    }
+
+    private static FloatMatrix recursiveSearch(FloatMatrix intermediate, int[][] byStart, FloatMatrix rowData, int[] connected_indices, int order, int max_order, int orderCollumns) {
         // Helper function for Connect orders that connects orders by searching for any possible matches and if multiple are found, tries to find the best
         // Ties are broken by which point has the closest angle to the original pair
         // This is recursive to find all next orders
@@ -320,9 +369,9 @@ public class Util {
 
                 FloatMatrix target_row = intermediate.getRow(connected_indices[i]);
                 intermediateResults.putRow(i, rowData.dup().put(target_range, target_row.getColumns(new int[]{7, 8, 9, 10, 11, 12, 13})));
-                int[] nextConnectedIndices = intermediate.getColumn(2).eq(target_row.get(target_range[0])).findIndices();
+                int[] nextConnectedIndices = rowsWith(byStart, target_row.get(target_range[0]));
                 if (nextConnectedIndices.length > 0 && order + 1 < max_order)
-                    intermediateResults.putRow(i, recursiveSearch(intermediate, intermediateResults.getRow(i), nextConnectedIndices, order + 1, max_order, orderCollumns));
+                    intermediateResults.putRow(i, recursiveSearch(intermediate, byStart, intermediateResults.getRow(i), nextConnectedIndices, order + 1, max_order, orderCollumns));
 
             }
             intermediateResults = intermediateResults.getRows(FilterbyLength(intermediateResults, max_order));
@@ -335,12 +384,12 @@ public class Util {
             }
         }
 
-        int[] nextConnectedIndices = intermediate.getColumn(2).eq(rowData.get(target_range[0])).findIndices();
+        int[] nextConnectedIndices = rowsWith(byStart, rowData.get(target_range[0]));
 
         if (nextConnectedIndices.length == 0 | order + 1 == max_order) {
             return rowData;
         } else {
-            return recursiveSearch(intermediate, rowData, nextConnectedIndices, order + 1, max_order, orderCollumns);
+            return recursiveSearch(intermediate, byStart, rowData, nextConnectedIndices, order + 1, max_order, orderCollumns);
         }
 
     }
@@ -368,15 +417,14 @@ public class Util {
         return A;
     }
 
-    public static ImagePlus getImageFromPoints(final FloatMatrix A, float[] reduction, int width, int height){
-        // Creates an imageplus from the Floatmatrix provided for the given height and width
+    public static ImagePlus getImageFromPoints(final LocalisationTable A, int[] xyIntensity, float[] reduction, int width, int height){
+        // Creates an imageplus from the x, y and intensity columns of the table for the given height and width
         // It divides each axis by the value provided since it might be too much otherwise
         // These values are chosen in such a way it is never too large
         float[] data = new float[width * height];
-        float max_intensity = A.getColumn(2).max();
-        FloatMatrix intensities = A.getColumn(2).div(max_intensity);
-        for(int i = 0; i < A.rows; i++){
-            data[(int)(A.get(i, 0)/reduction[0]) + (int)(A.get(i, 1)/reduction[1]) * height] = intensities.get(i);
+        float max_intensity = A.max(xyIntensity[2]);
+        for(long i = 0; i < A.rows(); i++){
+            data[(int)(A.get(i, xyIntensity[0])/reduction[0]) + (int)(A.get(i, xyIntensity[1])/reduction[1]) * height] = A.get(i, xyIntensity[2]) / max_intensity;
         }
 
         return new ImagePlus("Points", new FloatProcessor(width, height, data, null));
@@ -494,44 +542,97 @@ public class Util {
         }
     }
 
-    public static boolean[][] checkForRetry(FloatMatrix A){
-        // Provide some checks on the list to see fi it had a guassian shape-ish, and if the tailbins contain more values than expected
-        StandardDeviation std = new StandardDeviation();
+    public static void combineOrders(final PairTable pairs, final LocalisationTable halfOrder, final LocalisationTable allOrders, int coreCount){
+        // Combines the positions of each chain into one position, reading each row only once
+        // halfOrder uses only the 0th-1st pair, allOrders every order present in that row
+        // Both outputs: 0 id, 1 frame, 2 x, 3 y, 4 z, 5 intensity, 6 distance, 7 angle
+        // For all orders the position is the first point moved by the average half step between orders,
+        // and the distance and angle are the averages over all pairs in the chain
+        final int rows = pairs.rows();
+        final int orders = pairs.orders();
+        final boolean hasZ = pairs.hasZ();
+        final PairTable.Order[] order = new PairTable.Order[orders];
+        for (int k = 0; k < orders; k++) order[k] = pairs.order(k);
+        final long[] id = pairs.id();
+        final int[] frame = pairs.frame();
+
+        final int blockSize = 8192;
+        final int blocks = (rows + blockSize - 1) / blockSize;
+        final AtomicInteger ai = new AtomicInteger(0);
+        WorkerPool.run(Math.min(coreCount, Math.max(1, blocks)), ithread -> {
+            for (int block = ai.getAndIncrement(); block < blocks; block = ai.getAndIncrement()) {
+                for (int r = block * blockSize; r < Math.min(rows, (block + 1) * blockSize); r++) {
+                    final float x0 = order[0].x()[r], y0 = order[0].y()[r], z0 = hasZ ? order[0].z()[r] : 0.0f;
+                    final float x1 = order[1].x()[r], y1 = order[1].y()[r], z1 = hasZ ? order[1].z()[r] : 0.0f;
+
+                    float dx = (x1 - x0) / 2.0f, dy = (y1 - y0) / 2.0f, dz = (z1 - z0) / 2.0f;
+                    float distance = order[1].distance()[r], angle = order[1].angle()[r];
+
+                    // Every further order adds a pair between it and the previous order, until the first order missing
+                    int pairCount = 1;
+                    float previousX = x1, previousY = y1, previousZ = z1;
+                    for (int k = 2; k < orders; k++) {
+                        if (!order[k].present(r)) break;
+
+                        final float x = order[k].x()[r], y = order[k].y()[r], z = hasZ ? order[k].z()[r] : 0.0f;
+                        dx += (x - previousX) / 2.0f;
+                        dy += (y - previousY) / 2.0f;
+                        dz += (z - previousZ) / 2.0f;
+                        distance += order[k].distance()[r];
+                        angle += order[k].angle()[r];
+                        previousX = x;
+                        previousY = y;
+                        previousZ = z;
+                        pairCount++;
+                    }
 
-        double min = A.min();
-        double max = A.max();
+                    halfOrder.put(r, 0, id[r]); //id
+                    halfOrder.put(r, 1, frame[r]); //frame
+                    halfOrder.put(r, 2, (x0 + x1) / 2.0f); //x
+                    halfOrder.put(r, 3, (y0 + y1) / 2.0f); //y
+                    halfOrder.put(r, 4, hasZ ? (z0 + z1) / 2.0f : 0.0f); // z
+                    halfOrder.put(r, 5, order[0].intensity()[r]); //intensity
+                    halfOrder.put(r, 6, order[1].distance()[r]); //distance
+                    halfOrder.put(r, 7, order[1].angle()[r]); //angle
+
+                    allOrders.put(r, 0, id[r]);
+                    allOrders.put(r, 1, frame[r]);
+                    allOrders.put(r, 2, x0 + dx / pairCount);
+                    allOrders.put(r, 3, y0 + dy / pairCount);
+                    allOrders.put(r, 4, hasZ ? z0 + dz / pairCount : 0.0f);
+                    allOrders.put(r, 5, order[0].intensity()[r]);
+                    allOrders.put(r, 6, distance / pairCount);
+                    allOrders.put(r, 7, angle / pairCount);
+                }
+            }
+        });
+    }
 
-        double width = 0.005f;
+    public static boolean[][] checkForRetry(FloatMatrix A){
+        return checkForRetry(A.data, 0, A.length, 1);
+    }
 
-        double lowerbins = A.le((float) (min + width)).sum();
-        double upperbins = A.ge((float) (max - width)).sum();
+    // Bins of 0.005 starting at the lowest value; each check window is two neighbouring bins
+    private static final double retryBinWidth = 0.005f;
 
-        List<Integer> bins = new ArrayList<>();
-        for(double i = min; i < max; i += width){
-            bins.add((int) A.ge((float) (i - width)).and(A.le((float) (i + width))).sum());
-        }
+    public static boolean[][] checkForRetry(final float[] data, int offset, int length, int coreCount){
+        // Provide some checks on the list to see fi it had a guassian shape-ish, and if the tailbins contain more values than expected
+        return checkForRetry(StreamingHistogram.buildWithWidth(data, offset, length, retryBinWidth, retryBinWidth, coreCount));
+    }
 
-        int maxVal = Collections.max(bins);
-        int minVal = Collections.min(bins);
-        int maxIdx = bins.indexOf(maxVal);
-        int minIdx = bins.indexOf(minVal);
-
-        double buffer = 0.2;
-
-        return new boolean[][] {
-                {
-                    (std.evaluate(toDouble(bins)) / A.rows) > 0.05,
-                    minIdx < bins.size()*buffer || minIdx > bins.size()*(1-buffer),
-                    maxIdx > (bins.size() * 0.4) || maxIdx < (bins.size() * 0.6)
-                },
-                {
-                    Math.abs(upperbins - lowerbins) > Math.max(upperbins, lowerbins) * 0.2,
-                    lowerbins > upperbins
-                }
-        };
+    public static StreamingHistogram retryHistogram(float dataMin, float dataMax){
+        // Empty histogram for checkForRetry, for values that are added in parts
+        return StreamingHistogram.ofWidth(dataMin, dataMax, retryBinWidth, retryBinWidth);
     }
 
-    public static void saveThunderSTORM(Path CSV_FILE_NAME, final FloatMatrix data){
+    public static boolean[][] checkForRetry(StreamingHistogram histogram){
+        return new boolean[][] {histogram.gaussianChecks(), histogram.tailChecks()};
+    }
+
+    // Columns of the pair table that make up thunderSTORM.csv: id, frame, x, y, intensity and the distance (as z, for ZOLA)
+    public static final int[] thunderSTORMColumns = new int[]{0, 1, 3, 4, 6, 12};
+
+    public static List<String> thunderSTORMHeader(){
         List<String> ShortHeader = new ArrayList<>();
         ShortHeader.add("id");
         ShortHeader.add("frame");
@@ -539,15 +640,12 @@ public class Util {
         ShortHeader.add("y [nm]");
         ShortHeader.add("intensity [photons]");
         ShortHeader.add("z [nm]");
-        // Creates a csv file and writes all the data to it
-        File csvOutputFile = CSV_FILE_NAME.toFile();
-        try (PrintWriter pw = new PrintWriter(csvOutputFile)) {
-            pw.println(String.join(",", ShortHeader));
-            pw.println(data.toString("%f", "", "",", ", "\n"));
-        } catch(IOException error) {
-            System.out.println("Could not save CSV.");
-            error.printStackTrace();
-        }
+        return ShortHeader;
+    }
+
+    public static void saveThunderSTORM(Path CSV_FILE_NAME, final ResultTable pairs, int coreCount) throws IOException {
+        // Streams the columns straight from the pair table (in its FloatMatrix layout) to the file, with six decimals
+        CSVWriter.write(pairs, thunderSTORMColumns, thunderSTORMHeader(), ", ", CSVWriter.Notation.FIXED, CSV_FILE_NAME, coreCount);
     }
 
     public static FloatMatrix sort(FloatMatrix matrix, int column){
@@ -621,6 +719,17 @@ public class Util {
         return getFloatMinMax(list);
     }
 
+    public static float[] getFloatMinMax(float[] arr, int length){
+        // Min and max of the first length values, without boxing them
+        if(length == 0) return new float[]{0, 0};
+        float min = arr[0], max = arr[0];
+        for(int i = 1; i < length; i++){
+            if(arr[i] < min) min = arr[i];
+            if(arr[i] > max) max = arr[i];
+        }
+        return new float[]{min, max};
+    }
+
     public static float[] getFloatMinMax(List<Float> list){
         if(list.size() == 0){
             return new float[]{0, 0};
@@ -639,6 +748,14 @@ public class Util {
         return new float[]{sortedlist.get(0).floatValue(), sortedlist.get(sortedlist.size() - 1).floatValue()};
     }
 
+    public static HistogramWindow createHist(StreamingHistogram histogram, double unitScale, String title, boolean runningFromIDE){
+        // The statistics are already known, so ImageJ does not need to go through the data again
+        ImagePlus imp = new ImagePlus(title, new FloatProcessor(1, 1));
+        HistogramWindow histogramWindow = new HistogramWindow(title, imp, histogram.toImageStatistics(unitScale));
+        if (runningFromIDE) histogramWindow.getImagePlus().show();
+        return histogramWindow;
+    }
+
     public static void createHist(float[] data, int bins, float min, float max, String title, boolean runningFromIDE){
         ImagePlus imp = new ImagePlus("", new FloatProcessor(new float[][]{data}));
         HistogramWindow histogramWindow = new HistogramWindow(title, imp, bins, min, max);
@@ -652,9 +769,4 @@ public class Util {
                 .average().orElse(0.0);
     }
 
-    public static int[] getFrameNumbers(FloatMatrix data, int frameCollumn) {
-        int[] key = data.getColumn(frameCollumn).toIntArray();
-        return Arrays.stream(key).distinct().toArray();
-    }
-
 }
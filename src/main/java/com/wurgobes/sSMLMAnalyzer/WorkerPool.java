@@ -0,0 +1,216 @@
+package com.wurgobes.sSMLMAnalyzer;
+
+/*
+Spectral Super Resolution Pair Finder
+(c) 2021 Martijn Gobes, Wageningen University.
+
+This file contains the threads shared by every parallel stage of the plugin.
+The work of a stage is split over one pool with as many threads as set in Edit>Options>Memory & Threads,
+so analyses running next to each other (a parameter sweep, the folder watcher) share the cores instead of each starting threads of their own.
+The thread that hands out the work does a part of it as well, and once done runs any part no pool thread has started yet,
+so a stage started from within another stage (the tiles of one frame while searching all frames) always finishes, even when every pool thread is busy.
+Reading and writing files is done on separate threads, virtual threads on Java 21 and later, as these mostly wait.
+
+This software is released under the GPL v3. You may copy, distribute and modify
+the software as long as you track changes/dates in source files. Any
+modifications to or software including (via compiler) GPL-licensed code
+must also be made available under the GPL along with build & install instructions.
+https://www.gnu.org/licenses/gpl-3.0.en.html
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+
+import ij.Prefs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+public class WorkerPool {
+
+    public static class Tasks {
+        // Tasks handed to the pool (or to their own threads), join() waits for all of them
+        private final List<FutureTask<Void>> futures = new ArrayList<>();
+        private final boolean help; // Whether join() runs the tasks that were not started yet
+
+        private Tasks(boolean help) {
+            this.help = help;
+        }
+
+        public void join() {
+            join(null);
+        }
+
+        public boolean isDone() {
+            for (FutureTask<Void> future : futures) if (!future.isDone()) return false;
+            return true;
+        }
+
+        public void cancel() {
+            // Interrupts the tasks that are running, and drops those that did not start
+            for (FutureTask<Void> future : futures) future.cancel(true);
+        }
+
+        private void join(Throwable failure) {
+            // The first failure of any task (or of the caller) is thrown once all tasks are done
+            for (FutureTask<Void> future : futures) {
+                if (help) future.run(); // Does nothing if a pool thread already started it
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                } catch (InterruptedException e) {
+                    cancel();
+                    throw new RuntimeException(e); // The same as ThreadUtil.joinThreads()
+                }
+            }
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure != null) throw new RuntimeException(failure);
+        }
+    }
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads(), threads(), 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), named("sSMLMA worker "));
+    static {
+        pool.allowCoreThreadTimeOut(true); // No threads are kept while nothing runs
+    }
+    private static boolean virtual = false; // Set by fileExecutor(), so declared before it
+    private static final ExecutorService files = fileExecutor();
+
+    private static final AtomicInteger peakQueued = new AtomicInteger(0);
+    private static final AtomicLong tasks = new AtomicLong(0);
+    private static final AtomicLong helped = new AtomicLong(0);
+    private static final AtomicLong fileTasks = new AtomicLong(0);
+
+    public static void run(int count, final IntConsumer task) {
+        // Runs task(0) up to task(count - 1) at the same time and returns once all are done
+        // The calling thread runs task(0), and afterwards any task no pool thread took yet
+        if (count <= 0) return;
+        Tasks others = submit(1, count, task, true);
+
+        Throwable failure = null;
+        try {
+            task.accept(0);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        others.join(failure);
+    }
+
+    public static Tasks start(int count, final IntConsumer task) {
+        // For tasks that wait for the calling thread (it writes what they make, or feeds them), so it can not just run them first
+        // It should do the work of any task that did not start yet itself, as every thread of the pool may be busy, and only join() once they no longer wait for it
+        return submit(0, count, task, true);
+    }
+
+    public static Tasks io(final String name, int count, final IntConsumer task) {
+        // Tasks that mostly wait for a file, each on its own thread, so they never hold up the pool
+        final Tasks started = new Tasks(false);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            FutureTask<Void> future = new FutureTask<>(() -> {
+                Thread thread = Thread.currentThread();
+                String previous = thread.getName();
+                thread.setName(name);
+                try {
+                    task.accept(index);
+                } finally {
+                    thread.setName(previous);
+                }
+            }, null);
+            started.futures.add(future);
+            fileTasks.incrementAndGet();
+            files.execute(future);
+        }
+        return started;
+    }
+
+    private static Tasks submit(int first, int count, final IntConsumer task, boolean help) {
+        final ThreadPoolExecutor executor = pool();
+        final Thread caller = Thread.currentThread();
+        final Tasks submitted = new Tasks(help);
+        for (int i = first; i < count; i++) {
+            final int index = i;
+            FutureTask<Void> future = new FutureTask<>(() -> {
+                if (Thread.currentThread() == caller) helped.incrementAndGet();
+                task.accept(index);
+            }, null);
+            submitted.futures.add(future);
+            tasks.incrementAndGet();
+            executor.execute(future);
+        }
+        peakQueued.accumulateAndGet(executor.getQueue().size(), Math::max);
+        return submitted;
+    }
+
+    private static ThreadPoolExecutor pool() {
+        // Follows changes to the amount of threads in the ImageJ settings
+        int threads = threads();
+        if (pool.getMaximumPoolSize() != threads) {
+            synchronized (pool) {
+                // The core size may never be larger than the maximum
+                if (threads > pool.getMaximumPoolSize()) {
+                    pool.setMaximumPoolSize(threads);
+                    pool.setCorePoolSize(threads);
+                } else if (threads < pool.getMaximumPoolSize()) {
+                    pool.setCorePoolSize(threads);
+                    pool.setMaximumPoolSize(threads);
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static int threads() {
+        return Math.max(1, Prefs.getThreads());
+    }
+
+    static ThreadFactory named(final String prefix) {
+        final AtomicInteger number = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + number.incrementAndGet());
+            thread.setDaemon(true); // Never keeps ImageJ from closing
+            return thread;
+        };
+    }
+
+    private static ExecutorService fileExecutor() {
+        // A new virtual thread per task on Java 21 and later, found by reflection as the plugin is built for Java 8
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtualBuilder = builder.getMethod("name", String.class, long.class).invoke(virtualBuilder, "sSMLMA io ", 1L);
+            ThreadFactory factory = (ThreadFactory) builder.getMethod("factory").invoke(virtualBuilder);
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+            virtual = true;
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Otherwise platform threads, kept for a while to be reused
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), named("sSMLMA io "));
+        }
+    }
+
+    public static int getThreads() { return pool().getMaximumPoolSize(); }
+
+    public static int getActive() { return pool.getActiveCount(); }
+
+    public static int getQueued() { return pool.getQueue().size(); }
+
+    public static int getPeakQueued() { return peakQueued.get(); }
+
+    public static String metrics() {
+        return "Worker pool: " + getThreads() + " threads (" + pool.getPoolSize() + " started), " + getActive() + " busy, " +
+                getQueued() + " tasks waiting (at most " + getPeakQueued() + "), " + tasks.get() + " tasks of which " + helped.get() +
+                " were run by the thread waiting for them, " + fileTasks.get() + " file tasks on " + (virtual ? "virtual threads" : "their own threads");
+    }
+}
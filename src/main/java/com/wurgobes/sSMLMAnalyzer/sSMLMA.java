@@ -50,7 +50,6 @@ SOFTWARE.
 
 import com.wurgobes.sSMLMAnalyzer.CustomPlot.CustomPlot;
 import ij.*;
-import static ij.util.ThreadUtil.*;
 import ij.gui.HistogramWindow;
 import ij.gui.Plot;
 import ij.process.FloatProcessor;
@@ -119,13 +118,53 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
     // Variable in which the csv is loaded into (and the class used for loading it)
     OwnFloatMatrixLoader ownFloatMatrixLoader = new OwnFloatMatrixLoader();
-    FloatMatrix floatMatrix;
+    LocalisationTable localisations;
 
     //Filepaths for the input csv and result csv directory
     private String filePath = "";
     private String csv_target_dir = "";
 
     private boolean saveSCV = true;
+    // Also save the result tables as binary .npy, one file per table or one per column
+    private final String[] binaryLayouts = {"none", "table", "column"};
+    private String saveBinary = "none";
+    private boolean compressOutput = false; // Write the csv files gzipped (.csv.gz)
+    private boolean outputFailed = false; // A result file could not be written, so the run does not write its info.xml
+
+    // When not 0, the pairs are found one range of frames at a time and kept on disk, so they take at most about this many MB of memory
+    private int memoryLimit = 0;
+    // Read a file sorted by frame a few frames at a time and write the pairs while reading, see runStreaming()
+    private boolean streaming = false;
+    private final int streamBatchRows = 1 << 14; // Localisations per batch of frames
+    // Follow a file that is still being written, redrawing the results every liveInterval seconds, see runLive()
+    private boolean live = false;
+    private int liveInterval = 5;
+    private int liveTimeout = 120; // Seconds without new lines after which it stops, 0 = only on escape
+    private final int livePoll = 250; // ms between checks for new lines
+    // Run everything on a sample of the frames spread over the acquisition, and report what the full run would give, see previewSample()
+    // Nothing is saved in a preview
+    private boolean preview = false;
+    private String previewSample = "5%"; // A percentage of the frames, or an amount of frames
+    private final long[] previewSize = new long[]{0, 0, 0, 0}; // Frames and localisations in the sample, and in the whole file
+    private double loadTime = 0; // ns, of the last load
+    private double calibrationTime = 0; // ns, of all angle and distance estimates
+    private double previewStart = 0;
+    // How the candidate pairs of a frame are found: auto picks the dense or grid search per frame, see PairSearch
+    private String pairSearch = "auto";
+    // A run stops at the next check of its token when Esc is pressed, its thread is interrupted or after timeLimit seconds (0 = none)
+    private int timeLimit = 0;
+    private CancellationToken cancellation = CancellationToken.NONE;
+
+    // Keep the result of each stage for the next run, so a run that only changes later settings starts from there, see StageCache
+    // With disk the pairs are also stored next to the ImageJ preferences
+    private final String[] stageCacheModes = {"off", "memory", "disk"};
+    private String stageCache = "memory";
+    private String inputKey = null; // StageCache keys of this run, the pairs key is set before any retry
+    // Loaded files are kept for later runs in the session cache (see DatasetCache), which can be told to pin or forget them
+    private final String[] sessionCacheModes = {"keep", "pin", "unpin", "clear", "clear_all"};
+    private String sessionCache = "keep";
+    private String datasetKey = null; // DatasetCache key of the input file, null if it cannot be read
+    private String pairsKey = null;
 
     //Ranges used in actual code
     private final float[] angRange = new float[] {0, 0};
@@ -165,25 +204,51 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
     private boolean doingRetry = false;
     private boolean flipAngles = false;
     private boolean mirrorAngles = false;
+    private final boolean[] angleFlagsSet = new boolean[]{false, false}; // Whether the user set flip and mirror, a calibration profile only fills in the others
+    private boolean angleFlagsFromProfile = false;
     private final boolean[][] perm = new boolean[][]{{false, false}, {false, true}, {true, false}, {true, true}};
     private final boolean[][] permReference = new boolean[][]{{false, false}, {false, true}, {true, false}, {true, true}};
-    private final FloatMatrix[] angleResults = new FloatMatrix[perm.length];
+    private final PairTable[] angleResults = new PairTable[perm.length];
     private boolean retry = false;
     private boolean foundBestResult = false;
     private boolean displayInfo = true;
     private int runNumber = 1;
 
+    // Which method is used to determine the angle and distance when they are not set
+    // The displacement estimator samples frames, so its settings are the radius and amount of frames
+    // The progressive version adds batches of frames until the estimates are within the tolerances (estimatorFrames is then the maximum)
+    private final String[] angleEstimators = {"fft", "displacement", "progressive"};
+    private String angleEstimator = "fft";
+    private float estimatorRadius = 0;
+    private int estimatorFrames = 2000;
+    private int estimatorBatch = 100;
+    private float estimatorAngleTolerance = 0.005f;
+    private float estimatorDistanceTolerance = 5f;
+
+    // Calibration profile to load instead of detecting the angle and distance, and the name to save the result under
+    private String calibrationProfile = "";
+    private String calibrationSave = "";
+
+    // Filled by the displacement estimator: frames used and 95% confidence intervals
+    private int estimatorFramesUsed = 0;
+    private final float[] estimatorUncertainty = new float[] {0, 0};
+
     // Variables related to visualisation
     private boolean visualisation = true;
     private boolean visualiseZOLA = false;
     private String defaultLUT = "physics.lut";
     private final float[] lutRange = new float[]{0,0};
+    private final float[] lutInput = new float[]{0,0}; // The LUT range as set by the user (or profile), 0 = calculated
     private float binwidth = 2.5f; //Binwidth in units used in distance for histograms
     //private final int[] unit_decades = {0, 0, 0, -2, -3, -6, -9, -10, -12, -15};
 
     // Core count as set by ImageJ preferences
     private final int coreCount = Prefs.getThreads();
 
+    // Macro options for a run started from other code (such as the folder watcher), used instead of the macro options
+    private String options = null;
+    private PairTable resultPairs = null; // The final pairs, for that code to look at after the run
+
     //Debug variables (only ever set or used when running from the IDE)
     private boolean processing = true;
     private final static boolean debug = false;
@@ -250,6 +315,64 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 e1.appendChild(e2);
             }
 
+            if(saveSCV && compressOutput) {
+                e2 = dom.createElement("compress_output");
+                e2.appendChild(dom.createTextNode(String.valueOf(compressOutput)));
+                e1.appendChild(e2);
+            }
+
+            if(streaming) {
+                e2 = dom.createElement("streaming");
+                e2.appendChild(dom.createTextNode(String.valueOf(streaming)));
+                e1.appendChild(e2);
+            }
+
+            if(live) {
+                e2 = dom.createElement("live_interval");
+                e2.appendChild(dom.createTextNode(String.valueOf(liveInterval)));
+                e1.appendChild(e2);
+
+                e2 = dom.createElement("live_timeout");
+                e2.appendChild(dom.createTextNode(String.valueOf(liveTimeout)));
+                e1.appendChild(e2);
+            }
+
+            if(!sessionCache.equals("keep")) {
+                e2 = dom.createElement("session_cache");
+                e2.appendChild(dom.createTextNode(sessionCache));
+                e1.appendChild(e2);
+            }
+
+            if(!pairSearch.equals("auto")) {
+                e2 = dom.createElement("pair_search");
+                e2.appendChild(dom.createTextNode(pairSearch));
+                e1.appendChild(e2);
+            }
+
+            if(timeLimit > 0) {
+                e2 = dom.createElement("timeout");
+                e2.appendChild(dom.createTextNode(String.valueOf(timeLimit)));
+                e1.appendChild(e2);
+            }
+
+            if(!stageCache.equals("memory")) {
+                e2 = dom.createElement("stage_cache");
+                e2.appendChild(dom.createTextNode(stageCache));
+                e1.appendChild(e2);
+            }
+
+            if(memoryLimit > 0) {
+                e2 = dom.createElement("memory_limit");
+                e2.appendChild(dom.createTextNode(String.valueOf(memoryLimit)));
+                e1.appendChild(e2);
+            }
+
+            if(saveSCV && !saveBinary.equals("none")) {
+                e2 = dom.createElement("save_binary");
+                e2.appendChild(dom.createTextNode(saveBinary));
+                e1.appendChild(e2);
+            }
+
             e2 = dom.createElement("angles_input");
 
                 e3 = dom.createElement("start");
@@ -274,6 +397,12 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
             e1.appendChild(e2);
 
+            if(!calibrationProfile.equals("")) {
+                e2 = dom.createElement("calibration_profile");
+                e2.appendChild(dom.createTextNode(calibrationProfile));
+                e1.appendChild(e2);
+            }
+
             e2 = dom.createElement("orders");
             e2.appendChild(dom.createTextNode(String.valueOf(orders)));
             e1.appendChild(e2);
@@ -300,6 +429,34 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
             e2.appendChild(dom.createTextNode(String.valueOf(deepSearchAngle)));
             e1.appendChild(e2);
 
+            e2 = dom.createElement("angle_estimator");
+            e2.appendChild(dom.createTextNode(angleEstimator));
+            e1.appendChild(e2);
+
+            if(!angleEstimator.equals("fft")) {
+                e2 = dom.createElement("estimator_radius");
+                e2.appendChild(dom.createTextNode(String.valueOf(estimatorRadius)));
+                e1.appendChild(e2);
+
+                e2 = dom.createElement("estimator_frames");
+                e2.appendChild(dom.createTextNode(String.valueOf(estimatorFrames)));
+                e1.appendChild(e2);
+            }
+
+            if(angleEstimator.equals("progressive")) {
+                e2 = dom.createElement("estimator_batch");
+                e2.appendChild(dom.createTextNode(String.valueOf(estimatorBatch)));
+                e1.appendChild(e2);
+
+                e2 = dom.createElement("estimator_angle_tolerance");
+                e2.appendChild(dom.createTextNode(String.valueOf(estimatorAngleTolerance)));
+                e1.appendChild(e2);
+
+                e2 = dom.createElement("estimator_distance_tolerance");
+                e2.appendChild(dom.createTextNode(String.valueOf(estimatorDistanceTolerance)));
+                e1.appendChild(e2);
+            }
+
             if(toCleanup) {
                 e2 = dom.createElement("lone_pair_neighbours");
                 e2.appendChild(dom.createTextNode(String.valueOf(neighbours)));
@@ -388,6 +545,24 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
             e1.appendChild(e2);
 
+            if(estimatorFramesUsed > 0) {
+                e2 = dom.createElement("estimator_frames_used");
+                e2.appendChild(dom.createTextNode(String.valueOf(estimatorFramesUsed)));
+                e1.appendChild(e2);
+
+                e2 = dom.createElement("estimator_confidence_interval");
+
+                    e3 = dom.createElement("angle");
+                    e3.appendChild(dom.createTextNode(String.valueOf(estimatorUncertainty[0])));
+                e2.appendChild(e3);
+
+                    e3 = dom.createElement("distance");
+                    e3.appendChild(dom.createTextNode(String.valueOf(estimatorUncertainty[1])));
+                e2.appendChild(e3);
+
+                e1.appendChild(e2);
+            }
+
             rootEle.appendChild(e1);
 
 
@@ -422,7 +597,9 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
         ownColorTable = new OwnColorTable(lutService);
 
         // Loading the debug string if its set
-        if (debug_arg_string.equals("")) {
+        if (options != null) {
+            arg = options;
+        } else if (debug_arg_string.equals("")) {
             arg = Macro.getOptions();
         } else {
             arg = debug_arg_string;
@@ -448,6 +625,10 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                     "lone_pair_remove", "lone_pair_neighbours", "lone_pair_distance",
                     "visualisation", "visualisationZOLA", "hist_binwidth", "LUT", "LUT_start", "LUT_end",
                     "check_z", "check_z_margin", "check_distance_delta", "distance_delta",
+                    "angle_estimator", "estimator_radius", "estimator_frames",
+                    "estimator_batch", "estimator_angle_tolerance", "estimator_distance_tolerance",
+                    "calibration_profile", "calibration_save", "save_binary", "compress_output",
+                    "memory_limit", "streaming", "live", "live_interval", "live_timeout", "stage_cache", "session_cache", "session_cache_mb", "preview", "preview_sample", "pair_search", "timeout",
                     //These are for macro recording mode. Don't think about it
                     "browse", "csv", "save", "csv_0", "start", "end", "start_0", "end_0",
                     "number", "restrict", "max", "intensity", "ratio", "flip", "mirror",
@@ -512,15 +693,19 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                                 break;
                             case "flip":
                                 flipAngles = true;
+                                angleFlagsSet[0] = true;
                                 break;
                             case "angle_flip":
                                 flipAngles = Boolean.parseBoolean(keyword_val[1]);
+                                angleFlagsSet[0] = true;
                                 break;
                             case "mirror":
                                 mirrorAngles = true;
+                                angleFlagsSet[1] = true;
                                 break;
                             case "angle_mirror":
                                 mirrorAngles = Boolean.parseBoolean(keyword_val[1]);
+                                angleFlagsSet[1] = true;
                                 break;
                             case "search":
                                 searchAngle = true;
@@ -597,6 +782,92 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                             case "distance_delta":
                                 distanceDelta = Float.parseFloat(keyword_val[1]);
                                 break;
+                            case "angle_estimator":
+                                if (!Arrays.asList(angleEstimators).contains(keyword_val[1])) {
+                                    logService.error("Angle estimator " + keyword_val[1] + " not found\nDid you mean: " + getTheClosestMatch(angleEstimators, keyword_val[1]) + "?");
+                                    return false;
+                                }
+                                angleEstimator = keyword_val[1];
+                                break;
+                            case "estimator_radius":
+                                estimatorRadius = Float.parseFloat(keyword_val[1]);
+                                break;
+                            case "estimator_frames":
+                                estimatorFrames = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "estimator_batch":
+                                estimatorBatch = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "estimator_angle_tolerance":
+                                estimatorAngleTolerance = Float.parseFloat(keyword_val[1]);
+                                break;
+                            case "estimator_distance_tolerance":
+                                estimatorDistanceTolerance = Float.parseFloat(keyword_val[1]);
+                                break;
+                            case "calibration_profile":
+                                calibrationProfile = keyword_val[1];
+                                break;
+                            case "calibration_save":
+                                calibrationSave = keyword_val[1];
+                                break;
+                            case "save_binary":
+                                if (!Arrays.asList(binaryLayouts).contains(keyword_val[1])) {
+                                    logService.error("Binary layout " + keyword_val[1] + " not found\nDid you mean: " + getTheClosestMatch(binaryLayouts, keyword_val[1]) + "?");
+                                    return false;
+                                }
+                                saveBinary = keyword_val[1];
+                                break;
+                            case "compress_output":
+                                compressOutput = Boolean.parseBoolean(keyword_val[1]);
+                                break;
+                            case "memory_limit":
+                                memoryLimit = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "streaming":
+                                streaming = Boolean.parseBoolean(keyword_val[1]);
+                                break;
+                            case "live":
+                                live = Boolean.parseBoolean(keyword_val[1]);
+                                break;
+                            case "live_interval":
+                                liveInterval = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "live_timeout":
+                                liveTimeout = Integer.parseInt(keyword_val[1]);
+                                break;
+                            case "stage_cache":
+                                if (!Arrays.asList(stageCacheModes).contains(keyword_val[1])) {
+                                    logService.error("Stage cache " + keyword_val[1] + " not found\nDid you mean: " + getTheClosestMatch(stageCacheModes, keyword_val[1]) + "?");
+                                    return false;
+                                }
+                                stageCache = keyword_val[1];
+                                break;
+                            case "session_cache":
+                                if (!Arrays.asList(sessionCacheModes).contains(keyword_val[1])) {
+                                    logService.error("Session cache " + keyword_val[1] + " not found\nDid you mean: " + getTheClosestMatch(sessionCacheModes, keyword_val[1]) + "?");
+                                    return false;
+                                }
+                                sessionCache = keyword_val[1];
+                                break;
+                            case "session_cache_mb":
+                                DatasetCache.setBudget(Long.parseLong(keyword_val[1]) * 1024 * 1024);
+                                break;
+                            case "preview":
+                                preview = Boolean.parseBoolean(keyword_val[1]);
+                                break;
+                            case "preview_sample":
+                                previewSample = keyword_val[1];
+                                break;
+                            case "pair_search":
+                                if (!Arrays.asList(PairSearch.modes).contains(keyword_val[1])) {
+                                    logService.error("Pair search " + keyword_val[1] + " not found\nDid you mean: " + getTheClosestMatch(PairSearch.modes, keyword_val[1]) + "?");
+                                    return false;
+                                }
+                                pairSearch = keyword_val[1];
+                                break;
+                            case "timeout":
+                                timeLimit = Integer.parseInt(keyword_val[1]);
+                                break;
                             case "file_path":
                                 break;
                             case "save":
@@ -630,6 +901,11 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 gd.addCheckbox("Save to CSV?", saveSCV);
                 gd.addToSameRow();
                 gd.addDirectoryField("CSV output directory", csv_target_dir, 25);
+                gd.addChoice("Also save binary (.npy)", binaryLayouts, saveBinary);
+                gd.addToSameRow();
+                gd.addCheckbox("Compress CSV (gzip)", compressOutput);
+                gd.addToSameRow();
+                gd.addChoice("Reuse earlier stages", stageCacheModes, stageCache);
 
                 gd.addMessage("------------------------------------------Angles and Distances-----------------------------------------------------------------------------------------------------------------");
 
@@ -644,7 +920,27 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 gd.addToSameRow();
                 gd.addNumericField("End Distance", distRange[1]);
 
+                gd.addStringField("Calibration profile", calibrationProfile, 25);
+                gd.addToSameRow();
+                gd.addStringField("Save calibration as", calibrationSave, 15);
+                gd.addMessage("A profile name or the path to an info.xml of an earlier run. Its angles, distances and LUT range are used for any value not set above.");
+
                 gd.addNumericField("Number of Orders", orders);
+                gd.addToSameRow();
+                gd.addNumericField("Memory limit (MB, 0 = none)", memoryLimit);
+                gd.addToSameRow();
+                gd.addCheckbox("Stream (input sorted by frame)", streaming);
+                gd.addCheckbox("Live (follow a file being written)", live);
+                gd.addToSameRow();
+                gd.addNumericField("Redraw every (s)", liveInterval);
+                gd.addToSameRow();
+                gd.addNumericField("Stop after idle (s, 0 = Esc only)", liveTimeout);
+                gd.addCheckbox("Preview on a sample of the frames", preview);
+                gd.addToSameRow();
+                gd.addStringField("Sample (frames or %)", previewSample, 6);
+                gd.addToSameRow();
+                gd.addChoice("Pair search", PairSearch.modes, pairSearch);
+                gd.addNumericField("Time limit (s, 0 = none)", timeLimit);
 
                 gd.addCheckbox("Restrict delta z", checkforZ);
                 gd.addToSameRow();
@@ -669,6 +965,19 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 gd.addCheckbox("Search for the angle with the most pairs?", deepSearchAngle);
                 gd.addToSameRow();
                 gd.addMessage("Try and find the permutation of above options that results in the most pairs.");
+                gd.addChoice("Angle estimator", angleEstimators, angleEstimator);
+                gd.addToSameRow();
+                gd.addNumericField("Estimator radius", estimatorRadius);
+                gd.addToSameRow();
+                gd.addNumericField("Estimator frames", estimatorFrames);
+                gd.addMessage("fft renders all points into an image and uses its FFT. displacement uses the vectors between points in a sample of frames.\n" +
+                        "The radius (0 = 10% of the field of view) should be larger than the distance between orders.");
+                gd.addNumericField("Progressive batch", estimatorBatch);
+                gd.addToSameRow();
+                gd.addNumericField("Angle tolerance (rad)", estimatorAngleTolerance, 4);
+                gd.addToSameRow();
+                gd.addNumericField("Distance tolerance", estimatorDistanceTolerance);
+                gd.addMessage("progressive adds batches of frames until the 95% confidence intervals are below the tolerances, using at most 'Estimator frames' frames.");
 
                 gd.addMessage("------------------------------------------Filtering----------------------------------------------------------------------------------------------------------------------------");
 
@@ -724,6 +1033,9 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
                 saveSCV = gd.getNextBoolean();
                 csv_target_dir = gd.getNextString();
+                saveBinary = gd.getNextChoice();
+                compressOutput = gd.getNextBoolean();
+                stageCache = gd.getNextChoice();
 
                 angInput[0] = (float) (gd.getNextNumber() * (Math.PI / 180f));
                 angInput[1] = (float) (gd.getNextNumber() * (Math.PI / 180f));
@@ -731,7 +1043,19 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 distInput[0] = (float) gd.getNextNumber();
                 distInput[1] = (float) gd.getNextNumber();
 
+                calibrationProfile = gd.getNextString();
+                calibrationSave = gd.getNextString();
+
                 orders = (int) gd.getNextNumber();
+                memoryLimit = (int) gd.getNextNumber();
+                streaming = gd.getNextBoolean();
+                live = gd.getNextBoolean();
+                liveInterval = (int) gd.getNextNumber();
+                liveTimeout = (int) gd.getNextNumber();
+                preview = gd.getNextBoolean();
+                previewSample = gd.getNextString();
+                pairSearch = gd.getNextChoice();
+                timeLimit = (int) gd.getNextNumber();
 
                 checkforZ = gd.getNextBoolean();
                 zMargin = (float) gd.getNextNumber();
@@ -741,10 +1065,20 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
                 flipAngles = gd.getNextBoolean();
                 mirrorAngles = gd.getNextBoolean();
+                // An unchecked box is the default, so only a checked one counts as set
+                angleFlagsSet[0] = flipAngles;
+                angleFlagsSet[1] = mirrorAngles;
 
                 searchAngle = gd.getNextBoolean();
                 deepSearchAngle = gd.getNextBoolean();
 
+                angleEstimator = gd.getNextChoice();
+                estimatorRadius = (float) gd.getNextNumber();
+                estimatorFrames = (int) gd.getNextNumber();
+                estimatorBatch = (int) gd.getNextNumber();
+                estimatorAngleTolerance = (float) gd.getNextNumber();
+                estimatorDistanceTolerance = (float) gd.getNextNumber();
+
                 toCleanup = gd.getNextBoolean();
                 neighbours = (int) gd.getNextNumber();
                 cleanDistance = (float) gd.getNextNumber();
@@ -767,6 +1101,39 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
         if(deepSearchAngle) searchAngle = true; // If we do a deep search, this includes the normal search
 
+        // A calibration profile fills in any angle, distance or LUT value the user did not set
+        // With a complete profile the angle and distance detection is skipped entirely
+        if(!calibrationProfile.equals("")) {
+            try {
+                CalibrationProfile profile = CalibrationProfile.load(calibrationProfile);
+                logService.info("Using calibration profile " + calibrationProfile + ": " + profile);
+
+                float[] angles = profile.getAngles();
+                float[] distances = profile.getDistances();
+                float[] lut = profile.getLutRange();
+                for (int i = 0; i < 2; i++) {
+                    if (angInput[i] == 0f) angInput[i] = angles[i];
+                    if (distInput[i] == 0f) distInput[i] = distances[i];
+                    if (lutRange[i] == 0f) lutRange[i] = lut[i];
+                }
+                if (!angleFlagsSet[0]) flipAngles = profile.getFlipAngles();
+                if (!angleFlagsSet[1]) mirrorAngles = profile.getMirrorAngles();
+                angleFlagsFromProfile = !angleFlagsSet[0] || !angleFlagsSet[1];
+            } catch (IOException e) {
+                logService.error(e.getMessage());
+                return false;
+            }
+        }
+        System.arraycopy(lutRange, 0, lutInput, 0, 2);
+
+        // A macro can empty the session cache without analysing a file
+        if(sessionCache.equals("clear_all")) {
+            DatasetCache.clear();
+            StageCache.clear();
+            logService.info("Cleared the session cache");
+            if(filePath.equals("")) return false;
+        }
+
         // Require input CSV
         if(filePath.equals("")){
             logService.error("No input CSV was set");
@@ -774,18 +1141,27 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
         }
 
         // Require output directory if you want to save
-        if(saveSCV && csv_target_dir.equals("")){
+        if(saveSCV && !preview && csv_target_dir.equals("")){
             logService.error("Set saving to CSV but no filepath was provided.");
             return false;
         }
 
+        if(preview) {
+            try {
+                previewFrames(Integer.MAX_VALUE);
+            } catch (NumberFormatException e) {
+                logService.error("The preview sample has to be an amount of frames or a percentage, not " + previewSample);
+                return false;
+            }
+        }
+
         // Require user to either save or show results
-        if(!(visualisation || saveSCV || visualiseZOLA)) {
+        if(!(visualisation || saveSCV || visualiseZOLA || preview)) {
             logService.error("No output method of any sorts is selected.\nSelect either Visualisation or Save to CSV.");
             return false;
         }
 
-        if(saveSCV && !new File(csv_target_dir).exists()) {
+        if(saveSCV && !preview && !new File(csv_target_dir).exists()) {
             if(!new File(csv_target_dir).mkdir()) {
                 logService.error("Failed to create CSV target directory: " + csv_target_dir);
                 return false;
@@ -795,13 +1171,80 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
         return true;
     }
 
+    private void parseHeader(List<String> collumns) {
+        // Finds which column holds which variable, and the units they are in
+        revOptionsIndices = new int[possible_options.length];
+        unitsIndices = new int[collumns.size()];
+
+        //Load not_found (-1) as default
+        for(int i = 0; i < possible_options.length; i++){
+            revOptionsIndices[i] = -1;
+        }
+
+        // Regex pattern that extracts the header name and any possible units
+        Pattern pattern = Pattern.compile("(\\w+)( [ (\\[](\\w+)[)\\] ])?");
+
+        // For each collumn get the header and unit it is using
+        for (int i = 0; i < collumns.size(); i++) {
+            String header = collumns.get(i);
+            Matcher matcher = pattern.matcher(header);
+            if (matcher.find()) {
+                revOptionsIndices[getTheClosestMatch(possible_options, matcher.group(1))] = i;
+                unitsIndices[i] = getTheClosestMatch(unit_prefixes, matcher.group(3));
+            }
+        }
+    }
+
+    void run(String options, LogService logService, LUTService lutService) {
+        // Runs one analysis with these options, in the same form as the macro options
+        this.options = options;
+        this.logService = logService;
+        this.lutService = lutService;
+        run();
+    }
+
+    PairTable getResultPairs() {
+        // The pairs after the filters, or null if the run failed or did not keep them (streaming, live or with a memory limit)
+        return resultPairs;
+    }
+
     @Override
     public void run() {
+        // A stopped run ends with a CancelledException from the first check after it was stopped, see CancellationToken
+        try {
+            analyse();
+        } catch (CancellationToken.CancelledException e) {
+            stopped(e.getMessage());
+        } catch (RuntimeException e) {
+            // WorkerPool wraps the interrupt of a thread waiting for its tasks, like ThreadUtil.joinThreads()
+            if (!(e.getCause() instanceof InterruptedException)) throw e;
+            Thread.currentThread().interrupt();
+            cancellation.cancel("interrupted");
+            stopped(cancellation.getReason());
+        }
+    }
+
+    private void stopped(String reason) {
+        // Nothing of a stopped run is kept, its files are not written (or removed again) and the buffers are released
+        logService.info("Stopped: " + reason);
+        IJ.showStatus("Stopped: " + reason);
+        IJ.showProgress(1.0);
+        localisations = null;
+        resultPairs = null;
+        Arrays.fill(angleResults, null);
+    }
+
+    private void analyse() {
         boolean fileError = false;
 
         // Setup is done here
         // If it returns a failure (false) we execute nothing else
         if (setup()) {
+            if (!doingRetry) {
+                cancellation = new CancellationToken(timeLimit);
+                // Runs started by another command (the folder watcher, a sweep) leave Esc to that command
+                if (options == null) IJ.resetEscape();
+            }
             double csvTime = System.nanoTime(); // Timing loading csv
 
             List<String> collumns = new ArrayList<>(); // will store the collumns as found in csv
@@ -833,20 +1276,53 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 //mirrorAngles = true;
             }
 
+            // A file sorted by frame can go straight from the reader to the output files, without loading it first
+            if (live && processing && !doingRetry && !preview) {
+                runLive();
+                return;
+            }
+            if (streaming && processing && !doingRetry && !preview) {
+                runStreaming();
+                return;
+            }
+
             // If we are not doing a retry we need to parse the CSV
             if (!doingRetry) {
 
                 // Load our file into a matrix and retrieve the collumheaders
                 // also catch any errors that might arise
+                // A file that did not change since it was last loaded can still be in the session cache
+                try {
+                    datasetKey = DatasetCache.key(filePath);
+                } catch (IOException e) {
+                    datasetKey = null;
+                }
+                inputKey = datasetKey == null ? null : StageCache.key(StageCache.Stage.INPUT, null, datasetKey);
+                if (datasetKey != null && sessionCache.equals("clear")) DatasetCache.remove(datasetKey);
+
+                LocalisationTable loaded = useSessionCache() ? DatasetCache.get(datasetKey) : null;
                 try {
-                    floatMatrix = ownFloatMatrixLoader.loadCSVFile(filePath);
-                    collumns = ownFloatMatrixLoader.getColumns();
+                    if (loaded != null) {
+                        logService.info("Reusing the localisations from the session cache");
+                        localisations = loaded;
+                        collumns = loaded.getColumnNames();
+                    } else {
+                        ownFloatMatrixLoader.setCancellation(cancellation);
+                        localisations = ownFloatMatrixLoader.loadTable(filePath);
+                        collumns = ownFloatMatrixLoader.getColumns();
+                        if (useSessionCache() && !DatasetCache.put(datasetKey, localisations, sessionCache.equals("pin")))
+                            logService.info("The file is larger than the session cache (" + DatasetCache.getBudget() / (1024 * 1024) + " MB) and is not kept");
+                    }
+                    if (useSessionCache() && (sessionCache.equals("pin") || sessionCache.equals("unpin")))
+                        DatasetCache.pin(datasetKey, sessionCache.equals("pin"));
                 } catch (IOException e) {
                     logService.info("File not found.");
                     fileError = true;
                 } catch (LapackException e) {
                     logService.info("Lapack error");
                     fileError = true;
+                } catch (CancellationToken.CancelledException e) {
+                    throw e;
                 } catch (Exception e) {
                     logService.info("Error reading file. Does the csv start with a header?");
                     fileError = true;
@@ -855,37 +1331,19 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
 
 
-                // Initialise the units and header arrays
-                revOptionsIndices = new int[possible_options.length];
-                unitsIndices = new int[collumns.size()];
-
-                //Load not_found (-1) as default
-                for(int i = 0; i < possible_options.length; i++){
-                    revOptionsIndices[i] = -1;
-                }
-
-                // Regex pattern that extracts the header name and any possible units
-                Pattern pattern = Pattern.compile("(\\w+)( [ (\\[](\\w+)[)\\] ])?");
-
-                // For each collumn get the header and unit it is using
-                for (int i = 0; i < collumns.size(); i++) {
-                    String header = collumns.get(i);
-                    Matcher matcher = pattern.matcher(header);
-                    if (matcher.find()) {
-                        revOptionsIndices[getTheClosestMatch(possible_options, matcher.group(1))] = i;
-                        unitsIndices[i] = getTheClosestMatch(unit_prefixes, matcher.group(3));
-                    }
-                }
+                parseHeader(collumns);
 
                 // Feedback about CSV loading time
                 csvTime = System.nanoTime() - csvTime;
+                loadTime = csvTime;
                 logService.info("Loading CSV took " + String.format("%.3f", csvTime / 1000000000) + " s");
 
             }
 
             double processingTime = System.nanoTime();
-            final FloatMatrix data; // Holds all data (including datapoints that are not pairs)
-            FloatMatrix finalPossibilities; // Holds all pairs
+            final LocalisationTable data; // Holds all data (including datapoints that are not pairs)
+            FrameIndex dataFrames = null; // Which rows belong to which frame, made once it is needed
+            PairTable finalPossibilities; // Holds all pairs
 
             // This boolean indicates if the angle finding succeeded or failed, along side some other checks
             boolean succes = false;
@@ -893,52 +1351,96 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
             if (angInput[0] * angInput[1] * distInput[0] * distInput[1] != 0) {
                 searchAngle = false;
                 deepSearchAngle = false;
-                flipAngles = false;
-                mirrorAngles = false;
+                // The flags of a calibration profile are kept, so info.xml and a saved profile show them
+                if (!angleFlagsFromProfile) {
+                    flipAngles = false;
+                    mirrorAngles = false;
+                }
             }
 
-            if (processing && floatMatrix != null) {
+            if (processing && localisations != null) {
                 // Echo back settings used when searching for the best angle
                 if (searchAngle) {
                     logService.info("Run: " + runNumber + ". Determining Angle with settings: Flip Angle: " + flipAngles + ", Mirror Angle: " + mirrorAngles);
                 }
 
                 // frame, x, y, z, intensity
-                // Load the relevant data, if no z is found, load a column of 0's
-                if(revOptionsIndices[4] == -1 || revOptionsIndices[5] == -1){
-                    data = new FloatMatrix(floatMatrix.rows, 5);
-                    data.putColumn(0, floatMatrix.getColumn(revOptionsIndices[1])); // frame
-                    data.putColumn(1, floatMatrix.getColumn(revOptionsIndices[2])); // x
-                    data.putColumn(2, floatMatrix.getColumn(revOptionsIndices[3])); // y
-                    if(revOptionsIndices[4] != -1) {
-                        hasZ = true;
-                        data.putColumn(3, floatMatrix.getColumn(revOptionsIndices[4])); // z
+                // Select the relevant columns (without copying them), if no z is found, use a column of 0's
+                // and without intensity a column of 1's
+                hasZ = revOptionsIndices[4] != -1;
+                hasIntensity = revOptionsIndices[5] != -1;
+                LocalisationTable selected = localisations.select(new int[]{revOptionsIndices[1], revOptionsIndices[2], revOptionsIndices[3], revOptionsIndices[4], revOptionsIndices[5]},
+                        new float[]{0, 0, 0, 0, 1});
+
+                // A preview continues with only a sample of the frames
+                if (preview) {
+                    if (!doingRetry) {
+                        previewStart = System.nanoTime();
+                        calibrationTime = 0;
                     }
+                    data = previewSample(selected);
+                } else {
+                    data = selected;
+                }
 
-                    if(revOptionsIndices[5] != -1) {
-                        data.putColumn(4, floatMatrix.getColumn(revOptionsIndices[5])); // intensity
-                        hasIntensity = true;
+                // The calibration depends on the input and the estimator settings, and is found again for every flip/mirror that is tried
+                // Of the LUT range only whether it is calculated matters, the values set by the user are applied in finishRun()
+                String calibrationKey = StageCache.key(StageCache.Stage.CALIBRATION, inputKey, angInput[0], angInput[1], distInput[0], distInput[1],
+                        angleEstimator, estimatorRadius, estimatorFrames, estimatorBatch, estimatorAngleTolerance, estimatorDistanceTolerance,
+                        flipAngles, mirrorAngles, lutInput[0] == 0f, lutInput[1] == 0f);
+
+                // The pairs also depend on the search, so their key is made before any retry changes the flip/mirror settings
+                if (!doingRetry) {
+                    pairsKey = inputKey == null ? null : StageCache.key(StageCache.Stage.PAIRS, calibrationKey, orders, checkforZ, zMargin,
+                            checkForIntensity, ratioIntensity, searchAngle, deepSearchAngle);
+
+                    // If only later settings changed, the pairs of the previous run are used as they are
+                    Pairs stored = findStoredPairs();
+                    if (stored != null) {
+                        stored.restore(this);
+                        logService.info("Reusing the " + stored.table.rows() + " pairs found by the previous run");
+                        finishRun(stored.table);
+                        return;
                     }
-                    else {
-                        fillCollumn(data, 4, 1);
-                    }
-
-                } else {
-                    hasZ = true;
-                    hasIntensity = true;
-                    data = floatMatrix.getColumns(new int[]{revOptionsIndices[1], revOptionsIndices[2], revOptionsIndices[3], revOptionsIndices[4],revOptionsIndices[5]});
                 }
 
                 // If any var is not set, we have to calculate them all
-                if (angInput[0] * angInput[1] * distInput[0] * distInput[1] == 0) {
+                double calibrationStart = System.nanoTime();
+                Calibration calibration = useStageCache() && inputKey != null ? (Calibration) StageCache.get(StageCache.Stage.CALIBRATION, calibrationKey) : null;
+                if (calibration != null) {
+                    logService.info("Reusing the angle and distance found by the previous run");
+                    succes = calibration.restore(this);
+                } else if (angInput[0] * angInput[1] * distInput[0] * distInput[1] == 0) {
 
-                    // Instantiate the analyzer with the proper data and run it
-                    AngleAnalyzer<T> angleAnalyzer = new AngleAnalyzer<>(data, flipAngles, mirrorAngles, logService, debug);
-                    angleAnalyzer.run();
+                    float[] angResult;
+                    float[] distResult;
 
-                    //get the results
-                    float[] angResult = angleAnalyzer.getAngles();
-                    float[] distResult = angleAnalyzer.getDistances();
+                    // Instantiate the analyzer with the proper data and run it
+                    if (!angleEstimator.equals("fft")) {
+                        DisplacementAnalyzer displacementAnalyzer = new DisplacementAnalyzer(data, dataFrames = frameIndex(data), estimatorRadius, estimatorFrames, flipAngles, mirrorAngles, coreCount, logService);
+                        displacementAnalyzer.setCancellation(cancellation);
+                        if (angleEstimator.equals("progressive"))
+                            displacementAnalyzer.runProgressive(estimatorBatch, estimatorAngleTolerance, estimatorDistanceTolerance);
+                        else
+                            displacementAnalyzer.run();
+
+                        angResult = displacementAnalyzer.getAngles();
+                        distResult = displacementAnalyzer.getDistances();
+                        succes = displacementAnalyzer.getSuccess();
+
+                        estimatorFramesUsed = displacementAnalyzer.getFramesUsed();
+                        estimatorUncertainty[0] = (float) (1.96 * displacementAnalyzer.getAngleError());
+                        estimatorUncertainty[1] = (float) (1.96 * displacementAnalyzer.getDistanceError());
+                    } else {
+                        AngleAnalyzer<T> angleAnalyzer = new AngleAnalyzer<>(data, flipAngles, mirrorAngles, logService, debug);
+                        angleAnalyzer.run();
+                        cancellation.check(); // The FFT itself can not be stopped part way
+
+                        //get the results
+                        angResult = angleAnalyzer.getAngles();
+                        distResult = angleAnalyzer.getDistances();
+                        succes = angleAnalyzer.getSuccess();
+                    }
 
 
                     // Parse all the results, only overwriting values not set by the user
@@ -952,9 +1454,11 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                     lutRange[1] = distRange[1] == 0f ? distResult[1] : lutRange[1];
 
                     // check if all calculations went right
-                    succes = angleAnalyzer.getSuccess();
                     if (distRange[0] > distRange[1])  succes = false;
 
+                    if (useStageCache() && inputKey != null) StageCache.put(StageCache.Stage.CALIBRATION, calibrationKey, new Calibration(this, succes));
+                    calibrationTime += System.nanoTime() - calibrationStart;
+
                 } else {
                     // if all values are filled in this is the only check we need to do
                     succes = !(distRange[0] > distRange[1]);
@@ -967,11 +1471,11 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 }
             } else {
                 // If we dont process (during debug) we directly load the data
-                data = floatMatrix;
+                data = localisations;
             }
 
             // If we failed (and are processing) we report the error and stop execution
-            if ((!succes && processing) | floatMatrix == null) {
+            if ((!succes && processing) | localisations == null) {
                 if (distRange[0] > distRange[1]) {
                     logService.error("The distance had to be positive: " + distRange[0] + " is larger than " + distRange[1]);
                 } else if(fileError){
@@ -981,204 +1485,45 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                 }
 
             } else {
-                // Declaring a few vars due to scope juggling
-                FloatMatrix halfOrderMatrix;
-                FloatMatrix allOrdersCombined;
                 if (processing) {
 
-                    final FloatMatrix frameCollumn = data.getColumn(0);
-                    final int[] frames = getFrameNumbers(data, 0);
-                    final int numFrames = frames.length;
+                    final FrameIndex frames = dataFrames != null ? dataFrames : frameIndex(data);
+                    final int numFrames = frames.size();
 
                     // Echo back amount of frames and points
                     logService.info("Total Frames: " + numFrames);
-                    logService.info("Total Points: " + floatMatrix.rows);
+                    logService.info("Total Points: " + localisations.rows());
 
-                    final AtomicInteger ai = new AtomicInteger(0); //Atomic Integer is a thread safe incremental integer
-                    final AtomicBoolean reportOrders = new AtomicBoolean(true); //To only report more orders once
-                    final Thread[] threads = createThreadArray(coreCount); //Get array of threads
-
-                    final FloatMatrix[] intermediateFinals = new FloatMatrix[coreCount]; // All intermediate results to be merged later
-                    // prepare final verions of variables
-                    final boolean finalIntensityCheck = checkForIntensity;
-                    final float finalRatioIntensity = ratioIntensity;
-                    final boolean finalcheckforZ = checkforZ;
-                    final float finalzMargin = zMargin;
-                    final boolean finalhasZ = hasZ;
-                    //Set the run function for each thread
-                    for (int ithread = 0; ithread < threads.length; ithread++) {
-
-                        final int finalIthread = ithread;
-                        threads[finalIthread] = new Thread(() -> {
-
-                            // Will hold the final values for this thread
-                            intermediateFinals[finalIthread] = new FloatMatrix(0, totalColumns);
-
-                            // Process each frame
-                            for (int frameIndex = ai.getAndIncrement(); frameIndex < numFrames; frameIndex = ai.getAndIncrement()) {
-                                final int frame = frames[frameIndex];
-                                // Showing process to the user
-                                if (runningFromIDE && frame % 1000 == 0) logService.info("\r" + frame + "/" + numFrames);
-                                IJ.showProgress(frame, numFrames);
-                                IJ.showStatus(frame + "/" + numFrames);
-
-                                final int[] frameIndicices = frameCollumn.eq(frame).findIndices(); // All rows indices for current frame
-                                final FloatMatrix frameData = data.getRows(frameIndicices); //All rows for current frame
-
-
-                                // Distance Matrices that show distance from one point to each other point in X and Y
-                                final FloatMatrix subtractedX = makeSubstractedMatrix(frameData.getColumn(1));
-                                final FloatMatrix subtractedY = makeSubstractedMatrix(frameData.getColumn(2));
-
-                                // Matrices that have distances and angles from any point to another point in this frame
-                                final FloatMatrix distances = Distance(subtractedX, subtractedY);
-                                final FloatMatrix angles = atan2(subtractedX, subtractedY, distances);
-
-                                // Filter to only points that match the distance and angle restrictions;
-                                // The value indicates both the start and end point
-                                final int[] correctAngleAndDistance;
-
-                                if(finalhasZ && finalcheckforZ){
-                                    final FloatMatrix zDistances = makeSubstractedMatrix(frameData.getColumn(3));
-                                    correctAngleAndDistance = distances.gt(distRange[0]).and(distances.lt(distRange[1]))
-                                            .and(angles.gt(angRange[0])).and(angles.lt(angRange[1])).and(zDistances.lt(finalzMargin)).findIndices();
-                                } else {
-                                    correctAngleAndDistance = distances.gt(distRange[0]).and(distances.lt(distRange[1]))
-                                            .and(angles.gt(angRange[0])).and(angles.lt(angRange[1])).findIndices();
-                                }
+                    // One huge frame (a summed frame, a bright artifact) can need more memory than there is, so check before starting
+                    if (!doingRetry && !checkPairSearch(frames)) return;
 
-                                // If points were found, we must process them
-                                if (correctAngleAndDistance.length > 1) {
-
-                                    // Matrices to hold the possibilities and combined ones
-                                    final FloatMatrix possibilities = new FloatMatrix(correctAngleAndDistance.length, totalColumns);
-                                    FloatMatrix intermediateFinalPossibilities = new FloatMatrix(0, totalColumns);
-
-                                    // For each pair, record it to out temporary matrix
-                                    for (int i = 0; i < correctAngleAndDistance.length; i++) {
-                                        int index = correctAngleAndDistance[i];
-
-                                        // Check if the intensity ratio checks out, if that check is enabled
-                                        if (finalIntensityCheck &&
-                                                (frameData.get(index / distances.rows, 4) /
-                                                        frameData.get(index % distances.rows, 4)) > finalRatioIntensity
-                                        ) continue;
-
-                                        // Put all info about the two points into our matrix
-                                        possibilities.putRow(i, extend(new FloatMatrix(1, orderColumns * 2,
-                                                0,                                                     //0 (global index goes here later)
-                                                frame,                                                          //1 frame
-                                                1 + Math.floorDiv(index, distances.rows),                       //2 start index in frame
-                                                frameData.get(index / distances.rows, 1),    //3 start x
-                                                frameData.get(index / distances.rows, 2),    //4 start y
-                                                frameData.get(index / distances.rows, 3),    //5 start z
-                                                frameData.get(index / distances.rows, 4),    //6 start intensity
-                                                1 + Math.floorMod(index, distances.rows),                       //7 end index in frame
-                                                frameData.get(index % distances.rows, 1),    //8 end x
-                                                frameData.get(index % distances.rows, 2),    //9 end y
-                                                frameData.get(index % distances.rows, 3),    //10 end z
-                                                frameData.get(index % distances.rows, 4),    //11 end intensity
-                                                distances.get(index),                                           //12 distance
-                                                angles.get(index)                                               //13 angle
-                                        ), 1, totalColumns));
-                                    }
-
-                                    FloatMatrix connectedIds = possibilities.getColumn(7); // all frame indices to what a point is connected
-                                    List<Integer> toSkip = new ArrayList<>(); // holds indices to skip over
-
-                                    // For each pair in possibilities, ensure there are none that have overlapping starts or ends
-                                    // (1-3, 2-3) ->  4-3 where 4 is average position of 2 and 3
-                                    for (int i = 0; i < possibilities.rows; i++) {
-                                        if (!toSkip.contains(i)) { // Skip it if we processed it already
-
-                                            //If more ids match the target we average the position/intensity and skip any of the matches
-                                            //If there is only one, we add it to our final array
-                                            FloatMatrix identicalIds = connectedIds.eq(connectedIds.get(i));
-                                            float identicalIdSum = identicalIds.sum();
-                                            if (identicalIdSum > 1.0f) {
-
-                                                float cumX = possibilities.get(i, 3);
-                                                float cumY = possibilities.get(i, 4);
-                                                float cumZ = possibilities.get(i, 5);
-                                                float cumInt = possibilities.get(i, 6);
-
-                                                for (int index2 : identicalIds.findIndices()) {
-                                                    if (index2 != i) {
-                                                        cumX += possibilities.get(index2, 3);
-                                                        cumY += possibilities.get(index2, 4);
-                                                        cumZ += possibilities.get(index2, 5);
-                                                        cumInt += possibilities.get(index2, 6);
-                                                        toSkip.add(index2);
-                                                    }
-                                                }
-
-                                                FloatMatrix temp_arr = possibilities.getRow(i).dup();
-                                                temp_arr.put(3, cumX / identicalIdSum);
-                                                temp_arr.put(4, cumY / identicalIdSum);
-                                                temp_arr.put(5, cumZ / identicalIdSum);
-                                                temp_arr.put(6, cumInt / identicalIdSum);
-
-                                                intermediateFinalPossibilities = FloatMatrix.concatVertically(intermediateFinalPossibilities, temp_arr);
-
-                                            } else {
-                                                intermediateFinalPossibilities = FloatMatrix.concatVertically(intermediateFinalPossibilities, possibilities.getRow(i));
-                                            }
-                                        }
-                                    }
-                                    // Add the points calculated in this frame to this threads buffer
-                                    // We also connect the orders here: (1-2, 2-3, 3-4 -> 1-2-3-4)
-                                    intermediateFinals[finalIthread] = FloatMatrix.concatVertically(intermediateFinals[finalIthread], connectOrders(intermediateFinalPossibilities, orders, orderColumns, reportOrders));
-
-                                } else if (correctAngleAndDistance.length == 1) { // We found only a single point here, so we just add it and do no connecting
-                                    int index = correctAngleAndDistance[0];
-                                    intermediateFinals[finalIthread] = FloatMatrix.concatVertically(intermediateFinals[finalIthread], extend(new FloatMatrix(1, orderColumns * 2,
-                                            0,
-                                            frame,
-                                            1 + Math.floorDiv(index, distances.rows),
-                                            frameData.get(index / distances.rows, 1),
-                                            frameData.get(index / distances.rows, 2),
-                                            frameData.get(index / distances.rows, 3),
-                                            frameData.get(index / distances.rows, 4),
-                                            1 + Math.floorMod(index, distances.rows),
-                                            frameData.get(index % distances.rows, 1),
-                                            frameData.get(index % distances.rows, 2),
-                                            frameData.get(index % distances.rows, 3),
-                                            frameData.get(index % distances.rows, 4),
-                                            distances.get(index),
-                                            angles.get(index)
-                                    ), 1, totalColumns));
-                                }
-                            }
-                        }); //end of thread creation
+                    // With a memory limit everything from here on is done one batch of frames at a time
+                    if (memoryLimit > 0 && !preview) {
+                        runOutOfCore(data, frames, processingTime);
+                        return;
                     }
 
-                    // Start the threads
-                    // This actually starts the calculations
-                    startAndJoin(threads);
-
-                    //Combine all Matrices together
-                    finalPossibilities = new FloatMatrix(0, totalColumns);
-                    for (FloatMatrix floatMatrix1 : intermediateFinals) {
-                        finalPossibilities = FloatMatrix.concatVertically(finalPossibilities, floatMatrix1);
-                    }
+                    final AtomicBoolean reportOrders = new AtomicBoolean(true); //To only report more orders once
+                    finalPossibilities = findPairs(data, frames, 0, numFrames, reportOrders, 0);
 
 
                     // Echo back time it took
                     processingTime = System.nanoTime() - processingTime;
                     logService.info("Processing data took " + String.format("%.3f", processingTime / 1000000000) + " s");
+                    logService.debug(WorkerPool.metrics());
 
                     // Ensure nothing went wrong and echo back how many points we found
                     // Also clean up some garbage since we are done processing and there are many things we no longer need
-                    logService.info("Pairs in the 0th-1st order found: " + finalPossibilities.rows);
+                    logService.info("Pairs in the 0th-1st order found: " + finalPossibilities.rows());
                     System.gc();
 
                     // If we find very few or no pairs, we echo this back and set the retry flag indicating we should do another attempt
                     // Or tell the user they could enabling searching
-                    if (finalPossibilities.rows < 10) {
+                    if (finalPossibilities.rows() < 10) {
                         logService.info("No pairs detected. Try flipping the angle or manually adjusting the distance and angles.");
                         retry = true;
                     }
-                    if (finalPossibilities.rows < 0.1 * data.rows) {
+                    if (finalPossibilities.rows() < 0.1 * data.rows()) {
                         if (searchAngle)
                             logService.info("Very few pairs were detected.");
                         else
@@ -1188,21 +1533,7 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
                     // This tells us some information about the angles, like if it has a guassian shape, or if one of the tails is cutoff
                     try{
-                        boolean[][] checks = checkForRetry(finalPossibilities.getColumn(13));
-
-                        if (sum(checks[0]) < 2) {
-                            logService.info("Nothing resembling a guassian was found for the angles.");
-                            retry = true;
-                        }
-
-
-                        if (checks[1][0]) {
-                            if (checks[1][1])
-                                logService.info("The left tail of the angle histogram seems to be partially cut-off");
-                            else
-                                logService.info("The right tail of the angle histogram seems to be partially cut-off");
-                            logService.info("You can take the angle value given and adjust it manually.");
-                        }
+                        reportAngleChecks(checkForRetry(finalPossibilities.order(1).angle(), 0, finalPossibilities.rows(), coreCount));
                     } catch (Exception e){
                         logService.error("Failed to analyze angles. No features assumed");
                         retry = true;
@@ -1215,8 +1546,7 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                         // Save our results in the correct position and load the next permutation of variables
                         for (int i = 0; i < perm.length; i++) {
                             if (Arrays.equals(perm[i], curr_perm)) {
-                                angleResults[i] = new FloatMatrix();
-                                angleResults[i].copy(finalPossibilities);
+                                angleResults[i] = finalPossibilities.dup();
                                 perm[i] = null;
 
                                 if (perm[(i + 1) % perm.length] != null) {
@@ -1229,7 +1559,7 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
                         // Check if any permutation had not been attempted yet
                         boolean all_filled = true;
-                        for (FloatMatrix result : angleResults) {
+                        for (PairTable result : angleResults) {
                             if (result == null) {
                                 all_filled = false;
                                 break;
@@ -1250,26 +1580,29 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
                             distRange[1] = distInput[1] == 0f ? distInput[1] : distRange[1];
 
                             runNumber++;
-                            run();
+                            cancellation.check();
+                            analyse();
 
                         } else {
                             // We are done and load the best results back into out matrix, as well as the best settings
-                            int max = angleResults[0].rows;
+                            int max = angleResults[0].rows();
                             int ind = 0;
                             for (int i = 1; i < angleResults.length; i++) {
-                                if (angleResults[i].rows > max) {
-                                    max = angleResults[i].rows;
+                                if (angleResults[i].rows() > max) {
+                                    max = angleResults[i].rows();
                                     ind = i;
                                 }
 
                             }
                             finalPossibilities = angleResults[ind];
 
-                            angRange[0] = finalPossibilities.getColumn(13).min();
-                            angRange[1] = finalPossibilities.getColumn(13).max();
+                            float[] angleMinMax = getFloatMinMax(finalPossibilities.order(1).angle(), finalPossibilities.rows());
+                            angRange[0] = angleMinMax[0];
+                            angRange[1] = angleMinMax[1];
 
-                            distRange[0] = finalPossibilities.getColumn(12).min();
-                            distRange[1] = finalPossibilities.getColumn(12).max();
+                            float[] distanceMinMax = getFloatMinMax(finalPossibilities.order(1).distance(), finalPossibilities.rows());
+                            distRange[0] = distanceMinMax[0];
+                            distRange[1] = distanceMinMax[1];
 
                             foundBestResult = true;
 
@@ -1289,441 +1622,1388 @@ public class sSMLMA <T extends IntegerType<T>> implements Command {
 
                     }
 
-                    // Sort by frame id
-                    finalPossibilities = sort(finalPossibilities, 1);
-
-                    // Add global index for each row
-                    int id = 0;
-                    for (int i = 0; i < finalPossibilities.rows; i++) {
-                        finalPossibilities.put(i, 0, id++);
-                    }
-
 
                     // Anything after this point is skipped if we are not in the final run
                     // So this point is only reached with the best (hopefully) results
-                    if ((!(retry && searchAngle) | (foundBestResult && deepSearchAngle)) && displayInfo && finalPossibilities.rows > 0) {
+                    if ((!(retry && searchAngle) | (foundBestResult && deepSearchAngle)) && displayInfo && finalPossibilities.rows() > 0) {
                         displayInfo = false; // ensures this path is only ran once
 
-                        // We remove any points with too few neighbours here, if enabled
-                        if (processing && toCleanup) {
-                            IJ.showStatus("Cleaning Data");
-                            logService.info("Cleaning up data");
+                        storePairs(finalPossibilities);
+                        finishRun(finalPossibilities);
+                    }
+                }
+            }
+        }
+    }
 
-                            FloatMatrix backup = finalPossibilities.dup();
 
-                            // This sometimes fails and i have not been able to determine why
-                            // A second attempt seems to always works, somehow
-                            try {
-                                finalPossibilities = cleanup(finalPossibilities, neighbours, cleanDistance, coreCount);
-                            } catch (Exception e) {
-                                try {
-                                    finalPossibilities = cleanup(finalPossibilities, neighbours, cleanDistance, coreCount);
-                                } catch (Exception e2) {
-                                    logService.error("Cleaning up points failed.");
-                                    logService.info("Continuing without cleanup.");
+    private void finishRun(PairTable finalPossibilities) {
+        // Everything after pair finding: the filters, combining the orders, the plots and the output files
 
-                                    finalPossibilities = backup; // In case the matrix got corrupted above
+        // The stored stages may hold the LUT range of an earlier run, the one set for this run is used
+        for (int i = 0; i < 2; i++) if (lutInput[i] != 0f) lutRange[i] = lutInput[i];
 
-                                }
-                            }
-                            if(finalPossibilities.rows == 0) {
-                                logService.info("Filtering resulted in no points. Restoring old data");
-                                IJ.showMessage("Filtering resulted in no points. Restoring old data");
-                                finalPossibilities = backup;
-                            }
-                        }
+        // The filters and combined positions only depend on the pairs and the filter settings, not on the plots or the LUT
+        String filtersKey = pairsKey == null ? null : StageCache.key(StageCache.Stage.FILTERS, pairsKey,
+                processing && toCleanup, neighbours, cleanDistance, checkDistanceOrderDelta && orders > 2, distanceDelta);
+        Filtered filtered = useStageCache() && filtersKey != null ? (Filtered) StageCache.get(StageCache.Stage.FILTERS, filtersKey) : null;
+        if (filtered == null) {
+            filtered = filter(finalPossibilities);
+            if (useStageCache() && filtersKey != null) StageCache.put(StageCache.Stage.FILTERS, filtersKey, filtered);
+        } else {
+            logService.info("Reusing the filtered pairs of the previous run");
+        }
 
-                        // Apply checks for distance delta
-                        if(checkDistanceOrderDelta){
-                            FloatMatrix deltaFirstSecondDistance = finalPossibilities.getColumn(12).sub(finalPossibilities.getColumn(12 + orderColumns));
-                            FloatMatrix comparisonFirstSecondDistance = deltaFirstSecondDistance.get(finalPossibilities.getColumn(12 + orderColumns).ne(0.0f).findIndices());
-                            ImagePlus comparisonDistanceImagePlus = new ImagePlus("", new FloatProcessor(comparisonFirstSecondDistance.toArray2()));
-                            HistogramWindow comparisonDistanceHist = new HistogramWindow("delta distance (no filter)", comparisonDistanceImagePlus, getBins(comparisonFirstSecondDistance, binwidth), comparisonFirstSecondDistance.min(), comparisonFirstSecondDistance.max());
+        if (filtered.deltas != null && filtered.deltas.length > 0)
+            createHist(StreamingHistogram.buildWithWidth(filtered.deltas, 0, filtered.deltas.length, binwidth, coreCount), 1, "delta distance (no filter)", runningFromIDE);
 
-                            if (runningFromIDE) comparisonDistanceHist.getImagePlus().show();
+        finalPossibilities = filtered.pairs;
+        resultPairs = finalPossibilities;
+        LocalisationTable halfOrderMatrix = filtered.halfOrder;
+        LocalisationTable allOrdersCombined = filtered.allOrders;
 
+        if (visualisation) {
 
-                            int[] distanceDeltaFilterIndices = deltaFirstSecondDistance.le(distanceDelta * 0.5f).and(deltaFirstSecondDistance.ge(distanceDelta * -0.5f)).or(finalPossibilities.getColumn(12 + orderColumns).eq(0.0f)).findIndices();
-                            logService.info("Removed " + (finalPossibilities.rows - distanceDeltaFilterIndices.length) + " points due to too high difference between 0-1 distance and 1-2 distance.");
-                            finalPossibilities = finalPossibilities.getRows(distanceDeltaFilterIndices);
-                        }
+            HistogramWindow[] histograms = new HistogramWindow[orders - 1]; // We create some histograms for each distance order we want to visualise
+            int distanceBins = Math.max(1, (int) ((distRange[1] - distRange[0]) / binwidth));
 
-                        // We have our final data
-                        // some other versions could give improved information by combining position data from multiple orders into one
-                        // We do this into two ways here
-                        // Once with a only one pair (0th-1st) order
-                        // Another one with all orders combined, as many as there are for one row or data
-                        // It is a lot of code doing some simple combining
-                        // 0 id, 1 frame, 2 x, 3 y, 4 z, 5 intensity, 6 distance, 7 angle
-                        halfOrderMatrix = new FloatMatrix(finalPossibilities.rows, orderColumns + 1);
-                        allOrdersCombined = new FloatMatrix(finalPossibilities.rows, orderColumns + 1);
-                        {
-                            halfOrderMatrix.putColumn(0, finalPossibilities.getColumn(0)); //id
-                            halfOrderMatrix.putColumn(1, finalPossibilities.getColumn(1)); //frame
-                            halfOrderMatrix.putColumn(2, finalPossibilities.getColumn(3).add(finalPossibilities.getColumn(8)).divi(2.0f)); //x
-                            halfOrderMatrix.putColumn(3, finalPossibilities.getColumn(4).add(finalPossibilities.getColumn(9)).divi(2.0f)); //y
-                            if(hasZ) halfOrderMatrix.putColumn(4, finalPossibilities.getColumn(5).add(finalPossibilities.getColumn(10)).divi(2.0f)); // z
-                            halfOrderMatrix.putColumn(5, finalPossibilities.getColumn(6)); //intensity
-                            halfOrderMatrix.putColumn(6, finalPossibilities.getColumn(12)); //distance
-                            halfOrderMatrix.putColumn(7, finalPossibilities.getColumn(13)); //angle
-
-                            allOrdersCombined.putColumn(0, finalPossibilities.getColumn(0)); //id
-                            allOrdersCombined.putColumn(1, finalPossibilities.getColumn(1)); //frame
-                            allOrdersCombined.putColumn(5, finalPossibilities.getColumn(6)); //intensity
-
-
-                            FloatMatrix offsets = new FloatMatrix(finalPossibilities.rows, 5);
-                            offsets.putColumn(0, finalPossibilities.getColumn(8).sub(finalPossibilities.getColumn(3)).divi(2.0f)); // x
-                            offsets.putColumn(1, finalPossibilities.getColumn(9).sub(finalPossibilities.getColumn(4)).divi(2.0f)); // y
-                            offsets.putColumn(2, finalPossibilities.getColumn(10).sub(finalPossibilities.getColumn(5)).divi(2.0f)); // z
-                            offsets.putColumn(3, finalPossibilities.getColumn(12)); // distance
-                            offsets.putColumn(4, finalPossibilities.getColumn(13)); // angle
-
-                            for (int i = 0; i < orders - 2; i++) {
-                                FloatMatrix relevantRows = finalPossibilities.getColumn(14 + (i * orderColumns)).ne(0.0f);
-                                offsets.getColumn(0).addi(finalPossibilities.getColumn(15 + (i * orderColumns)).subi(finalPossibilities.getColumn(8 + (i * orderColumns))).divi(2.0f).muli(relevantRows));
-                                offsets.getColumn(1).addi(finalPossibilities.getColumn(16 + (i * orderColumns)).subi(finalPossibilities.getColumn(9 + (i * orderColumns))).divi(2.0f).muli(relevantRows));
-                                offsets.getColumn(2).addi(finalPossibilities.getColumn(17 + (i * orderColumns)).subi(finalPossibilities.getColumn(10 + (i * orderColumns))).divi(2.0f).muli(relevantRows));
-                                offsets.getColumn(3).addi(finalPossibilities.getColumn(19 + (i * orderColumns)));
-                                offsets.getColumn(4).addi(finalPossibilities.getColumn(20 + (i * orderColumns)));
-                            }
+            // For each order we fill the distance into each matrix
+            // this allows one to compare the distances for each order
+            // they should be the same for each order to order, but its still useful
+            for (int i = 0; i < orders - 1; i++) {
+                // Histogram straight from the distance column
+                // Rows without this order have a distance of 0, which falls below the range and is not counted
+                StreamingHistogram distanceHistogram = StreamingHistogram.build(finalPossibilities.order(i + 1).distance(), 0,
+                        finalPossibilities.rows(), distRange[0], distRange[1], distanceBins, coreCount);
+                long connections = i == 0 ? finalPossibilities.rows() : distanceHistogram.getCount();
 
+                logService.info("Found " + connections + " connections in the " + getTitleHist(i) + " order");
 
-                            allOrdersCombined.putColumn(2, finalPossibilities.getColumn(3));
-                            allOrdersCombined.putColumn(3, finalPossibilities.getColumn(4));
-                            allOrdersCombined.putColumn(4, finalPossibilities.getColumn(5));
-                            allOrdersCombined.putColumn(6, offsets.getColumn(3));
-                            allOrdersCombined.putColumn(7, offsets.getColumn(4));
+                // If there are few points, the graph is useless and we do not display it and do not visualise more orders than this
+                if (connections < 50) {
+                    orders = i + 1;
+                    break;
+                }
+                histograms[i] = createHist(distanceHistogram, 1, getTitleHist(i), runningFromIDE);
+            }
 
 
 
-                            FloatMatrix relevantRows = finalPossibilities.getColumn((orders - 1) * orderColumns).ne(0.0f);
-                            for (int i = orders; i > 1; i--) {
-                                allOrdersCombined.getColumn(2).addi(offsets.getColumn(0).divi((float) i).muli(relevantRows)); // x
-                                allOrdersCombined.getColumn(3).addi(offsets.getColumn(1).divi((float) i).muli(relevantRows)); // y
-                                allOrdersCombined.getColumn(4).addi(offsets.getColumn(2).divi((float) i).muli(relevantRows)); // z
-                                allOrdersCombined.getColumn(6).addi(offsets.getColumn(3).divi((float) i).muli(relevantRows)); // distance
-                                allOrdersCombined.getColumn(7).addi(offsets.getColumn(4).divi((float) i).muli(relevantRows)); // angle
 
-                                relevantRows.xori(finalPossibilities.getColumn((i - 2) * orderColumns).ne(0.0f));
-                            }
-                        }
-                        if (visualisation) {
-
-                            HistogramWindow[] histograms = new HistogramWindow[orders - 1]; // We create some histograms for each distance order we want to visualise
-
-                            // For each order we fill the distance into each matrix
-                            // this allows one to compare the distances for each order
-                            // they should be the same for each order to order, but its still useful
-                            for (int i = 0; i < orders - 1; i++) {
-                                FloatMatrix relevantData;
-
-                                // Visualise either every row or only the rows that have data in it
-                                // Since not each row might have data for each order
-                                if (i == 0) {
-                                    relevantData = finalPossibilities.getColumn(12);
-                                } else {
-                                    relevantData = finalPossibilities.getColumn(12 + (i * orderColumns));
-                                    relevantData = relevantData.get(relevantData.ne(0.0f).findIndices());
-                                }
 
-                                logService.info("Found " + relevantData.rows + " connections in the " + getTitleHist(i) + " order");
+            ///////////////// Angles
 
-                                // If there are few points, the graph is useless and we do not display it and do not visualise more orders than this
-                                if (relevantData.rows < 50) {
-                                    orders = i + 1;
-                                    break;
-                                }
-                                // Create an image from the matrix, and then use that to make a histogram
-                                // Thanks ImageJ
-                                ImagePlus dummy = new ImagePlus("", new FloatProcessor(relevantData.toArray2()));
-                                histograms[i] = new HistogramWindow(getTitleHist(i), dummy, getBins(relevantData, binwidth), distRange[0], distRange[1]);
-                                if (runningFromIDE) histograms[i].getImagePlus().show();
-                            }
+            // Take all the angles for the first pair and display them in degrees
+            // width of bins is hardcoded to 0.005 rad
+            if (angRange[0] <= angRange[1]) {
+                StreamingHistogram angleHistogram = StreamingHistogram.build(finalPossibilities.order(1).angle(), 0, finalPossibilities.rows(),
+                        angRange[0], angRange[1], Math.max(1, (int) ((angRange[1] - angRange[0]) / 0.005f)), coreCount);
+                createHist(angleHistogram, 180/Math.PI, "Angles (degrees)", runningFromIDE);
+            } else {
+                logService.info("The angle range starts above its end, so no angle histogram is shown.");
+            }
 
+            ///////////////////////////////////////////////////////////// PLOTS
+            // Arrays for the colors and shapes used for each order
+            // Quick reference to all possible shapes
+            // "line", "connected circle", "filled", "bar", "separated bar", "circle", "box", "triangle", "diamond", "cross", "x", "dot", "error bars" or "xerror bars"
+            String[] colors = {"blue", "red", "green", "black"};
+            String[] shapes = {"dot", "dot", "dot", "dot"};
 
+            //////////////////////////////////////////////
 
+            // This plot displays the x and y for all found points
+            Plot orderPlot = new Plot("Orders", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]");
 
 
-                            ///////////////// Angles
+            // Set the color and add the first order (and then all other orders in the for loop)
+            orderPlot.setColor(colors[0]);
+            orderPlot.add(shapes[0], toDouble(finalPossibilities.order(0).x(), finalPossibilities.rows()), toDouble(finalPossibilities.order(0).y(), finalPossibilities.rows()));
+            for (int i = 1; i < orders; i++) {
+                orderPlot.setColor(colors[i]);
+                orderPlot.add(shapes[i], toDouble(finalPossibilities.order(i).x(), finalPossibilities.rows()), toDouble(finalPossibilities.order(i).y(), finalPossibilities.rows()));
+            }
 
-                            // Take all the angles for the first pair, create an image and display it
-                            // width of bins is hardcoded to 0.005 rad
-                            FloatMatrix AnglesRad = finalPossibilities.getColumn(13);
-                            AnglesRad.muli((float) (180/Math.PI));
-                            ImagePlus Angles = new ImagePlus("", new FloatProcessor(AnglesRad.toArray2()));
-                            HistogramWindow angleHist = new HistogramWindow("Angles (degrees)", Angles, getBins(AnglesRad, (float) (0.005f * (180/Math.PI))), angRange[0] * (180/Math.PI), angRange[1]* (180/Math.PI));
-                            if (runningFromIDE) angleHist.getImagePlus().show();
+            orderPlot.setLegend(getTitlePlot(orders), Plot.AUTO_POSITION); // Set the legend and its position
+            orderPlot.show();
+            //////////////////////////////////////////////
 
-                            ///////////////////////////////////////////////////////////// PLOTS
-                            // Arrays for the colors and shapes used for each order
-                            // Quick reference to all possible shapes
-                            // "line", "connected circle", "filled", "bar", "separated bar", "circle", "box", "triangle", "diamond", "cross", "x", "dot", "error bars" or "xerror bars"
-                            String[] colors = {"blue", "red", "green", "black"};
-                            String[] shapes = {"dot", "dot", "dot", "dot"};
+            // Show a Plot with only the combined position for each row, reducing the amounts of points
+            // The color of each point is the distance between the 0th and 1st order, based on the selected LUT
 
-                            //////////////////////////////////////////////
 
-                            // This plot displays the x and y for all found points
-                            Plot orderPlot = new Plot("Orders", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]");
+            CustomPlot distancePlot = new CustomPlot("Distance", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]", lutService, defaultLUT);
 
+            distancePlot.add(shapes[0], toDouble(halfOrderMatrix.getColumn(2)), toDouble(halfOrderMatrix.getColumn(3)), toDouble(halfOrderMatrix.getColumn(6)));
 
-                            // Set the color and add the first order (and then all other orders in the for loop)
-                            orderPlot.setColor(colors[0]);
-                            orderPlot.add(shapes[0], toDouble(finalPossibilities.getColumn(3)), toDouble(finalPossibilities.getColumn(4)));
-                            for (int i = 1; i < orders; i++) {
-                                orderPlot.setColor(colors[i]);
-                                orderPlot.add(shapes[i], toDouble(finalPossibilities.getColumn(1 + (i * orderColumns))), toDouble(finalPossibilities.getColumn(2 + (i * orderColumns))));
-                            }
+            distancePlot.setLimitsToFit(true); // Ensure all points are visible
+            distancePlot.setLUTLegend("Distance", 512, distRange[0], distRange[1]); // Add the LUT as a legend
+            distancePlot.setLimits(Float.NaN, Float.NaN, Float.NaN, Float.NaN); // Ensure all points are visible, again
+            distancePlot.show();
 
-                            orderPlot.setLegend(getTitlePlot(orders), Plot.AUTO_POSITION); // Set the legend and its position
-                            orderPlot.show();
-                            //////////////////////////////////////////////
 
-                            // Show a Plot with only the combined position for each row, reducing the amounts of points
-                            // The color of each point is the distance between the 0th and 1st order, based on the selected LUT
+            /* This can be used to demonstrate the positions the first two points will have
+            {
+                CustomPlot distancePlot2 = new CustomPlot("Distance2", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]", lutService, defaultLUT);
+
+                distancePlot2.add(shapes[0], toDouble(finalPossibilities.order(0).x(), finalPossibilities.rows()), toDouble(finalPossibilities.order(0).y(), finalPossibilities.rows()), toDouble(finalPossibilities.order(1).distance(), finalPossibilities.rows()));
+                distancePlot2.add(shapes[0], toDouble(finalPossibilities.order(1).x(), finalPossibilities.rows()), toDouble(finalPossibilities.order(1).y(), finalPossibilities.rows()), toDouble(finalPossibilities.order(1).distance(), finalPossibilities.rows()));
+                distancePlot2.setLimitsToFit(true); // Ensure all points are visible
+                distancePlot2.setLUTLegend("Distance", 512, distRange[0], distRange[1]); // Add the LUT as a legend
+                distancePlot2.setLimits(Float.NaN, Float.NaN, Float.NaN, Float.NaN); // Ensure all points are visible, again
+                distancePlot2.show();
+            }
+             */
 
+        }
 
-                            CustomPlot distancePlot = new CustomPlot("Distance", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]", lutService, defaultLUT);
+        // Removed at runtime
+        if(debugFlag) {
+            float resolutionBinWidth = 250; // 5nm
 
-                            distancePlot.add(shapes[0], toDouble(halfOrderMatrix.getColumn(2)), toDouble(halfOrderMatrix.getColumn(3)), toDouble(halfOrderMatrix.getColumn(6)));
 
-                            distancePlot.setLimitsToFit(true); // Ensure all points are visible
-                            distancePlot.setLUTLegend("Distance", 512, distRange[0], distRange[1]); // Add the LUT as a legend
-                            distancePlot.setLimits(Float.NaN, Float.NaN, Float.NaN, Float.NaN); // Ensure all points are visible, again
-                            distancePlot.show();
+            int[] xValues = new int[finalPossibilities.rows()];
+            int[] yValues = new int[finalPossibilities.rows()];
+            for (int i = 0; i < xValues.length; i++) {
+                xValues[i] = (int) Math.rint(finalPossibilities.order(0).x()[i] / resolutionBinWidth);
+                yValues[i] = (int) Math.rint(finalPossibilities.order(0).y()[i] / resolutionBinWidth);
+            }
+            float[] distanceValues = Arrays.copyOf(finalPossibilities.order(1).distance(), finalPossibilities.rows());
 
+            IntSummaryStatistics Xstat = Arrays.stream(xValues).summaryStatistics();
+            IntSummaryStatistics Ystat = Arrays.stream(xValues).summaryStatistics();
 
-                            /* This can be used to demonstrate the positions the first two points will have
-                            {
-                                CustomPlot distancePlot2 = new CustomPlot("Distance2", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]", lutService, defaultLUT);
+            ArrayList<Point3D> pointList = new ArrayList<>();
 
-                                distancePlot2.add(shapes[0], toDouble(finalPossibilities.getColumn(3)), toDouble(finalPossibilities.getColumn(4)), toDouble(finalPossibilities.getColumn(12)));
-                                distancePlot2.add(shapes[0], toDouble(finalPossibilities.getColumn(8)), toDouble(finalPossibilities.getColumn(9)), toDouble(finalPossibilities.getColumn(12)));
-                                distancePlot2.setLimitsToFit(true); // Ensure all points are visible
-                                distancePlot2.setLUTLegend("Distance", 512, distRange[0], distRange[1]); // Add the LUT as a legend
-                                distancePlot2.setLimits(Float.NaN, Float.NaN, Float.NaN, Float.NaN); // Ensure all points are visible, again
-                                distancePlot2.show();
-                            }
-                             */
+            for (int i = 0; i < xValues.length; i++) {
+                pointList.add(new Point3D(xValues[i], yValues[i], distanceValues[i]));
+            }
 
-                        }
+            ArrayList<Float> localMedianList = new ArrayList<>();
+            ArrayList<Double> localAverageList = new ArrayList<>();
+            ArrayList<Integer> localModeList = new ArrayList<>();
 
-                        // Removed at runtime
-                        if(debugFlag) {
-                            float resolutionBinWidth = 250; // 5nm
+            for (int x = Xstat.getMin(); x <= Xstat.getMax(); x++) {
+                final int finalX = x;
 
+                List<Point3D> sublist = pointList.stream()
+                        .filter(p -> p.getX() == finalX).collect(Collectors.toList());
 
-                            FloatMatrix localMedianMatrix = finalPossibilities.getColumns(new int[]{3, 4});
-                            localMedianMatrix.divi(resolutionBinWidth);
+                if(x%100 == 0) System.out.println(x);
 
-                            int[] xValues = localMedianMatrix.getColumn(0).toIntArray();
-                            int[] yValues = localMedianMatrix.getColumn(1).toIntArray();
-                            float[] distanceValues = finalPossibilities.getColumn(12).toArray();
+                for (int y = Ystat.getMin(); y <= Ystat.getMax(); y++) {
 
-                            IntSummaryStatistics Xstat = Arrays.stream(xValues).summaryStatistics();
-                            IntSummaryStatistics Ystat = Arrays.stream(xValues).summaryStatistics();
+                    final int finalY = y;
 
-                            ArrayList<Point3D> pointList = new ArrayList<>();
+                    List<Float> currentMedianList = sublist.stream()
+                            .filter(p -> p.getY() == finalY).map(Point3D::getZ).collect(Collectors.toList());
 
-                            for (int i = 0; i < localMedianMatrix.rows; i++) {
-                                pointList.add(new Point3D(xValues[i], yValues[i], distanceValues[i]));
-                            }
 
-                            ArrayList<Float> localMedianList = new ArrayList<>();
-                            ArrayList<Double> localAverageList = new ArrayList<>();
-                            ArrayList<Integer> localModeList = new ArrayList<>();
+                    localModeList.add(mode(currentMedianList));
+                    double average = getAverage(currentMedianList);
+                    if(average != 0.0) localAverageList.add(average);
 
-                            for (int x = Xstat.getMin(); x <= Xstat.getMax(); x++) {
-                                final int finalX = x;
+                    float currentMedian = getMedian(currentMedianList);
+                    if (currentMedian != Float.MIN_VALUE)
+                        localMedianList.add(currentMedian);
 
-                                List<Point3D> sublist = pointList.stream()
-                                        .filter(p -> p.getX() == finalX).collect(Collectors.toList());
+                    if(currentMedianList.size() > 200 && Random.nextDouble() < 0.1 && getAverage(currentMedianList) > 1800) {
+                        // float[] minMax = getFloatMinMax(currentMedianList);
+                        createHist(toFloat(currentMedianList.toArray(new Float[0])), getFBins(currentMedianList, 2), 1900,  2100, x + ", " + y, runningFromIDE);
+                    }
+                }
 
-                                if(x%100 == 0) System.out.println(x);
+                pointList.removeIf(p -> p.getX() == finalX);
+            }
 
-                                for (int y = Ystat.getMin(); y <= Ystat.getMax(); y++) {
 
-                                    final int finalY = y;
+            float[] medianMinMax = getFloatMinMax(localMedianList);
 
-                                    List<Float> currentMedianList = sublist.stream()
-                                            .filter(p -> p.getY() == finalY).map(Point3D::getZ).collect(Collectors.toList());
 
+            //createHist(toFloat(localMedianList.toArray(new Float[0])), getFBins(localMedianList, 2), 1500,  1800, "medians1", runningFromIDE);
+            createHist(toFloat(localMedianList.toArray(new Float[0])), getFBins(localMedianList, 2), medianMinMax[0],  medianMinMax[1], "medians2", runningFromIDE);
 
-                                    localModeList.add(mode(currentMedianList));
-                                    double average = getAverage(currentMedianList);
-                                    if(average != 0.0) localAverageList.add(average);
+            float[] averageMinMax = getDoubleMinMax(localAverageList);
+            //createHist(toFloat(localAverageList.toArray(new Double[0])), getDBins(localAverageList, 2), 1500,  1800, "mean1", runningFromIDE);
+            createHist(toFloat(localAverageList.toArray(new Double[0])), getDBins(localAverageList, 2), averageMinMax[0],  averageMinMax[1], "mean2", runningFromIDE);
 
-                                    float currentMedian = getMedian(currentMedianList);
-                                    if (currentMedian != Float.MIN_VALUE)
-                                        localMedianList.add(currentMedian);
+            double[] modes = toDouble(localModeList);
+            //int[] ranges = new int[]{1500, 1800};
+            int[] ranges = new int[]{(int) averageMinMax[0], (int) averageMinMax[1]};
+            createHist(toFloat(modes), (int) ((ranges[1]-ranges[0])/2.5), ranges[0], ranges[1], "modes1", runningFromIDE);
+            //ranges = new int[]{1900, 2100};
+            //createHist(toFloat(modes), (int) ((ranges[1]-ranges[0])/2.5), ranges[0], ranges[1], "modes2", runningFromIDE);
 
-                                    if(currentMedianList.size() > 200 && Random.nextDouble() < 0.1 && getAverage(currentMedianList) > 1800) {
-                                        // float[] minMax = getFloatMinMax(currentMedianList);
-                                        createHist(toFloat(currentMedianList.toArray(new Float[0])), getFBins(currentMedianList, 2), 1900,  2100, x + ", " + y, runningFromIDE);
-                                    }
-                                }
+        }
 
-                                pointList.removeIf(p -> p.getX() == finalX);
-                            }
+        // A preview only shows the results and what the full run would give
+        if (preview) {
+            reportPreview(finalPossibilities);
+            return;
+        }
 
+        if (saveSCV) {
+            // The writers read the pair table in its FloatMatrix layout, without building that matrix
+            exportResults(finalPossibilities.asResultTable(), halfOrderMatrix, allOrdersCombined);
+        }
 
-                            float[] medianMinMax = getFloatMinMax(localMedianList);
+        if (visualiseZOLA) visualiseInZOLA(finalPossibilities.asResultTable());
 
+        writeRunInfo();
+    }
 
-                            //createHist(toFloat(localMedianList.toArray(new Float[0])), getFBins(localMedianList, 2), 1500,  1800, "medians1", runningFromIDE);
-                            createHist(toFloat(localMedianList.toArray(new Float[0])), getFBins(localMedianList, 2), medianMinMax[0],  medianMinMax[1], "medians2", runningFromIDE);
+    private Filtered filter(PairTable finalPossibilities) {
+        // The lone pair and distance delta filters, and the combined positions of what is left
+        float[] deltas = null;
 
-                            float[] averageMinMax = getDoubleMinMax(localAverageList);
-                            //createHist(toFloat(localAverageList.toArray(new Double[0])), getDBins(localAverageList, 2), 1500,  1800, "mean1", runningFromIDE);
-                            createHist(toFloat(localAverageList.toArray(new Double[0])), getDBins(localAverageList, 2), averageMinMax[0],  averageMinMax[1], "mean2", runningFromIDE);
+        // We remove any points with too few neighbours here, if enabled
+        if (processing && toCleanup) {
+            IJ.showStatus("Cleaning Data");
+            logService.info("Cleaning up data");
 
-                            double[] modes = toDouble(localModeList);
-                            //int[] ranges = new int[]{1500, 1800};
-                            int[] ranges = new int[]{(int) averageMinMax[0], (int) averageMinMax[1]};
-                            createHist(toFloat(modes), (int) ((ranges[1]-ranges[0])/2.5), ranges[0], ranges[1], "modes1", runningFromIDE);
-                            //ranges = new int[]{1900, 2100};
-                            //createHist(toFloat(modes), (int) ((ranges[1]-ranges[0])/2.5), ranges[0], ranges[1], "modes2", runningFromIDE);
+            PairTable backup = finalPossibilities.dup();
 
-                        }
+            // This sometimes fails and i have not been able to determine why
+            // A second attempt seems to always works, somehow
+            try {
+                finalPossibilities = cleanup(finalPossibilities, neighbours, cleanDistance, coreCount, cancellation);
+            } catch (CancellationToken.CancelledException e) {
+                throw e;
+            } catch (Exception e) {
+                try {
+                    finalPossibilities = cleanup(finalPossibilities, neighbours, cleanDistance, coreCount, cancellation);
+                } catch (CancellationToken.CancelledException e2) {
+                    throw e2;
+                } catch (Exception e2) {
+                    logService.error("Cleaning up points failed.");
+                    logService.info("Continuing without cleanup.");
 
-                        if (saveSCV) {
-
-                            // Remove unneeded Z column before saving
-                            //System.out.println(finalPossibilities.getRow(0));
-                            logService.info("Writing files to " + csv_target_dir);
-                            FloatMatrix noZMatrix = null;
-                            if(!hasZ){
-                                noZMatrix = new FloatMatrix(finalPossibilities.rows, orders * (orderColumns - 1));
-
-                                // No range copy, so this is slow
-                                noZMatrix.putColumn(0, finalPossibilities.getColumn(0)); // id
-                                noZMatrix.putColumn(1, finalPossibilities.getColumn(1)); // frame
-                                noZMatrix.putColumn(2, finalPossibilities.getColumn(2)); // id in frame
-                                noZMatrix.putColumn(3, finalPossibilities.getColumn(3)); // x
-                                noZMatrix.putColumn(4, finalPossibilities.getColumn(4)); // y
-                                noZMatrix.putColumn(5, finalPossibilities.getColumn(6)); // intensity
-
-                                //i.e. 14: id, 15: x, 16: y, 17: z, 18: intensity, 19: distance, 20: angle
-                                for(int i = 1; i < orders; i++){
-                                    noZMatrix.putColumn((orderColumns - 1) * i, finalPossibilities.getColumn(orderColumns * i)); // id in frame
-                                    noZMatrix.putColumn((orderColumns - 1) * i + 1, finalPossibilities.getColumn(orderColumns * i + 1)); // x
-                                    noZMatrix.putColumn((orderColumns - 1) * i + 2, finalPossibilities.getColumn(orderColumns * i + 2)); // y
-                                    noZMatrix.putColumn((orderColumns - 1) * i + 3, finalPossibilities.getColumn(orderColumns * i + 4)); // intensity
-                                    noZMatrix.putColumn((orderColumns - 1) * i + 4, finalPossibilities.getColumn(orderColumns * i + 5)); // distance
-                                    noZMatrix.putColumn((orderColumns - 1) * i + 5, finalPossibilities.getColumn(orderColumns * i + 6)); // angle
-                                }
-                                //System.out.println(noZMatrix.getRow(0));
-                            }
+                    finalPossibilities = backup; // In case the matrix got corrupted above
 
+                }
+            }
+            if(finalPossibilities.rows() == 0) {
+                logService.info("Filtering resulted in no points. Restoring old data");
+                IJ.showMessage("Filtering resulted in no points. Restoring old data");
+                finalPossibilities = backup;
+            }
+        }
 
+        // Apply checks for distance delta
+        if(checkDistanceOrderDelta && orders > 2){
+            final float[] firstDistance = finalPossibilities.order(1).distance();
+            final float[] secondDistance = finalPossibilities.order(2).distance();
+            final int rows = finalPossibilities.rows();
+
+            // Only rows with a 2nd order can be compared, the others are always kept
+            // The differences of the compared rows are kept for the histogram
+            float[] comparisonFirstSecondDistance = new float[rows];
+            int[] distanceDeltaFilterIndices = new int[rows];
+            int compared = 0, kept = 0;
+            for (int i = 0; i < rows; i++) {
+                float delta = firstDistance[i] - secondDistance[i];
+                if (secondDistance[i] != 0.0f) comparisonFirstSecondDistance[compared++] = delta;
+                if ((delta <= distanceDelta * 0.5f && delta >= distanceDelta * -0.5f) || secondDistance[i] == 0.0f)
+                    distanceDeltaFilterIndices[kept++] = i;
+            }
+            deltas = Arrays.copyOf(comparisonFirstSecondDistance, compared);
 
+            logService.info("Removed " + (rows - kept) + " points due to too high difference between 0-1 distance and 1-2 distance.");
+            finalPossibilities = finalPossibilities.getRows(Arrays.copyOf(distanceDeltaFilterIndices, kept));
+        }
 
-                            //Create Header
-                            // Longheader for all the data
-                            // Shortheader when tis just one position
-                            List<String> LongHeader = new ArrayList<>();
-                            List<String> ShortHeader = new ArrayList<>();
-                            LongHeader.add("id");
-                            ShortHeader.add("id");
-                            LongHeader.add("frame");
-                            ShortHeader.add("frame");
-
-                            // Pre-create the distance unit for the distance
-                            String distanceUnit = (unit_prefixes[unitsIndices[revOptionsIndices[2]]].equals(unit_prefixes[unitsIndices[revOptionsIndices[3]]]) ? unit_prefixes[unitsIndices[revOptionsIndices[2]]] : ("(" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "*" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + ")^0.5"));
-                            // Add the headers for each order
-                            for (int i = 0; i <= orders; i++) {
-                                LongHeader.add("index " + i);
-                                LongHeader.add("x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "] " + i);
-                                LongHeader.add("y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "] " + i);
-                                if(hasZ) LongHeader.add("z [" + unit_prefixes[unitsIndices[revOptionsIndices[4]]] + "] " + i);
-                                if(hasIntensity) LongHeader.add("intensity [" + unit_prefixes[unitsIndices[revOptionsIndices[5]]] + "] " + i);
-                                else LongHeader.add("intensity [photons] " + i);
-                                if (i > 0) {
-                                    LongHeader.add((i - 1) + "-" + i + " distance [" + distanceUnit + "]");
-                                    LongHeader.add((i - 1) + "-" + i + "angle");
-                                }
-                            }
-                            // Only add one header level to the short ones
-                            ShortHeader.add("x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]");
-                            ShortHeader.add("y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]");
-                            if(hasZ) ShortHeader.add("z [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]");
-                            if(hasIntensity) ShortHeader.add("intensity [" + unit_prefixes[unitsIndices[revOptionsIndices[5]]] + "]");
-                            else ShortHeader.add("intensity [photons] ");
-                            ShortHeader.add("distance [" + distanceUnit + "]");
-                            ShortHeader.add("angle");
-
-                            try {
-                                logService.info(("Writing all_orders.csv"));
-                                // Save all data using the proper header, including one that easily is loaded into ThunderSTORM again for visualisation etc
-                                if (hasZ)
-                                    SaveCSV(finalPossibilities, LongHeader, Paths.get(csv_target_dir, "all_orders.csv"));
-                                else
-                                    SaveCSV(noZMatrix, LongHeader, Paths.get(csv_target_dir, "all_orders.csv"));
-                            } catch(Exception e){
-                                logService.error("Could not create file: all_orders.csv. Is the file opened anywhere?");
-                            }
+        // We have our final data
+        // some other versions could give improved information by combining position data from multiple orders into one
+        // We do this into two ways here
+        // Once with a only one pair (0th-1st) order
+        // Another one with all orders combined, as many as there are for one row or data
+        // 0 id, 1 frame, 2 x, 3 y, 4 z, 5 intensity, 6 distance, 7 angle
+        LocalisationTable halfOrderMatrix = new LocalisationTable(orderColumns + 1, finalPossibilities.rows());
+        LocalisationTable allOrdersCombined = new LocalisationTable(orderColumns + 1, finalPossibilities.rows());
+        combineOrders(finalPossibilities, halfOrderMatrix, allOrdersCombined, coreCount);
+
+        return new Filtered(finalPossibilities, halfOrderMatrix, allOrdersCombined, deltas);
+    }
 
-                            try {
-                                logService.info(("Writing two_orders_combined_positions.csv"));
-                                SaveCSV(halfOrderMatrix, ShortHeader, Paths.get(csv_target_dir, "two_orders_combined_positions.csv"));
-                            } catch(Exception e){
-                                logService.error("Could not create file: two_orders_combined_positions.csv. Is the file opened anywhere?");
-                            }
-                            try {
-                                logService.info(("Writing all_orders_combined_positions.csv"));
-                                SaveCSV(allOrdersCombined, ShortHeader, Paths.get(csv_target_dir, "all_orders_combined_positions.csv"));
-                            } catch(Exception e){
-                                logService.error("Could not create file: all_orders_combined_positions.csv. Is the file opened anywhere?");
-                            }
-                            try {
-                                logService.info(("Writing thunderSTORM.csv"));
-                                saveThunderSTORM(Paths.get(csv_target_dir, "thunderSTORM.csv"), finalPossibilities.getColumns(new int[]{0, 1, 3, 4, 6, 12}));
-                            } catch(Exception e){
-                                logService.error("Could not create file: thunderSTORM.csv. Is the file opened anywhere?");
-                            }
-                            logService.info(("Finished writing all csv files."));
-                        }
+    private List<String> pairHeader() {
+        // Header of the pair table as it is written (without z columns if there is no z)
+        // Longheader for all the data
+        List<String> LongHeader = new ArrayList<>();
+        LongHeader.add("id");
+        LongHeader.add("frame");
+
+        // Pre-create the distance unit for the distance
+        String distanceUnit = distanceUnit();
+        // Add the headers for each order
+        for (int i = 0; i <= orders; i++) {
+            LongHeader.add("index " + i);
+            LongHeader.add("x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "] " + i);
+            LongHeader.add("y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "] " + i);
+            if(hasZ) LongHeader.add("z [" + unit_prefixes[unitsIndices[revOptionsIndices[4]]] + "] " + i);
+            if(hasIntensity) LongHeader.add("intensity [" + unit_prefixes[unitsIndices[revOptionsIndices[5]]] + "] " + i);
+            else LongHeader.add("intensity [photons] " + i);
+            if (i > 0) {
+                LongHeader.add((i - 1) + "-" + i + " distance [" + distanceUnit + "]");
+                LongHeader.add((i - 1) + "-" + i + "angle");
+            }
+        }
+        return LongHeader;
+    }
 
-                        if(visualiseZOLA) {
-                            logService.info("ZOLA Visualisation");
-
-                            try {
-                                Path tmpfile; // We need a tmpfile if no saving is done
-
-                                if (runningFromIDE) { // Doesn;t work from IDE because of the isolated ImageJ isntance
-                                    logService.info("Running from IDE does not work for ZOLA integration");
-                                } else {
-                                    // If we already saved, great, otherwise save a tmp thunderstorm file to use
-                                    if (saveSCV) {
-                                        tmpfile = Paths.get(csv_target_dir, "thunderSTORM.csv");
-                                    } else {
-                                        tmpfile = Paths.get(IJ.getDirectory("temp"), "tmp.csv");
-                                        saveThunderSTORM(tmpfile, finalPossibilities.getColumns(new int[]{0, 1, 3, 4, 6, 12}));
-                                    }
-
-                                    Prefs.set("Zola.showLUT", true); // Show lut on image
-                                    Prefs.set("Zola.pathlocalization", tmpfile.toString()); // Load the file
-                                    Prefs.set("Zola.is3Drendering", true); // Set 3D rendering
-
-                                    IJ.run("Import table"); // Import our table (also shows 2D histogram for some reason)
-                                    IJ.run("2D/3D histogram"); // Show the 3D histogram (does not work from macro, and shows 2D)
-                                }
-                            }  catch (Exception e) {
-                                logService.info("ZOLA integration failed");
-                                e.printStackTrace();
-                            }
+    private List<String> combinedHeader() {
+        // Shortheader when tis just one position
+        List<String> ShortHeader = new ArrayList<>();
+        ShortHeader.add("id");
+        ShortHeader.add("frame");
+        // Only add one header level to the short ones
+        ShortHeader.add("x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]");
+        ShortHeader.add("y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]");
+        if(hasZ) ShortHeader.add("z [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]");
+        if(hasIntensity) ShortHeader.add("intensity [" + unit_prefixes[unitsIndices[revOptionsIndices[5]]] + "]");
+        else ShortHeader.add("intensity [photons] ");
+        ShortHeader.add("distance [" + distanceUnit() + "]");
+        ShortHeader.add("angle");
+        return ShortHeader;
+    }
+
+    private String distanceUnit() {
+        return unit_prefixes[unitsIndices[revOptionsIndices[2]]].equals(unit_prefixes[unitsIndices[revOptionsIndices[3]]]) ? unit_prefixes[unitsIndices[revOptionsIndices[2]]] : ("(" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "*" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + ")^0.5");
+    }
+
+    private void exportResults(final ResultTable pairs, final ResultTable halfOrder, final ResultTable allOrders) {
+        // Writes the pair table (in its FloatMatrix layout) and the combined positions to csv_target_dir
+        logService.info("Writing files to " + csv_target_dir);
+
+        List<String> LongHeader = pairHeader();
+        List<String> ShortHeader = combinedHeader();
+
+        // All files are written at the same time
+        // Without z the z columns are left out while writing
+        ResultExporter exporter = new ResultExporter(Paths.get(csv_target_dir), coreCount);
+        exporter.setCancellation(cancellation);
+        exporter.setBinaryLayout(NpyWriter.Layout.valueOf(saveBinary.toUpperCase()));
+        exporter.setCompress(compressOutput);
+        exporter.add("all_orders.csv", pairs, hasZ ? null : ResultExporter.withoutZ(orders, orderColumns), LongHeader);
+        // 0 id, 1 frame, 2 x, 3 y, 4 z, 5 intensity, 6 distance, 7 angle
+        // A combined position keeps the id and frame of its pair as a float, so these are taken from the pair (the same row)
+        int[] combinedColumns = hasZ ? null : new int[]{0, 1, 2, 3, 5, 6, 7};
+        exporter.add("two_orders_combined_positions.csv", ResultTable.withColumns(halfOrder, pairs, 0, 1), combinedColumns, ShortHeader);
+        exporter.add("all_orders_combined_positions.csv", ResultTable.withColumns(allOrders, pairs, 0, 1), combinedColumns, ShortHeader);
+        // Including one that easily is loaded into ThunderSTORM again for visualisation etc
+        exporter.add("thunderSTORM.csv", pairs, thunderSTORMColumns, thunderSTORMHeader(), ", ", CSVWriter.Notation.FIXED);
+
+        logService.info("Writing all_orders.csv, two_orders_combined_positions.csv, all_orders_combined_positions.csv and thunderSTORM.csv" + (compressOutput ? " (gzipped)" : ""));
+        for (String failedFile : exporter.write()) {
+            logService.error("Could not create file: " + failedFile + ". Is the file opened anywhere?");
+            outputFailed = true;
+        }
+        logService.info(("Finished writing all csv files."));
+    }
+
+    private void visualiseInZOLA(final ResultTable pairs) {
+        logService.info("ZOLA Visualisation");
+
+        try {
+            Path tmpfile = zolaFile(); // We need a tmpfile if no saving is done
+
+            if (runningFromIDE) { // Doesn;t work from IDE because of the isolated ImageJ isntance
+                logService.info("Running from IDE does not work for ZOLA integration");
+            } else {
+                // If we already saved, great, otherwise save a tmp thunderstorm file to use
+                if (!(saveSCV && !compressOutput)) saveThunderSTORM(tmpfile, pairs, coreCount);
+
+                Prefs.set("Zola.showLUT", true); // Show lut on image
+                Prefs.set("Zola.pathlocalization", tmpfile.toString()); // Load the file
+                Prefs.set("Zola.is3Drendering", true); // Set 3D rendering
+
+                IJ.run("Import table"); // Import our table (also shows 2D histogram for some reason)
+                IJ.run("2D/3D histogram"); // Show the 3D histogram (does not work from macro, and shows 2D)
+            }
+        }  catch (Exception e) {
+            logService.info("ZOLA integration failed");
+            e.printStackTrace();
+        }
+    }
+
+    private Path zolaFile() {
+        // The thunderSTORM file ZOLA reads: the saved one, or a temporary one as ZOLA cannot read the gzipped version
+        return saveSCV && !compressOutput ? Paths.get(csv_target_dir, "thunderSTORM.csv") : Paths.get(IJ.getDirectory("temp"), "tmp.csv");
+    }
+
+    private void writeRunInfo() {
+        // info.xml with all settings, and the calibration profile if one should be saved
+        // info.xml marks a finished run (the folder watcher relies on it), so it is left out when any result file is missing
+        if (outputFailed) {
+            logService.error("Not all results were written, so no info.xml was written either.");
+        } else {
+            WriteXML(Paths.get(csv_target_dir, "info.xml"));
+            logService.info("Finished writing XML file");
+        }
+
+        if(!calibrationSave.equals("")) {
+            try {
+                Path profilePath = new CalibrationProfile(calibrationSave, angRange, distRange, flipAngles, mirrorAngles, lutRange).save(calibrationSave);
+                logService.info("Saved calibration profile " + calibrationSave + " to " + profilePath);
+            } catch (IOException e) {
+                logService.error(e.getMessage());
+            }
+        }
+    }
+
+    private StreamingHistogram angleHistogram() {
+        // Bins of 0.005 rad over the angle range, filled batch by batch
+        // A range that wraps around (start above end) has no such bins, so there is no histogram for it
+        if (angRange[0] > angRange[1]) return null;
+        return new StreamingHistogram(angRange[0], angRange[1], Math.max(1, (int) ((angRange[1] - angRange[0]) / 0.005f)));
+    }
+
+    private void reportAngleChecks(boolean[][] checks) {
+        // Echo back the results of checkForRetry, and set the retry flag if the angles do not look like a feature
+        if (sum(checks[0]) < 2) {
+            logService.info("Nothing resembling a guassian was found for the angles.");
+            retry = true;
+        }
+
+
+        if (checks[1][0]) {
+            if (checks[1][1])
+                logService.info("The left tail of the angle histogram seems to be partially cut-off");
+            else
+                logService.info("The right tail of the angle histogram seems to be partially cut-off");
+            logService.info("You can take the angle value given and adjust it manually.");
+        }
+    }
+
+    private boolean streamSetup() {
+        // Checks shared by streaming and live mode, which can not use anything that needs all localisations at once
+        if (angInput[0] * angInput[1] * distInput[0] * distInput[1] == 0) {
+            logService.error("Streaming needs the angles and distances to be set, or a calibration profile that has them.");
+            return false;
+        }
+        angRange[0] = angInput[0];
+        angRange[1] = angInput[1];
+        distRange[0] = distInput[0];
+        distRange[1] = distInput[1];
+        if (distRange[0] > distRange[1]) {
+            logService.error("The distance had to be positive: " + distRange[0] + " is larger than " + distRange[1]);
+            return false;
+        }
+        if (toCleanup) logService.info("Lone points can not be removed while streaming, all points are kept.");
+        if (!saveBinary.equals("none")) logService.info("The binary (.npy) files are not written while streaming.");
+        return true;
+    }
+
+    private int[] streamSelection() {
+        // frame, x, y, z, intensity, as in the selection of the normal run
+        hasZ = revOptionsIndices[4] != -1;
+        hasIntensity = revOptionsIndices[5] != -1;
+        return new int[]{revOptionsIndices[1], revOptionsIndices[2], revOptionsIndices[3], revOptionsIndices[4], revOptionsIndices[5]};
+    }
+
+    private PairTable findPairsInBatch(final FloatMatrix batch, final AtomicBoolean reportOrders) {
+        // A batch holds whole frames, one after the other
+        PairTable pairs = new PairTable(orders, hasZ, 1024);
+        for (int start = 0, end; start < batch.rows; start = end) {
+            final int frame = (int) batch.get(start, 0);
+            for (end = start + 1; end < batch.rows && (int) batch.get(end, 0) == frame; end++);
+            final FloatMatrix frameData = new FloatMatrix(end - start, batch.columns); //All rows for current frame
+            for (int c = 0; c < batch.columns; c++)
+                System.arraycopy(batch.data, c * batch.rows + start, frameData.data, c * (end - start), end - start);
+            findPairsInFrame(frameData, frame, pairs, reportOrders, 1);
+        }
+        return pairs;
+    }
+
+    private boolean checkPairSearch(final FrameIndex frames) {
+        // Picks the search for each frame from the points per frame and refuses to start when the frames searched at the same time do not fit in memory
+        PairSearch.Plan plan = PairSearch.plan(frames, pairSearch, coreCount);
+        for (String line : plan.report(coreCount)) logService.info(line);
+
+        Runtime runtime = Runtime.getRuntime();
+        long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (plan.peakBytes > available) {
+            logService.error("Searching the largest frames (" + plan.maxPoints + " points) needs about " + plan.peakBytes / 1048576 + " MB, but only "
+                    + available / 1048576 + " MB is free.\nUse the grid or auto pair search, or fewer threads.");
+            return false;
+        }
+        if (plan.peakBytes > available / 2)
+            logService.warn("Searching the largest frames (" + plan.maxPoints + " points) needs about " + plan.peakBytes / 1048576 + " MB, more than half of the free memory");
+        return true;
+    }
+
+    private boolean useStageCache() {
+        // With a memory limit nothing is kept in memory after the run, and a preview only has part of the pairs
+        return !stageCache.equals("off") && memoryLimit == 0 && !preview;
+    }
+
+    private boolean useSessionCache() {
+        return datasetKey != null && !sessionCache.equals("clear") && !sessionCache.equals("clear_all");
+    }
+
+    private FrameIndex frameIndex(final LocalisationTable data) {
+        // The frames of the input (frame in column 0 of data), kept along with it in the session cache
+        // A preview sample is a new table, so it gets its own index
+        if (!useSessionCache() || preview) return new FrameIndex(data, 0);
+        return DatasetCache.frames(datasetKey, revOptionsIndices[1], () -> new FrameIndex(data, 0));
+    }
+
+    private int previewFrames(int totalFrames) {
+        // The amount of frames in the preview sample, from a percentage ("5%") or an amount of frames ("200")
+        String sample = previewSample.trim();
+        int frames = sample.endsWith("%") ?
+                (int) Math.ceil(totalFrames * Double.parseDouble(sample.substring(0, sample.length() - 1)) / 100) :
+                Integer.parseInt(sample);
+        if (frames <= 0) throw new NumberFormatException("The preview sample has to contain at least 1 frame");
+        return Math.min(frames, totalFrames);
+    }
+
+    private LocalisationTable previewSample(final LocalisationTable selected) {
+        // A copy of the localisations in a sample of the frames, spread evenly over the acquisition:
+        // the frames are split into equal parts and the middle frame of each part is taken
+        // This way a change in density during the acquisition (bleaching, drift in focus) is in the sample as well
+        FrameIndex frames = useSessionCache() ?
+                DatasetCache.frames(datasetKey, revOptionsIndices[1], () -> new FrameIndex(selected, 0)) :
+                new FrameIndex(selected, 0);
+        int count = previewFrames(frames.size());
+
+        LocalisationTable sample = new LocalisationTable(selected.getColumnNames());
+        float[] row = new float[selected.columns()];
+        for (int s = 0; s < count; s++) {
+            int i = (int) ((2L * s + 1) * frames.size() / (2L * count));
+            for (long r : frames.getRows(i)) {
+                for (int c = 0; c < row.length; c++) row[c] = selected.get(r, c);
+                sample.addRow(row);
+            }
+        }
+
+        previewSize[0] = count;
+        previewSize[1] = sample.rows();
+        previewSize[2] = frames.size();
+        previewSize[3] = selected.rows();
+        logService.info("Preview on " + count + " of " + frames.size() + " frames (" + sample.rows() + " of " + selected.rows() + " localisations)");
+        return sample;
+    }
+
+    private void reportPreview(PairTable pairs) {
+        // Scales the result of the sample up to the whole file
+        // The pair finding goes frame by frame, so its time and the amount of pairs grow with the amount of localisations
+        // Loading and the angle and distance estimate do not depend on the sample
+        double scale = previewSize[1] == 0 ? 0 : (double) previewSize[3] / previewSize[1];
+        double elapsed = System.nanoTime() - previewStart;
+        double estimatedTime = loadTime + calibrationTime + Math.max(0, elapsed - calibrationTime) * scale;
+        long estimatedPairs = Math.round(pairs.rows() * scale);
+
+        // The localisations stay loaded, the pair table is copied once while sorting and filtering
+        // and the two combined tables hold 8 columns per pair
+        long pairBytes = PairTable.rowBytes(orders, hasZ);
+        long estimatedBytes = (localisations == null ? 0 : localisations.memoryBytes()) + estimatedPairs * (2 * pairBytes + 2 * 8 * 4);
+
+        String report = "Preview on " + previewSize[0] + " of " + previewSize[2] + " frames (" + previewSize[1] + " of " + previewSize[3] + " localisations)\n" +
+                "Pairs in the sample: " + pairs.rows() + "\n" +
+                "Expected pairs: " + estimatedPairs + "\n" +
+                "Expected time: " + String.format("%.1f", estimatedTime / 1000000000) + " s\n" +
+                "Expected memory: " + String.format("%.0f", estimatedBytes / 1048576.0) + " MB" +
+                (estimatedBytes > Runtime.getRuntime().maxMemory() ? " (more than the " + Runtime.getRuntime().maxMemory() / 1048576 + " MB available, consider a memory limit)" : "") + "\n" +
+                "Angle: " + angRange[0] + " - " + angRange[1] + ", distance: " + distRange[0] + " - " + distRange[1];
+
+        for (String line : report.split("\n")) logService.info(line);
+        // From a macro the log is enough
+        if (!runningFromMacro) IJ.showMessage("Preview", report);
+    }
+
+    private Pairs findStoredPairs() {
+        // The pairs of an earlier run with the same input and settings, from memory or else from disk
+        if (!useStageCache() || pairsKey == null) return null;
+        Pairs stored = (Pairs) StageCache.get(StageCache.Stage.PAIRS, pairsKey);
+        if (stored != null || !stageCache.equals("disk")) return stored;
+
+        try {
+            float[] values = new float[Pairs.values];
+            ResultTable table = StageCache.load(pairsKey, values);
+            if (table == null) return null;
+            stored = new Pairs(PairTable.fromResultTable(table, table.columns() / orderColumns, hasZ), values);
+            StageCache.put(StageCache.Stage.PAIRS, pairsKey, stored);
+            return stored;
+        } catch (IOException e) {
+            logService.error("Could not read the stored pairs: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void storePairs(PairTable pairs) {
+        // Called with the final (sorted and numbered) pairs, before they are filtered
+        if (!useStageCache() || pairsKey == null) return;
+        Pairs stored = new Pairs(pairs, this);
+        StageCache.put(StageCache.Stage.PAIRS, pairsKey, stored);
+        if (stageCache.equals("disk")) {
+            try {
+                StageCache.save(pairsKey, stored.settings, pairs.asResultTable());
+            } catch (IOException e) {
+                logService.error("Could not store the pairs on disk: " + e.getMessage());
+            }
+        }
+    }
+
+    // The results kept in the StageCache, with the settings that were found along with them
+    private static class Calibration {
+        final float[] angles;
+        final float[] distances;
+        final float[] lut;
+        final boolean success;
+        final int framesUsed;
+        final float[] uncertainty;
+
+        Calibration(sSMLMA<?> run, boolean success) {
+            this.angles = run.angRange.clone();
+            this.distances = run.distRange.clone();
+            this.lut = run.lutRange.clone();
+            this.success = success;
+            this.framesUsed = run.estimatorFramesUsed;
+            this.uncertainty = run.estimatorUncertainty.clone();
+        }
+
+        boolean restore(sSMLMA<?> run) {
+            System.arraycopy(angles, 0, run.angRange, 0, 2);
+            System.arraycopy(distances, 0, run.distRange, 0, 2);
+            System.arraycopy(lut, 0, run.lutRange, 0, 2);
+            run.estimatorFramesUsed = framesUsed;
+            System.arraycopy(uncertainty, 0, run.estimatorUncertainty, 0, 2);
+            return success;
+        }
+    }
+
+    private static class Pairs {
+        static final int values = 11; // angles, distances, LUT range, flip, mirror, frames used and uncertainty, when stored on disk
+
+        final PairTable table;
+        final float[] settings;
+
+        Pairs(PairTable table, sSMLMA<?> run) {
+            this.table = table;
+            this.settings = new float[]{run.angRange[0], run.angRange[1], run.distRange[0], run.distRange[1], run.lutRange[0], run.lutRange[1],
+                    run.flipAngles ? 1 : 0, run.mirrorAngles ? 1 : 0, run.estimatorFramesUsed, run.estimatorUncertainty[0], run.estimatorUncertainty[1]};
+        }
+
+        Pairs(PairTable table, float[] settings) {
+            this.table = table;
+            this.settings = settings;
+        }
+
+        void restore(sSMLMA<?> run) {
+            System.arraycopy(settings, 0, run.angRange, 0, 2);
+            System.arraycopy(settings, 2, run.distRange, 0, 2);
+            System.arraycopy(settings, 4, run.lutRange, 0, 2);
+            run.flipAngles = settings[6] != 0;
+            run.mirrorAngles = settings[7] != 0;
+            run.estimatorFramesUsed = (int) settings[8];
+            System.arraycopy(settings, 9, run.estimatorUncertainty, 0, 2);
+        }
+    }
+
+    private static class Filtered {
+        final PairTable pairs;
+        final LocalisationTable halfOrder;
+        final LocalisationTable allOrders;
+        final float[] deltas; // 0-1 minus 1-2 distance of the rows with a 2nd order, null without the distance delta filter
+
+        Filtered(PairTable pairs, LocalisationTable halfOrder, LocalisationTable allOrders, float[] deltas) {
+            this.pairs = pairs;
+            this.halfOrder = halfOrder;
+            this.allOrders = allOrders;
+            this.deltas = deltas;
+        }
+    }
+
+    private class StreamOutput implements Closeable {
+        // Takes the pairs of a stream in frame order: numbers and filters them, combines the orders,
+        // appends them to the result files and fills the histograms (which have a fixed range, so they can be filled part by part)
+        // With distanceMap the combined positions are also kept for the distance plot, which live mode redraws as it goes
+        private final boolean checkDelta = checkDistanceOrderDelta && orders > 2;
+        private final boolean zolaCopy = visualiseZOLA && !(saveSCV && !compressOutput); // ZOLA needs an uncompressed thunderSTORM file
+        private final boolean distanceMap;
+
+        // A delta of two distances in the range is at most the width of the range
+        private final float deltaRange = distRange[1] - distRange[0];
+        private final StreamingHistogram deltaHistogram = new StreamingHistogram(-deltaRange, deltaRange, Math.max(1, (int) (2 * deltaRange / binwidth)));
+        private final StreamingHistogram[] distanceHistograms = new StreamingHistogram[orders - 1];
+        private final StreamingHistogram angleHistogram = angleHistogram(); // null for a range that wraps around
+        // A range that wraps around (start above end) has no bins to check the angles with, see report()
+        private final StreamingHistogram angleChecks = angRange[0] <= angRange[1] ? retryHistogram(angRange[0], angRange[1]) : null;
+        private final List<HistogramWindow> shown = new ArrayList<>();
+        private CustomPlot distancePlot = null;
+        private final List<FloatMatrix> newPositions = new ArrayList<>(); // x, y, distance of the pairs not yet in the distance plot
+
+        private final CSVWriter.Appender[] writers;
+        long found = 0; // pairs found
+        long removed = 0; // pairs removed by the delta filter
+        int lastFrame = 0;
+
+        StreamOutput(boolean distanceMap) throws IOException {
+            this.distanceMap = distanceMap;
+            final int distanceBins = Math.max(1, (int) ((distRange[1] - distRange[0]) / binwidth));
+            for (int i = 0; i < orders - 1; i++) distanceHistograms[i] = new StreamingHistogram(distRange[0], distRange[1], distanceBins);
+
+            // The same four files as exportResults, plus a thunderSTORM file for ZOLA if that one is not saved
+            final int[] pairColumns = hasZ ? null : ResultExporter.withoutZ(orders, orderColumns);
+            final int[] combinedColumns = hasZ ? null : new int[]{0, 1, 2, 3, 5, 6, 7};
+            final String extension = compressOutput ? ".gz" : "";
+            List<CSVWriter.Appender> opened = new ArrayList<>();
+            try {
+                if (saveSCV) {
+                    logService.info("Writing files to " + csv_target_dir);
+                    opened.add(new CSVWriter.Appender(Paths.get(csv_target_dir, "all_orders.csv" + extension), pairColumns, pairHeader(), ",", CSVWriter.Notation.FLOAT));
+                    opened.add(new CSVWriter.Appender(Paths.get(csv_target_dir, "two_orders_combined_positions.csv" + extension), combinedColumns, combinedHeader(), ",", CSVWriter.Notation.FLOAT));
+                    opened.add(new CSVWriter.Appender(Paths.get(csv_target_dir, "all_orders_combined_positions.csv" + extension), combinedColumns, combinedHeader(), ",", CSVWriter.Notation.FLOAT));
+                    opened.add(new CSVWriter.Appender(Paths.get(csv_target_dir, "thunderSTORM.csv" + extension), thunderSTORMColumns, thunderSTORMHeader(), ", ", CSVWriter.Notation.FIXED));
+                }
+                if (zolaCopy)
+                    opened.add(new CSVWriter.Appender(zolaFile(), thunderSTORMColumns, thunderSTORMHeader(), ", ", CSVWriter.Notation.FIXED));
+            } catch (IOException e) {
+                for (CSVWriter.Appender writer : opened) writer.close();
+                throw e;
+            }
+            writers = opened.toArray(new CSVWriter.Appender[0]);
+        }
+
+        void accept(PairTable pairs) throws IOException {
+            // Results arrive in frame order, so the ids simply continue
+            pairs.numberRows(found);
+            found += pairs.rows();
+            if (pairs.rows() > 0) {
+                lastFrame = pairs.frame()[pairs.rows() - 1];
+                if (angleChecks != null) angleChecks.add(pairs.order(1).angle(), 0, pairs.rows());
+            }
+
+            if (checkDelta) {
+                final float[] firstDistance = pairs.order(1).distance();
+                final float[] secondDistance = pairs.order(2).distance();
+                int[] kept = new int[pairs.rows()];
+                int count = 0;
+                for (int i = 0; i < pairs.rows(); i++) {
+                    float delta = firstDistance[i] - secondDistance[i];
+                    if (secondDistance[i] != 0.0f) deltaHistogram.add(delta);
+                    if ((delta <= distanceDelta * 0.5f && delta >= distanceDelta * -0.5f) || secondDistance[i] == 0.0f)
+                        kept[count++] = i;
+                }
+                removed += pairs.rows() - count;
+                pairs = pairs.getRows(Arrays.copyOf(kept, count));
+            }
+
+            if (visualisation) {
+                for (int i = 0; i < orders - 1; i++) distanceHistograms[i].add(pairs.order(i + 1).distance(), 0, pairs.rows());
+                if (angleHistogram != null) angleHistogram.add(pairs.order(1).angle(), 0, pairs.rows());
+            }
+
+            if (saveSCV || distanceMap) {
+                LocalisationTable half = new LocalisationTable(orderColumns + 1, pairs.rows());
+                LocalisationTable all = new LocalisationTable(orderColumns + 1, pairs.rows());
+                combineOrders(pairs, half, all, 1);
+                if (saveSCV) {
+                    final ResultTable table = pairs.asResultTable();
+                    writers[0].append(table);
+                    writers[1].append(ResultTable.withColumns(half, table, 0, 1)); // The exact id and frame, as in exportResults()
+                    writers[2].append(ResultTable.withColumns(all, table, 0, 1));
+                    writers[3].append(table);
+                }
+                if (distanceMap && pairs.rows() > 0)
+                    newPositions.add(half.select(new int[]{2, 3, 6}, null).toFloatMatrix());
+            }
+            if (zolaCopy) writers[writers.length - 1].append(pairs.asResultTable());
+
+            IJ.showStatus("Streaming: frame " + lastFrame + ", " + found + " pairs");
+        }
+
+        void showHistograms() {
+            // Replaces the histograms shown before with the current ones
+            for (HistogramWindow window : shown) window.close();
+            shown.clear();
+            if (checkDelta) shown.add(createHist(deltaHistogram, 1, "delta distance (no filter)", runningFromIDE));
+            if (!visualisation || found == 0) return;
+            for (int i = 0; i < orders - 1; i++) {
+                if (distanceHistograms[i].getCount() < 50) break;
+                shown.add(createHist(distanceHistograms[i], 1, getTitleHist(i), runningFromIDE));
+            }
+            if (angleHistogram != null) shown.add(createHist(angleHistogram, 180/Math.PI, "Angles (degrees)", runningFromIDE));
+        }
+
+        void showDistanceMap() {
+            // Adds the pairs found since the last time to the plot, the colour of each point is the distance between the 0th and 1st order
+            if (!distanceMap || !visualisation || newPositions.isEmpty()) return;
+            int count = 0;
+            for (FloatMatrix positions : newPositions) count += positions.rows;
+            double[][] xyd = new double[3][count];
+            int row = 0;
+            for (FloatMatrix positions : newPositions) {
+                for (int r = 0; r < positions.rows; r++, row++)
+                    for (int c = 0; c < 3; c++) xyd[c][row] = positions.get(r, c);
+            }
+            newPositions.clear();
+
+            if (distancePlot == null)
+                distancePlot = new CustomPlot("Distance", "x [" + unit_prefixes[unitsIndices[revOptionsIndices[2]]] + "]", "y [" + unit_prefixes[unitsIndices[revOptionsIndices[3]]] + "]", lutService, defaultLUT);
+            distancePlot.add("dot", xyd[0], xyd[1], xyd[2]);
+            distancePlot.setLimitsToFit(true); // Ensure all points are visible
+            distancePlot.setLUTLegend("Distance", 512, distRange[0], distRange[1]); // Add the LUT as a legend
+            distancePlot.setLimits(Float.NaN, Float.NaN, Float.NaN, Float.NaN); // Ensure all points are visible, again
+            distancePlot.show(); // Redraws the window if it is already open
+        }
+
+        void report(double processingTime) {
+            logService.info("Processing data took " + String.format("%.3f", processingTime / 1000000000) + " s");
+            logService.debug(WorkerPool.metrics());
+            logService.info("Pairs in the 0th-1st order found: " + found);
+            if (found < 10) logService.info("No pairs detected. Try flipping the angle or manually adjusting the distance and angles.");
+            if (found > 0 && angleChecks != null) reportAngleChecks(checkForRetry(angleChecks));
+            else if (found > 0) logService.info("The angle range starts above its end, so the angles are not checked for a retry and no angle histogram is shown.");
+            if (checkDelta) logService.info("Removed " + removed + " points due to too high difference between 0-1 distance and 1-2 distance.");
+            if (visualisation) {
+                for (int i = 0; i < orders - 1; i++)
+                    logService.info("Found " + distanceHistograms[i].getCount() + " connections in the " + getTitleHist(i) + " order");
+            }
+            showHistograms();
+            showDistanceMap();
+        }
+
+        void openInZOLA() {
+            if (!visualiseZOLA) return;
+            if (runningFromIDE) {
+                logService.info("Running from IDE does not work for ZOLA integration");
+            } else {
+                Prefs.set("Zola.showLUT", true); // Show lut on image
+                Prefs.set("Zola.pathlocalization", zolaFile().toString()); // Load the file
+                Prefs.set("Zola.is3Drendering", true); // Set 3D rendering
+
+                IJ.run("Import table");
+                IJ.run("2D/3D histogram");
+            }
+        }
+
+        @Override
+        public void close() {
+            for (CSVWriter.Appender writer : writers) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logService.error("Could not finish writing a file: " + e.getMessage());
+                    outputFailed = true;
+                }
+            }
+            if (saveSCV) logService.info(("Finished writing all csv files."));
+        }
+    }
+
+    private void runStreaming() {
+        // Batches of whole frames are read on one thread, searched for pairs on the others,
+        // and then filtered, combined and written in frame order, while the rest of the file is still being read
+        // Only a window of batches is in memory at any time, so this works for files of any size
+        // Everything that needs all pairs at once (detecting or searching the angle, removing lone points, the plots of all points) is not possible
+        if (!streamSetup()) return;
+        if (visualisation) logService.info("While streaming only the histograms are shown, with all orders.");
+
+        double processingTime = System.nanoTime();
+        logService.info("Streaming " + filePath);
+
+        StreamOutput output;
+        try (OwnFloatMatrixLoader.FrameReader reader = ownFloatMatrixLoader.openFrames(filePath)) {
+            parseHeader(ownFloatMatrixLoader.getColumns());
+            final int[] selection = streamSelection();
+            final float[] missing = new float[]{0, 0, 0, 0, 1}; // without z a column of 0's and without intensity a column of 1's
+
+            final AtomicBoolean reportOrders = new AtomicBoolean(true); //To only report more orders once
+            try (StreamOutput out = new StreamOutput(false)) {
+                output = out;
+                new FramePipeline<>(
+                        () -> {
+                            // A stopped stream keeps the frames written so far
+                            cancellation.check();
+                            return reader.next(selection, missing, streamBatchRows);
+                        },
+                        (FloatMatrix batch) -> findPairsInBatch(batch, reportOrders),
+                        out::accept,
+                        coreCount, 2 * coreCount).run();
+            }
+            logService.info("Total Points: " + reader.getRowsRead());
+        } catch (IOException e) {
+            logService.error("Streaming " + filePath + " failed: " + e.getMessage());
+            return;
+        }
+
+        // Echo back time it took
+        output.report(System.nanoTime() - processingTime);
+        output.openInZOLA();
+        writeRunInfo();
+    }
+
+    private void runLive() {
+        // Follows a csv that is still being written during the acquisition
+        // Every poll only the lines added since the last one are read, and the frames that are complete go through the same steps as streaming
+        // The results are appended to the output files, and the histograms and distance plot are redrawn every liveInterval seconds
+        // Stops once the file has not grown for liveTimeout seconds (0 = never), or when the run is stopped (escape, the time limit)
+        if (!streamSetup()) return;
+        logService.info("Following " + filePath + ", press Esc to stop" + (liveTimeout > 0 ? " (stops after " + liveTimeout + " s without new lines)" : ""));
+
+        double processingTime = System.nanoTime();
+        StreamOutput output = null;
+        try (OwnFloatMatrixLoader.TailReader tail = ownFloatMatrixLoader.openTail(filePath)) {
+            IJ.resetEscape();
+            long lastGrowth = System.currentTimeMillis();
+            long lastRefresh = System.currentTimeMillis();
+            long lastOffset = 0;
+            int[] selection = null;
+            final float[] missing = new float[]{0, 0, 0, 0, 1}; // without z a column of 0's and without intensity a column of 1's
+            final AtomicBoolean reportOrders = new AtomicBoolean(true); //To only report more orders once
+
+            while (true) {
+                boolean stop = cancellation.isCancelled() || (liveTimeout > 0 && System.currentTimeMillis() - lastGrowth > liveTimeout * 1000L);
+
+                FloatMatrix frames = null;
+                if (selection == null) {
+                    if (tail.readHeader()) {
+                        parseHeader(ownFloatMatrixLoader.getColumns());
+                        selection = streamSelection();
+                        output = new StreamOutput(true);
+                    }
+                }
+                if (selection != null) {
+                    frames = tail.poll(selection, missing);
+                    if (stop) {
+                        // The last frame is complete as well now
+                        processFrames(frames, output, reportOrders);
+                        frames = tail.flush();
+                    }
+                    processFrames(frames, output, reportOrders);
+                }
+
+                if (tail.getOffset() != lastOffset) {
+                    lastOffset = tail.getOffset();
+                    lastGrowth = System.currentTimeMillis();
+                }
+                if (stop) break;
+
+                if (output != null && System.currentTimeMillis() - lastRefresh > liveInterval * 1000L) {
+                    output.showHistograms();
+                    output.showDistanceMap();
+                    logService.info("Live: " + tail.getRowsRead() + " localisations, " + output.found + " pairs, up to frame " + output.lastFrame);
+                    lastRefresh = System.currentTimeMillis();
+                }
+
+                try {
+                    Thread.sleep(livePoll);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            logService.info("Total Points: " + tail.getRowsRead());
+        } catch (IOException e) {
+            logService.error("Following " + filePath + " failed: " + e.getMessage());
+        } finally {
+            if (output != null) output.close();
+        }
+        if (output == null) {
+            logService.error("The file never got a header.");
+            return;
+        }
+
+        output.report(System.nanoTime() - processingTime);
+        output.openInZOLA();
+        writeRunInfo();
+    }
+
+    private void processFrames(FloatMatrix frames, StreamOutput output, final AtomicBoolean reportOrders) throws IOException {
+        // Searches the new frames in parallel, in batches of whole frames, and hands the pairs to the output in frame order
+        if (frames == null) return;
+        final int[] starts = new int[frames.rows + 1];
+        int batches = 0;
+        for (int r = 0; r < frames.rows; r++) {
+            if (r == 0 || (r - starts[batches - 1] >= streamBatchRows / 4 && frames.get(r, 0) != frames.get(r - 1, 0)))
+                starts[batches++] = r;
+        }
+        starts[batches] = frames.rows;
+
+        final int[] next = new int[]{0};
+        final int total = batches;
+        new FramePipeline<>(
+                () -> {
+                    if (next[0] >= total) return null;
+                    int start = starts[next[0]], end = starts[++next[0]];
+                    FloatMatrix batch = new FloatMatrix(end - start, frames.columns);
+                    for (int c = 0; c < frames.columns; c++)
+                        System.arraycopy(frames.data, c * frames.rows + start, batch.data, c * (end - start), end - start);
+                    return batch;
+                },
+                (FloatMatrix batch) -> findPairsInBatch(batch, reportOrders),
+                output::accept,
+                coreCount, 2 * coreCount).run();
+    }
+
+    private void runOutOfCore(final LocalisationTable data, final FrameIndex frames, double processingTime) {
+        // The same steps as the normal run, but the pairs of each range of frames are written to disk before the next range is found
+        // All later steps read these files back one batch at a time, so only one batch of pairs is in memory at once
+        // The exceptions are the lone point cleanup, which needs the 0th order x and y of all pairs (8 bytes per pair),
+        // and the scatter plots, which are not shown
+        if (searchAngle || deepSearchAngle)
+            logService.info("With a memory limit the angle is not searched for, the current settings are used.");
+
+        // Half of the limit goes to the pairs of one batch, the rest to the combined positions and buffers
+        // A frame gives at most about as many pairs as it has localisations
+        final long rowBytes = 4L * (orders * orderColumns + 2 * (orderColumns + 1));
+        final int[] batches = frames.batches(Math.max(1, memoryLimit * 1024L * 1024L / 2 / rowBytes));
+        logService.info("Memory limit of " + memoryLimit + " MB: processing the frames in " + (batches.length - 1) + " batches");
+
+        Path spillDirectory;
+        try {
+            spillDirectory = Files.createTempDirectory("sSMLMA_spill");
+        } catch (IOException e) {
+            logService.error("Could not create a folder for the temporary files: " + e.getMessage());
+            return;
+        }
+
+        try (SpillTable found = new SpillTable(spillDirectory, "found", orders * orderColumns);
+             SpillTable pairs = new SpillTable(spillDirectory, "pairs", orders * orderColumns);
+             SpillTable halfOrder = new SpillTable(spillDirectory, "two_orders", orderColumns + 1);
+             SpillTable allOrders = new SpillTable(spillDirectory, "all_orders", orderColumns + 1)) {
+
+            // Find the pairs one range of frames at a time
+            // The ranges are in frame order, so each batch continues the order and the ids of the ones before it
+            final AtomicBoolean reportOrders = new AtomicBoolean(true); //To only report more orders once
+            float angleMin = Float.POSITIVE_INFINITY, angleMax = Float.NEGATIVE_INFINITY;
+            for (int b = 0; b + 1 < batches.length; b++) {
+                PairTable batch = findPairs(data, frames, batches[b], batches[b + 1], reportOrders, found.rows());
+                if (batch.rows() > 0) {
+                    float[] minMax = getFloatMinMax(batch.order(1).angle(), batch.rows());
+                    angleMin = Math.min(angleMin, minMax[0]);
+                    angleMax = Math.max(angleMax, minMax[1]);
+                }
+                found.append(batch.asResultTable());
+            }
+
+            // Echo back time it took
+            processingTime = System.nanoTime() - processingTime;
+            logService.info("Processing data took " + String.format("%.3f", processingTime / 1000000000) + " s");
+            logService.debug(WorkerPool.metrics());
+
+            final long totalPairs = found.rows();
+            logService.info("Pairs in the 0th-1st order found: " + totalPairs);
+            if (totalPairs < 10) {
+                logService.info("No pairs detected. Try flipping the angle or manually adjusting the distance and angles.");
+                retry = true;
+            }
+            if (totalPairs < 0.1 * data.rows()) {
+                logService.info("Very few pairs were detected. A search for a better angle could improve results.");
+                retry = true;
+            }
+            if (totalPairs == 0) return;
+
+            // The angle checks, with the histogram filled one batch at a time
+            try {
+                StreamingHistogram angleChecks = retryHistogram(angleMin, angleMax);
+                for (int b = 0; b < found.batches(); b++) {
+                    ResultTable batch = found.batch(b);
+                    float[] angles = new float[(int) batch.rows()];
+                    batch.readColumn(13, 0, angles, angles.length);
+                    angleChecks.add(angles, 0, angles.length);
+                }
+                reportAngleChecks(checkForRetry(angleChecks));
+            } catch (Exception e) {
+                logService.error("Failed to analyze angles. No features assumed");
+                retry = true;
+            }
+
+            // We remove any points with too few neighbours here, if enabled
+            boolean[] keep = null;
+            if (toCleanup) {
+                IJ.showStatus("Cleaning Data");
+                logService.info("Cleaning up data");
+                if (totalPairs > Integer.MAX_VALUE - 8) {
+                    logService.error("Too many pairs to clean up. Continuing without cleanup.");
+                } else {
+                    final int n = (int) totalPairs;
+                    final float[] X = new float[n];
+                    final float[] Y = new float[n];
+                    found.readColumn(3, 0, X, n);
+                    found.readColumn(4, 0, Y, n);
+                    keep = cleanupMask(X, Y, n, neighbours, cleanDistance, coreCount, cancellation);
+
+                    int kept = 0;
+                    for (boolean k : keep) if (k) kept++;
+                    if (kept == 0) {
+                        logService.info("Filtering resulted in no points. Restoring old data");
+                        IJ.showMessage("Filtering resulted in no points. Restoring old data");
+                        keep = null;
+                    }
+                }
+            }
+
+            // The delta distance histogram starts at the lowest delta, so that is found first
+            final boolean checkDelta = checkDistanceOrderDelta && orders > 2;
+            StreamingHistogram deltaHistogram = null;
+            if (checkDelta) {
+                float deltaMin = Float.POSITIVE_INFINITY, deltaMax = Float.NEGATIVE_INFINITY;
+                long first = 0;
+                for (int b = 0; b < found.batches(); b++) {
+                    PairTable batch = PairTable.fromResultTable(found.batch(b), orders, hasZ);
+                    for (int i = 0; i < batch.rows(); i++) {
+                        if ((keep == null || keep[(int) first + i]) && batch.order(2).distance()[i] != 0.0f) {
+                            float delta = batch.order(1).distance()[i] - batch.order(2).distance()[i];
+                            deltaMin = Math.min(deltaMin, delta);
+                            deltaMax = Math.max(deltaMax, delta);
                         }
+                    }
+                    first += batch.rows();
+                }
+                if (deltaMin <= deltaMax) deltaHistogram = StreamingHistogram.ofWidth(deltaMin, deltaMax, binwidth, 0);
+            }
 
-                        WriteXML(Paths.get(csv_target_dir, "info.xml"));
-                        logService.info("Finished writing XML file");
+            // The histograms shown have a fixed range, so they are filled batch by batch
+            final StreamingHistogram[] distanceHistograms = new StreamingHistogram[orders - 1];
+            final int distanceBins = Math.max(1, (int) ((distRange[1] - distRange[0]) / binwidth));
+            for (int i = 0; i < orders - 1; i++) distanceHistograms[i] = new StreamingHistogram(distRange[0], distRange[1], distanceBins);
+            final StreamingHistogram angleHistogram = angleHistogram(); // null for a range that wraps around
+
+            // Filter, combine and store every batch
+            long removedByDelta = 0;
+            long first = 0;
+            for (int b = 0; b < found.batches(); b++) {
+                cancellation.check();
+                PairTable batch = PairTable.fromResultTable(found.batch(b), orders, hasZ);
+                final int batchRows = batch.rows();
+
+                if (keep != null) {
+                    int[] kept = new int[batchRows];
+                    int count = 0;
+                    for (int i = 0; i < batchRows; i++) if (keep[(int) first + i]) kept[count++] = i;
+                    batch = batch.getRows(Arrays.copyOf(kept, count));
+                }
+                first += batchRows;
+
+                if (checkDelta) {
+                    final float[] firstDistance = batch.order(1).distance();
+                    final float[] secondDistance = batch.order(2).distance();
+                    int[] kept = new int[batch.rows()];
+                    int count = 0;
+                    for (int i = 0; i < batch.rows(); i++) {
+                        float delta = firstDistance[i] - secondDistance[i];
+                        if (secondDistance[i] != 0.0f) deltaHistogram.add(delta);
+                        if ((delta <= distanceDelta * 0.5f && delta >= distanceDelta * -0.5f) || secondDistance[i] == 0.0f)
+                            kept[count++] = i;
+                    }
+                    removedByDelta += batch.rows() - count;
+                    batch = batch.getRows(Arrays.copyOf(kept, count));
+                }
+
+                LocalisationTable half = new LocalisationTable(orderColumns + 1, batch.rows());
+                LocalisationTable all = new LocalisationTable(orderColumns + 1, batch.rows());
+                combineOrders(batch, half, all, coreCount);
 
+                if (visualisation) {
+                    for (int i = 0; i < orders - 1; i++) distanceHistograms[i].add(batch.order(i + 1).distance(), 0, batch.rows());
+                    if (angleHistogram != null) angleHistogram.add(batch.order(1).angle(), 0, batch.rows());
+                }
+
+                pairs.append(batch.asResultTable());
+                halfOrder.append(half);
+                allOrders.append(all);
+            }
+
+            if (checkDelta) {
+                if (deltaHistogram != null) createHist(deltaHistogram, 1, "delta distance (no filter)", runningFromIDE);
+                logService.info("Removed " + removedByDelta + " points due to too high difference between 0-1 distance and 1-2 distance.");
+            }
+
+            if (visualisation) {
+                for (int i = 0; i < orders - 1; i++) {
+                    long connections = i == 0 ? pairs.rows() : distanceHistograms[i].getCount();
+                    logService.info("Found " + connections + " connections in the " + getTitleHist(i) + " order");
+
+                    // If there are few points, the graph is useless and we do not display it and do not visualise more orders than this
+                    if (connections < 50) {
+                        orders = i + 1;
+                        break;
                     }
+                    createHist(distanceHistograms[i], 1, getTitleHist(i), runningFromIDE);
                 }
+                if (angleHistogram != null) createHist(angleHistogram, 180/Math.PI, "Angles (degrees)", runningFromIDE);
+                else logService.info("The angle range starts above its end, so no angle histogram is shown.");
+                logService.info("The plots of all points are not shown with a memory limit.");
             }
+
+            if (saveSCV) exportResults(pairs, halfOrder, allOrders);
+            if (visualiseZOLA) visualiseInZOLA(pairs);
+            writeRunInfo();
+        } catch (IOException | UncheckedIOException e) {
+            logService.error("Could not use the temporary files in " + spillDirectory + ": " + e.getMessage());
+        } finally {
+            spillDirectory.toFile().delete();
         }
     }
 
+    private PairTable findPairs(final LocalisationTable data, final FrameIndex frames, final int firstFrame, final int endFrame, final AtomicBoolean reportOrders, final long firstId) {
+        // Finds all pairs in the frames firstFrame up to endFrame (positions in the frame index, not frame numbers)
+        // and connects them into chains of orders, sorted by frame and numbered from firstId on
+
+        final AtomicInteger ai = new AtomicInteger(firstFrame); //Atomic Integer is a thread safe incremental integer
+        final int numFrames = frames.size();
+
+        final PairTable[] intermediateFinals = new PairTable[coreCount]; // All intermediate results to be merged later
+        final boolean finalhasZ = hasZ;
+
+        // Frames with a large part of the points are split into tiles that are searched in parallel, see PairSearch.tiles()
+        long rangePoints = 0;
+        for (int i = firstFrame; i < endFrame; i++) rangePoints += frames.getCount(i);
+        final long finalRangePoints = rangePoints;
+
+        // Every task takes the next frame until none are left, on the threads shared by all stages
+        WorkerPool.run(coreCount, ithread -> {
+
+            // Will hold the final values for this task
+            intermediateFinals[ithread] = new PairTable(orders, finalhasZ, 1024);
+
+            // Process each frame
+            for (int frameIndex = ai.getAndIncrement(); frameIndex < endFrame && !cancellation.isCancelled(); frameIndex = ai.getAndIncrement()) {
+                final int frame = frames.getFrame(frameIndex);
+                // Showing process to the user
+                if (runningFromIDE && frame % 1000 == 0) logService.info("\r" + frame + "/" + numFrames);
+                IJ.showProgress(frame, numFrames);
+                IJ.showStatus(frame + "/" + numFrames);
+
+                final FloatMatrix frameData = data.getRows(frames.getRows(frameIndex)); //All rows for current frame
+                findPairsInFrame(frameData, frame, intermediateFinals[ithread], reportOrders,
+                        PairSearch.tiles(frameData.rows, finalRangePoints, coreCount));
+            }
+        });
+        cancellation.check();
+
+        // Every task took its frames in order, so the tables only have to be merged, not sorted
+        return PairTable.mergeByFrame(intermediateFinals, orders, hasZ, firstId);
+    }
+
+    private void findPairsInFrame(final FloatMatrix frameData, final int frame, final PairTable into, final AtomicBoolean reportOrders, final int tiles) {
+        // Finds all pairs in one frame (frame, x, y, z, intensity per row) and adds them to into, connected into chains of orders
+        // With more than 1 tile the search and the connecting of the orders use that many threads
+        final boolean finalIntensityCheck = checkForIntensity;
+        final float finalRatioIntensity = ratioIntensity;
+        final boolean finalcheckforZ = checkforZ;
+        final float finalzMargin = zMargin;
+        final boolean finalhasZ = hasZ;
+
+        // Every candidate pair, with the search that suits the size of this frame, see PairSearch
+        final PairSearch.Candidates candidates = PairSearch.find(frameData, PairSearch.strategy(pairSearch, frameData.rows),
+                distRange, angRange, finalhasZ && finalcheckforZ, finalzMargin, tiles);
+
+        // If points were found, we must process them
+        if (candidates.count > 1) {
+
+            // Matrices to hold the possibilities and combined ones
+            final FloatMatrix possibilities = new FloatMatrix(candidates.count, totalColumns);
+
+            // For each pair, record it to out temporary matrix
+            for (int i = 0; i < candidates.count; i++) {
+                final int start = candidates.start[i];
+                final int end = candidates.end[i];
+
+                // Check if the intensity ratio checks out, if that check is enabled
+                if (finalIntensityCheck &&
+                        (frameData.get(start, 4) /
+                                frameData.get(end, 4)) > finalRatioIntensity
+                ) continue;
+
+                // Put all info about the two points into our matrix
+                possibilities.putRow(i, extend(new FloatMatrix(1, orderColumns * 2,
+                        0,                                                     //0 (global index goes here later)
+                        frame,                                                          //1 frame
+                        1 + start,                                                      //2 start index in frame
+                        frameData.get(start, 1),                     //3 start x
+                        frameData.get(start, 2),                     //4 start y
+                        frameData.get(start, 3),                     //5 start z
+                        frameData.get(start, 4),                     //6 start intensity
+                        1 + end,                                                        //7 end index in frame
+                        frameData.get(end, 1),                       //8 end x
+                        frameData.get(end, 2),                       //9 end y
+                        frameData.get(end, 3),                       //10 end z
+                        frameData.get(end, 4),                       //11 end intensity
+                        candidates.distance[i],                                         //12 distance
+                        candidates.angle[i]                                             //13 angle
+                ), 1, totalColumns));
+            }
+
+            // Rows that end on the same point (the ids are 1 + the row in the frame, 0 for skipped rows) are linked in order,
+            // so each group is found in one pass instead of comparing every row with every other row
+            final int[] firstOf = new int[frameData.rows + 1];
+            final int[] lastOf = new int[frameData.rows + 1];
+            final int[] groupSize = new int[frameData.rows + 1];
+            final int[] next = new int[possibilities.rows];
+            Arrays.fill(firstOf, -1);
+            Arrays.fill(next, -1);
+            int groups = 0;
+            for (int i = 0; i < possibilities.rows; i++) {
+                int id = (int) possibilities.get(i, 7);
+                if (firstOf[id] == -1) {
+                    firstOf[id] = i;
+                    groups++;
+                } else {
+                    next[lastOf[id]] = i;
+                }
+                lastOf[id] = i;
+                groupSize[id]++;
+            }
+
+            // For each pair in possibilities, ensure there are none that have overlapping starts or ends
+            // (1-3, 2-3) ->  4-3 where 4 is average position of 2 and 3
+            final FloatMatrix intermediateFinalPossibilities = new FloatMatrix(groups, totalColumns);
+            for (int i = 0, row = 0; i < possibilities.rows; i++) {
+                int id = (int) possibilities.get(i, 7);
+                if (firstOf[id] != i) continue; // Skip it if we processed it already
+
+                //If more ids match the target we average the position/intensity of all of them
+                //If there is only one, we add it to our final array as it is
+                intermediateFinalPossibilities.putRow(row, possibilities.getRow(i));
+                if (groupSize[id] > 1) {
+
+                    float cumX = possibilities.get(i, 3);
+                    float cumY = possibilities.get(i, 4);
+                    float cumZ = possibilities.get(i, 5);
+                    float cumInt = possibilities.get(i, 6);
+
+                    for (int index2 = next[i]; index2 != -1; index2 = next[index2]) {
+                        cumX += possibilities.get(index2, 3);
+                        cumY += possibilities.get(index2, 4);
+                        cumZ += possibilities.get(index2, 5);
+                        cumInt += possibilities.get(index2, 6);
+                    }
+
+                    float identicalIdSum = groupSize[id];
+                    intermediateFinalPossibilities.put(row, 3, cumX / identicalIdSum);
+                    intermediateFinalPossibilities.put(row, 4, cumY / identicalIdSum);
+                    intermediateFinalPossibilities.put(row, 5, cumZ / identicalIdSum);
+                    intermediateFinalPossibilities.put(row, 6, cumInt / identicalIdSum);
+                }
+                row++;
+            }
+            // Add the points calculated in this frame to the table
+            // We also connect the orders here: (1-2, 2-3, 3-4 -> 1-2-3-4)
+            into.addRows(connectOrders(intermediateFinalPossibilities, orders, orderColumns, reportOrders, tiles));
+
+        } else if (candidates.count == 1) { // We found only a single point here, so we just add it and do no connecting
+            final int start = candidates.start[0];
+            final int end = candidates.end[0];
+            into.addPair(
+                    frame,
+                    1 + start,
+                    frameData.get(start, 1),
+                    frameData.get(start, 2),
+                    frameData.get(start, 3),
+                    frameData.get(start, 4),
+                    1 + end,
+                    frameData.get(end, 1),
+                    frameData.get(end, 2),
+                    frameData.get(end, 3),
+                    frameData.get(end, 4),
+                    candidates.distance[0],
+                    candidates.angle[0]
+            );
+        }
+    }
 
     // Only run from the IDE
     public static void main(String[] args) {